@@ -18,93 +18,197 @@ package com.spotify.dns;
 
 import static java.util.Objects.requireNonNull;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A helper for implementing the {@link ChangeNotifier} interface.
+ *
+ * <p>Notifying doesn't take locks. The listeners are an immutable list that is replaced by
+ * compare-and-set when listeners are added, and changes are put on a queue. Whichever thread
+ * finds the queue idle when it puts something on it drains the queue, and other threads return
+ * right away. Changes are numbered as they are drained, and a listener only gets the changes
+ * that come after it was added, so each listener sees each change exactly once, in order.
+ *
+ * <p>Listeners without an executor are called in turn on the thread that drains the queue, which
+ * is the thread that fires the change unless another thread is already draining. Listeners with
+ * an executor each get their changes through a queue of their own, that is drained by one task
+ * at a time, so they see the changes in order without holding up the firing thread or each
+ * other.
  */
 abstract class AbstractChangeNotifier<T> implements ChangeNotifier<T> {
 
   private static final Logger log = LoggerFactory.getLogger(AbstractChangeNotifier.class);
 
+  /**
+   * A listener that takes longer than this to handle a change is logged as slow.
+   */
+  static final long SLOW_LISTENER_MILLIS = 1000;
+
+  /**
+   * A listener with an executor that has this many changes waiting is logged as falling behind.
+   */
+  static final int SLOW_LISTENER_BACKLOG = 100;
+
   private final AtomicReference<Listener<T>> listenerRef = new AtomicReference<>();
 
-  private final AtomicBoolean listenerNotified = new AtomicBoolean(false);
+  private final AtomicReference<List<Registration>> registrations =
+      new AtomicReference<>(ImmutableList.of());
 
-  private final ReentrantLock lock = new ReentrantLock();
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+  private final AtomicInteger pendingTasks = new AtomicInteger();
+
+  // the number of the last change, only used by the thread that drains the tasks
+  private long version;
 
   @Override
   public void setListener(final Listener<T> listener, final boolean fire) {
     requireNonNull(listener, "listener");
 
-    lock.lock();
-    try {
-      if (!listenerRef.compareAndSet(null, listener)) {
-        throw new IllegalStateException("Listener already set!");
-      }
+    if (!listenerRef.compareAndSet(null, listener)) {
+      throw new IllegalStateException("Listener already set!");
+    }
 
+    register(listener, fire, null);
+  }
+
+  @Override
+  public void addListener(final Listener<T> listener, final boolean fire,
+                          final Executor executor) {
+    requireNonNull(listener, "listener");
+
+    register(listener, fire, executor);
+  }
+
+  private void register(Listener<T> listener, boolean fire, Executor executor) {
+    final Registration registration = new Registration(listener, executor);
+
+    List<Registration> current;
+    List<Registration> updated;
+    do {
+      current = registrations.get();
+      updated = ImmutableList.<Registration>builder().addAll(current).add(registration).build();
+    } while (!registrations.compareAndSet(current, updated));
+
+    // The listener gets the changes that are queued after this, and not those before.
+    run(() -> {
+      registration.fromVersion = version;
       if (fire) {
-        notifyListener(newChangeNotification(current(), Sets.newHashSet()), true);
+        registration.dispatch(newChangeNotification(current(), Sets.newHashSet()));
       }
-    } finally {
-      lock.unlock();
-    }
+    });
   }
 
   @Override
   public final void close() {
     listenerRef.set(null);
+    for (Registration registration : registrations.getAndSet(ImmutableList.of())) {
+      registration.cancel();
+    }
     closeImplementation();
   }
 
   protected abstract void closeImplementation();
 
-  protected final void fireRecordsUpdated(ChangeNotification<T> changeNotification) {
-    notifyListener(changeNotification, false);
-  }
-
   /**
-   * Notify the listener about a change. If this is due to adding a new listener rather than
-   * being an update, only notify the listener if this is the first notification sent to it.
+   * Notify the listeners about a change.
    *
    * @param changeNotification the change notification to send
-   * @param newListener call is triggered by adding a listener rather than an update
    */
-  private void notifyListener(ChangeNotification<T> changeNotification, boolean newListener) {
-    lock.lock();
-    try {
-      requireNonNull(changeNotification, "changeNotification");
-
-      final Listener<T> listener = listenerRef.get();
-      if (listener != null) {
-        try {
-          final boolean notified = listenerNotified.getAndSet(true);
-          if (!(newListener && notified)) {
-            listener.onChange(changeNotification);
-          }
-        } catch (Throwable e) {
-          log.error("Change notification listener threw exception", e);
+  protected final void fireRecordsUpdated(ChangeNotification<T> changeNotification) {
+    requireNonNull(changeNotification, "changeNotification");
+
+    run(() -> {
+      version++;
+      for (Registration registration : registrations.get()) {
+        if (version > registration.fromVersion) {
+          registration.dispatch(changeNotification);
         }
       }
-    } finally {
-      lock.unlock();
+    });
+  }
+
+  /**
+   * Runs a task after those queued before it. The thread that finds no tasks pending runs them
+   * all, including those queued by other threads, or by the tasks themselves, while it does.
+   */
+  private void run(Runnable task) {
+    tasks.add(task);
+    if (pendingTasks.getAndIncrement() != 0) {
+      return;
     }
+
+    do {
+      try {
+        tasks.poll().run();
+      } catch (Throwable e) {
+        log.error("Change notification failed", e);
+      }
+    } while (pendingTasks.decrementAndGet() != 0);
   }
 
   protected final ChangeNotification<T> newChangeNotification(Set<T> current, Set<T> previous) {
     requireNonNull(current, "current");
     requireNonNull(previous, "previous");
 
-    return new ChangeNotificationImpl<>(current, previous);
+    return new ChangeNotificationImpl<>(current, previous, null, null);
+  }
+
+  /**
+   * Like {@link #newChangeNotification(Set, Set)}, for notifiers that already know which records
+   * were added and removed.
+   */
+  protected final ChangeNotification<T> newChangeNotification(Set<T> current, Set<T> previous,
+                                                              Set<T> added, Set<T> removed) {
+    requireNonNull(current, "current");
+    requireNonNull(previous, "previous");
+    requireNonNull(added, "added");
+    requireNonNull(removed, "removed");
+
+    return new ChangeNotificationImpl<>(current, previous, added, removed);
+  }
+
+  /**
+   * Like {@link #newChangeNotification(Set, Set)}, but computes the added and removed records
+   * right away, and keeps only those rather than the previous set, which is rebuilt if a listener
+   * asks for it. This lets the previous set be garbage collected while notifications are in
+   * flight, at the cost of computing the differences even if no listener uses them.
+   */
+  protected final ChangeNotification<T> newDeltaChangeNotification(Set<T> current,
+                                                                   Set<T> previous) {
+    requireNonNull(current, "current");
+    requireNonNull(previous, "previous");
+
+    return new DeltaChangeNotification<>(current,
+                                         ImmutableSet.copyOf(Sets.difference(current, previous)),
+                                         ImmutableSet.copyOf(Sets.difference(previous, current)),
+                                         ChangeNotifiers.isInitialEmptyData(previous));
+  }
+
+  private static <T> Set<T> unmodifiable(Set<T> set) {
+    if (ChangeNotifiers.isInitialEmptyData(set)) {
+      return set;
+    }
+    if (set instanceof ImmutableSet) {
+      return set;
+    }
+    return Collections.unmodifiableSet(set);
   }
 
   private static class ChangeNotificationImpl<T> implements ChangeNotification<T> {
@@ -112,9 +216,16 @@ abstract class AbstractChangeNotifier<T> implements ChangeNotifier<T> {
     private final Set<T> current;
     private final Set<T> previous;
 
-    protected ChangeNotificationImpl(Set<T> current, Set<T> previous) {
+    // computed on first use; racing listeners may both compute them, but get equal sets
+    private volatile Set<T> added;
+    private volatile Set<T> removed;
+
+    protected ChangeNotificationImpl(Set<T> current, Set<T> previous, Set<T> added,
+                                     Set<T> removed) {
       this.current = current;
       this.previous = previous;
+      this.added = added;
+      this.removed = removed;
     }
 
     @Override
@@ -122,19 +233,173 @@ abstract class AbstractChangeNotifier<T> implements ChangeNotifier<T> {
       return unmodifiable(current);
     }
 
-    private Set<T> unmodifiable(Set<T> set) {
-      if (ChangeNotifiers.isInitialEmptyData(set)) {
-        return set;
+    @Override
+    public Set<T> previous() {
+      return unmodifiable(previous);
+    }
+
+    @Override
+    public Set<T> added() {
+      Set<T> result = added;
+      if (result == null) {
+        result = ImmutableSet.copyOf(Sets.difference(current, previous));
+        added = result;
       }
-      if (set instanceof ImmutableSet) {
-        return set;
+      return result;
+    }
+
+    @Override
+    public Set<T> removed() {
+      Set<T> result = removed;
+      if (result == null) {
+        result = ImmutableSet.copyOf(Sets.difference(previous, current));
+        removed = result;
       }
-      return Collections.unmodifiableSet(set);
+      return result;
+    }
+  }
+
+  private static class DeltaChangeNotification<T> implements ChangeNotification<T> {
+
+    private final Set<T> current;
+    private final Set<T> added;
+    private final Set<T> removed;
+    private final boolean previousInitial;
+
+    // rebuilt on first use
+    private volatile Set<T> previous;
+
+    DeltaChangeNotification(Set<T> current, Set<T> added, Set<T> removed,
+                            boolean previousInitial) {
+      this.current = current;
+      this.added = added;
+      this.removed = removed;
+      this.previousInitial = previousInitial;
+    }
+
+    @Override
+    public Set<T> current() {
+      return unmodifiable(current);
     }
 
     @Override
     public Set<T> previous() {
-      return unmodifiable(previous);
+      if (previousInitial) {
+        return ChangeNotifiers.initialEmptyDataInstance();
+      }
+
+      Set<T> result = previous;
+      if (result == null) {
+        final ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+        for (T record : current) {
+          if (!added.contains(record)) {
+            builder.add(record);
+          }
+        }
+        result = builder.addAll(removed).build();
+        previous = result;
+      }
+      return result;
+    }
+
+    @Override
+    public Set<T> added() {
+      return added;
+    }
+
+    @Override
+    public Set<T> removed() {
+      return removed;
+    }
+  }
+
+  /**
+   * A listener, and the changes waiting to be delivered to it if it has an executor.
+   */
+  private final class Registration {
+    private final Listener<T> listener;
+    private final Executor executor;
+
+    private final Queue<ChangeNotification<T>> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger backlog = new AtomicInteger();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean cancelled;
+
+    // the number of the last change before the listener was added
+    private volatile long fromVersion = Long.MAX_VALUE;
+
+    Registration(Listener<T> listener, Executor executor) {
+      this.listener = listener;
+      this.executor = executor;
+    }
+
+    void dispatch(ChangeNotification<T> changeNotification) {
+      if (executor == null) {
+        call(changeNotification);
+        return;
+      }
+
+      pending.add(changeNotification);
+      if (backlog.incrementAndGet() == SLOW_LISTENER_BACKLOG) {
+        log.warn("Change notification listener {} is falling behind, with {} changes waiting",
+                 listener, SLOW_LISTENER_BACKLOG);
+      }
+      schedule();
+    }
+
+    void cancel() {
+      cancelled = true;
+      pending.clear();
+    }
+
+    private void schedule() {
+      if (!draining.compareAndSet(false, true)) {
+        // the task that is draining will deliver the change
+        return;
+      }
+
+      try {
+        executor.execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        draining.set(false);
+        log.error("Change notification listener {} could not be scheduled", listener, e);
+      }
+    }
+
+    private void drain() {
+      try {
+        ChangeNotification<T> changeNotification;
+        while (!cancelled && (changeNotification = pending.poll()) != null) {
+          backlog.decrementAndGet();
+          call(changeNotification);
+        }
+      } finally {
+        draining.set(false);
+      }
+
+      // a change may have been added after the last poll, but before draining was reset
+      if (!cancelled && !pending.isEmpty()) {
+        schedule();
+      }
+    }
+
+    private void call(ChangeNotification<T> changeNotification) {
+      if (cancelled) {
+        return;
+      }
+
+      final long start = System.nanoTime();
+      try {
+        listener.onChange(changeNotification);
+      } catch (Throwable e) {
+        log.error("Change notification listener threw exception", e);
+      }
+
+      final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (elapsedMillis >= SLOW_LISTENER_MILLIS) {
+        log.warn("Change notification listener {} took {} ms to handle a change",
+                 listener, elapsedMillis);
+      }
     }
   }
 }
@@ -19,16 +19,44 @@ package com.spotify.dns;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
  * A {@link ChangeNotifier} that aggregates the records provided by a list of notifiers.
+ *
+ * <p>The aggregate is maintained incrementally: it counts how many notifiers provide each record,
+ * and applies only the records that a notifier added or removed, so that a change costs time in
+ * proportion to its size rather than to the total number of records. The aggregated sets are
+ * built lazily from the changes, when something reads them.
+ *
+ * <p>A change is applied to the records last seen from its notifier. Notifiers deliver each
+ * change once and in order, so the records seen follow those of the notifier without being
+ * compared to them. Changes are applied as records added and removed, so that one delivered
+ * before the records are first read, and already part of them, makes no difference.
  */
 class AggregatingChangeNotifier<T> extends AbstractChangeNotifier<T> {
 
+  /**
+   * The most changes that an unread aggregated set is built from, after which it's built right
+   * away, so that the changes don't pile up.
+   */
+  static final int MAX_PENDING_CHANGES = 32;
+
   private final List<ChangeNotifier<T>> changeNotifiers;
 
+  // guarded by this
+  private final Map<T, Integer> counts = new HashMap<>();
+
   private volatile Set<T> records;
 
   /**
@@ -39,12 +67,35 @@ class AggregatingChangeNotifier<T> extends AbstractChangeNotifier<T> {
   AggregatingChangeNotifier(final Iterable<ChangeNotifier<T>> changeNotifiers) {
     this.changeNotifiers = ImmutableList.copyOf(changeNotifiers);
 
-    // Set up forwarding of listeners
+    // Set up forwarding of listeners. Changes are applied to the records last seen from each
+    // notifier, so a change that is already part of the records read below is ignored. The
+    // listeners are added before the records are read, so that no change is missed in between.
+    final List<Set<T>> seen = new ArrayList<>(this.changeNotifiers.size());
     for (final ChangeNotifier<T> changeNotifier : this.changeNotifiers) {
-      changeNotifier.setListener(ignored -> checkChange(), false);
+      final Set<T> seenRecords = new HashSet<>();
+      seen.add(seenRecords);
+      final Listener<T> listener = notification -> checkChange(seenRecords, notification);
+      try {
+        changeNotifier.addListener(listener, false, null);
+      } catch (UnsupportedOperationException e) {
+        // a notifier from outside this library, which may only support one listener
+        changeNotifier.setListener(listener, false);
+      }
     }
 
-    records = aggregateSet();
+    synchronized (this) {
+      for (int i = 0; i < this.changeNotifiers.size(); i++) {
+        for (T record : this.changeNotifiers.get(i).current()) {
+          if (seen.get(i).add(record)) {
+            counts.merge(record, 1, Integer::sum);
+          }
+        }
+      }
+
+      records = areAllInitial(this.changeNotifiers) ?
+                ChangeNotifiers.initialEmptyDataInstance() :
+                new Snapshot<>(ImmutableSet.copyOf(counts.keySet()));
+    }
   }
 
   @Override
@@ -59,28 +110,54 @@ class AggregatingChangeNotifier<T> extends AbstractChangeNotifier<T> {
     }
   }
 
-  private synchronized void checkChange() {
-    Set<T> currentRecords = aggregateSet();
+  private synchronized void checkChange(Set<T> seen, ChangeNotification<T> notification) {
+    final ImmutableSet.Builder<T> added = ImmutableSet.builder();
+    final ImmutableSet.Builder<T> removed = ImmutableSet.builder();
+    for (T record : notification.removed()) {
+      remove(seen, record, removed);
+    }
+    for (T record : notification.added()) {
+      add(seen, record, added);
+    }
 
-    if (ChangeNotifiers.isNoLongerInitial(currentRecords, records) || !currentRecords.equals(records)) {
-      final ChangeNotification<T> changeNotification =
-          newChangeNotification(currentRecords, records);
-      records = currentRecords;
+    if (records == null
+        || ChangeNotifiers.isInitialEmptyData(records) && areAllInitial(changeNotifiers)) {
+      // still being constructed, or there's nothing to notify about yet
+      return;
+    }
 
-      fireRecordsUpdated(changeNotification);
+    final Set<T> previous = records;
+    final Set<T> current;
+    final ChangeNotification<T> changeNotification;
+    if (ChangeNotifiers.isInitialEmptyData(previous)) {
+      current = new Snapshot<>(ImmutableSet.copyOf(counts.keySet()));
+      changeNotification = newChangeNotification(current, previous, current, ImmutableSet.of());
+    } else {
+      final Set<T> addedRecords = added.build();
+      final Set<T> removedRecords = removed.build();
+      if (addedRecords.isEmpty() && removedRecords.isEmpty()) {
+        return;
+      }
+      current = new Snapshot<>((Snapshot<T>) previous, addedRecords, removedRecords);
+      changeNotification =
+          newChangeNotification(current, previous, addedRecords, removedRecords);
     }
+
+    records = current;
+    fireRecordsUpdated(changeNotification);
   }
 
-  private Set<T> aggregateSet() {
-    if (areAllInitial(changeNotifiers)) {
-      return ChangeNotifiers.initialEmptyDataInstance();
+  private void add(Set<T> seen, T record, ImmutableSet.Builder<T> added) {
+    if (seen.add(record) && counts.merge(record, 1, Integer::sum) == 1) {
+      added.add(record);
     }
+  }
 
-    ImmutableSet.Builder<T> records = ImmutableSet.builder();
-    for (final ChangeNotifier<T> changeNotifier : changeNotifiers) {
-      records.addAll(changeNotifier.current());
+  private void remove(Set<T> seen, T record, ImmutableSet.Builder<T> removed) {
+    if (seen.remove(record) && counts.merge(record, -1, Integer::sum) == 0) {
+      counts.remove(record);
+      removed.add(record);
     }
-    return records.build();
   }
 
   private boolean areAllInitial(List<ChangeNotifier<T>> changeNotifiers) {
@@ -91,5 +168,115 @@ class AggregatingChangeNotifier<T> extends AbstractChangeNotifier<T> {
     }
     return true;
   }
-}
 
+  /**
+   * An immutable aggregated set, which is either built, or made up of the previous set and the
+   * records that were added to and removed from it. It's built on first use, by applying the
+   * changes since the last built set in the chain to a copy of it, after which it no longer
+   * refers to the previous set. Its hash code is kept up to date with each change.
+   */
+  private static final class Snapshot<T> extends AbstractSet<T> {
+    private final int pendingChanges;
+    private final int hashCode;
+
+    // guarded by this until records is set
+    private Snapshot<T> previous;
+    private Set<T> added;
+    private Set<T> removed;
+
+    private volatile Set<T> records;
+
+    Snapshot(Set<T> records) {
+      this.records = records;
+      this.pendingChanges = 0;
+      this.hashCode = records.hashCode();
+    }
+
+    Snapshot(Snapshot<T> previous, Set<T> added, Set<T> removed) {
+      this.previous = previous;
+      this.added = added;
+      this.removed = removed;
+      this.pendingChanges = previous.isBuilt() ? 1 : previous.pendingChanges + 1;
+      this.hashCode = previous.hashCode + added.hashCode() - removed.hashCode();
+      if (pendingChanges >= MAX_PENDING_CHANGES) {
+        records();
+      }
+    }
+
+    private boolean isBuilt() {
+      return records != null;
+    }
+
+    private Set<T> records() {
+      Set<T> result = records;
+      if (result == null) {
+        synchronized (this) {
+          result = records;
+          if (result == null) {
+            result = Collections.unmodifiableSet(build());
+            records = result;
+            previous = null;
+            added = null;
+            removed = null;
+          }
+        }
+      }
+      return result;
+    }
+
+    /**
+     * Walks the chain back to the last built set, and applies the changes since then to a copy
+     * of it, oldest first. Called while holding the lock of this set.
+     */
+    private Set<T> build() {
+      final Deque<Snapshot<T>> unbuilt = new ArrayDeque<>();
+      unbuilt.push(this);
+      Set<T> base = null;
+      Snapshot<T> snapshot = previous;
+      while (base == null) {
+        synchronized (snapshot) {
+          base = snapshot.records;
+          if (base == null) {
+            unbuilt.push(snapshot);
+            snapshot = snapshot.previous;
+          }
+        }
+      }
+
+      final Set<T> built = new HashSet<>(base);
+      for (Snapshot<T> change : unbuilt) {
+        synchronized (change) {
+          if (change == this || change.records == null) {
+            built.removeAll(change.removed);
+            built.addAll(change.added);
+          } else {
+            // built meanwhile by another thread, so start over from it
+            built.clear();
+            built.addAll(change.records);
+          }
+        }
+      }
+      return built;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return records().iterator();
+    }
+
+    @Override
+    public int size() {
+      return records().size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+      return records().contains(o);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
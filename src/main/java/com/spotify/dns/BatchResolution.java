@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves a batch of names, keeping at most a fixed number of lookups in flight. Each completed
+ * lookup starts the next one, so no threads are blocked waiting for lookups, and lookups that
+ * complete right away (from a cache, for instance) are handled in a loop rather than recursively.
+ */
+class BatchResolution {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchResolution.class);
+
+  private final DnsSrvResolver resolver;
+  private final List<String> fqdns;
+  private final ErrorHandler errorHandler;
+  private final AtomicInteger next = new AtomicInteger();
+  private final AtomicInteger remaining;
+  private final Map<String, List<LookupResult>> results = new ConcurrentHashMap<>();
+  private final CompletableFuture<Map<String, List<LookupResult>>> result =
+      new CompletableFuture<>();
+
+  private BatchResolution(DnsSrvResolver resolver, List<String> fqdns,
+                          ErrorHandler errorHandler) {
+    this.resolver = resolver;
+    this.fqdns = fqdns;
+    this.errorHandler = errorHandler;
+    this.remaining = new AtomicInteger(fqdns.size());
+  }
+
+  static CompletionStage<Map<String, List<LookupResult>>> resolveAll(
+      DnsSrvResolver resolver, Collection<String> fqdns, int maxConcurrency,
+      ErrorHandler errorHandler) {
+    requireNonNull(resolver, "resolver");
+    requireNonNull(fqdns, "fqdns");
+    requireNonNull(errorHandler, "errorHandler");
+    Preconditions.checkArgument(maxConcurrency > 0,
+                                "max concurrency must be positive, was %s", maxConcurrency);
+
+    final List<String> names = ImmutableSet.copyOf(fqdns).asList();
+    if (names.isEmpty()) {
+      return CompletableFuture.completedFuture(ImmutableMap.of());
+    }
+
+    final BatchResolution batch = new BatchResolution(resolver, names, errorHandler);
+    for (int i = 0; i < Math.min(maxConcurrency, names.size()); i++) {
+      batch.resolveNext();
+    }
+    return batch.result;
+  }
+
+  private void resolveNext() {
+    int index;
+    while ((index = next.getAndIncrement()) < fqdns.size()) {
+      final String fqdn = fqdns.get(index);
+
+      CompletableFuture<List<LookupResult>> lookup;
+      try {
+        lookup = resolver.resolveAsync(fqdn).toCompletableFuture();
+      } catch (RuntimeException e) {
+        lookup = new CompletableFuture<>();
+        lookup.completeExceptionally(e);
+      }
+
+      if (!lookup.isDone()) {
+        lookup.whenComplete((nodes, e) -> {
+          completed(fqdn, nodes, e);
+          resolveNext();
+        });
+        return;
+      }
+
+      lookup.whenComplete((nodes, e) -> completed(fqdn, nodes, e));
+    }
+  }
+
+  private void completed(String fqdn, List<LookupResult> nodes, Throwable e) {
+    if (e == null) {
+      results.put(fqdn, nodes);
+    } else {
+      handleError(fqdn, e);
+    }
+
+    if (remaining.decrementAndGet() == 0) {
+      final ImmutableMap.Builder<String, List<LookupResult>> ordered = ImmutableMap.builder();
+      for (String name : fqdns) {
+        final List<LookupResult> resolved = results.get(name);
+        if (resolved != null) {
+          ordered.put(name, resolved);
+        }
+      }
+      result.complete(ordered.build());
+    }
+  }
+
+  private void handleError(String fqdn, Throwable e) {
+    Throwable cause = e;
+    if (cause instanceof CompletionException && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+
+    try {
+      errorHandler.handle(fqdn, cause instanceof DnsException
+                                ? (DnsException) cause
+                                : new DnsException(cause));
+    } catch (RuntimeException handlerException) {
+      LOG.warn("Error handler failed for '{}'", fqdn, handlerException);
+    }
+  }
+}
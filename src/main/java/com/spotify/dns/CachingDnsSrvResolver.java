@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DnsSrvResolver that caches the results of successful lookups for as long as the TTL of the
+ * returned records allows. The TTL of an entry is the lowest TTL among its records, optionally
+ * clamped to a configurable range. Empty results and failures are never cached.
+ *
+ * <p>Optionally, entries that are in use can be refreshed ahead of their expiry: once an entry
+ * has reached a configurable fraction of its TTL, and has been read at least a minimum number of
+ * times since it was loaded, the next read triggers a lookup in the background that replaces it.
+ * Names that are resolved often will then not see cache misses when their entries expire.
+ *
+ * <p>The cache holds at most {@link #MAX_CACHED_NAMES} names, evicting the least recently used
+ * ones, so that resolving many different names doesn't grow it without bound.
+ */
+class CachingDnsSrvResolver implements DnsSrvResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(CachingDnsSrvResolver.class);
+
+  static final int DEFAULT_REFRESH_AHEAD_MIN_HITS = 2;
+  static final int MAX_CACHED_NAMES = 10_000;
+
+  private final DnsSrvResolver delegate;
+  private final long minTtlNanos;
+  private final long maxTtlNanos;
+  private final double refreshAheadFactor;
+  private final int refreshAheadMinHits;
+  private final Ticker ticker;
+  private final Cache<String, CachedResult> cache;
+
+  CachingDnsSrvResolver(DnsSrvResolver delegate, long minTtlMillis, long maxTtlMillis,
+                        double refreshAheadFactor) {
+    this(delegate, minTtlMillis, maxTtlMillis, refreshAheadFactor,
+         DEFAULT_REFRESH_AHEAD_MIN_HITS, Ticker.systemTicker());
+  }
+
+  CachingDnsSrvResolver(DnsSrvResolver delegate, long minTtlMillis, long maxTtlMillis,
+                        Ticker ticker) {
+    this(delegate, minTtlMillis, maxTtlMillis, 0.0, DEFAULT_REFRESH_AHEAD_MIN_HITS, ticker);
+  }
+
+  CachingDnsSrvResolver(DnsSrvResolver delegate, long minTtlMillis, long maxTtlMillis,
+                        double refreshAheadFactor, int refreshAheadMinHits, Ticker ticker) {
+    this(delegate, minTtlMillis, maxTtlMillis, refreshAheadFactor, refreshAheadMinHits,
+         MAX_CACHED_NAMES, ticker);
+  }
+
+  /**
+   * @param delegate            the resolver to cache results from
+   * @param minTtlMillis        the shortest time to cache a result for
+   * @param maxTtlMillis        the longest time to cache a result for
+   * @param refreshAheadFactor  the fraction of the TTL after which an entry is refreshed in the
+   *                            background when read, or 0 to never refresh ahead
+   * @param refreshAheadMinHits the number of reads since an entry was loaded required for it to
+   *                            be refreshed ahead
+   * @param maxCachedNames      the most names to cache results for
+   * @param ticker              the time source
+   */
+  CachingDnsSrvResolver(DnsSrvResolver delegate, long minTtlMillis, long maxTtlMillis,
+                        double refreshAheadFactor, int refreshAheadMinHits, int maxCachedNames,
+                        Ticker ticker) {
+    Preconditions.checkArgument(minTtlMillis >= 0L,
+                                "min TTL must not be negative, was %s", minTtlMillis);
+    Preconditions.checkArgument(maxTtlMillis >= minTtlMillis,
+                                "max TTL must not be less than min TTL (%s), was %s",
+                                minTtlMillis, maxTtlMillis);
+    Preconditions.checkArgument(refreshAheadFactor >= 0.0 && refreshAheadFactor < 1.0,
+                                "refresh ahead factor must be in [0, 1), was %s",
+                                refreshAheadFactor);
+    Preconditions.checkArgument(refreshAheadMinHits > 0,
+                                "refresh ahead min hits must be positive, was %s",
+                                refreshAheadMinHits);
+    Preconditions.checkArgument(maxCachedNames > 0,
+                                "max cached names must be positive, was %s", maxCachedNames);
+
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.minTtlNanos = TimeUnit.MILLISECONDS.toNanos(minTtlMillis);
+    this.maxTtlNanos = TimeUnit.MILLISECONDS.toNanos(maxTtlMillis);
+    this.refreshAheadFactor = refreshAheadFactor;
+    this.refreshAheadMinHits = refreshAheadMinHits;
+    this.ticker = requireNonNull(ticker, "ticker");
+
+    // Entries are expired by their own TTL when read; the cache itself drops those that aren't
+    // read again once they reach the max TTL, or when it's full.
+    CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+        .maximumSize(maxCachedNames)
+        .ticker(ticker);
+    if (maxTtlNanos < Long.MAX_VALUE) {
+      builder = builder.expireAfterWrite(maxTtlNanos, TimeUnit.NANOSECONDS);
+    }
+    this.cache = builder.build();
+  }
+
+  @Override
+  public List<LookupResult> resolve(final String fqdn) {
+    requireNonNull(fqdn, "fqdn");
+
+    final List<LookupResult> cached = getIfFresh(fqdn);
+    if (cached != null) {
+      return cached;
+    }
+
+    final List<LookupResult> nodes = delegate.resolve(fqdn);
+    store(fqdn, nodes);
+    return nodes;
+  }
+
+  @Override
+  public CompletionStage<List<LookupResult>> resolveAsync(final String fqdn) {
+    requireNonNull(fqdn, "fqdn");
+
+    final List<LookupResult> cached = getIfFresh(fqdn);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+
+    return delegate.resolveAsync(fqdn).thenApply(nodes -> {
+      store(fqdn, nodes);
+      return nodes;
+    });
+  }
+
+  private List<LookupResult> getIfFresh(String fqdn) {
+    final CachedResult cached = cache.getIfPresent(fqdn);
+    if (cached == null) {
+      return null;
+    }
+
+    final long now = ticker.read();
+    if (cached.isExpired(now)) {
+      cache.asMap().remove(fqdn, cached);
+      return null;
+    }
+
+    final int hits = cached.hits.incrementAndGet();
+    if (refreshAheadFactor > 0 && hits >= refreshAheadMinHits && cached.isDueForRefresh(now)) {
+      refreshAhead(fqdn, cached);
+    }
+
+    return cached.nodes;
+  }
+
+  private void refreshAhead(final String fqdn, final CachedResult cached) {
+    if (!cached.refreshing.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      delegate.resolveAsync(fqdn).whenComplete((nodes, e) -> {
+        if (e == null) {
+          store(fqdn, nodes);
+        }
+        cached.refreshing.set(false);
+      });
+    } catch (RuntimeException e) {
+      cached.refreshing.set(false);
+      LOG.warn("Failed to refresh cached result for '{}'", fqdn, e);
+    }
+  }
+
+  private void store(String fqdn, List<LookupResult> nodes) {
+    if (nodes.isEmpty()) {
+      return;
+    }
+
+    final long ttlNanos = ttlNanos(nodes);
+    if (ttlNanos > 0) {
+      final long now = ticker.read();
+      final long refreshAfterNanos = (long) (ttlNanos * refreshAheadFactor);
+      cache.put(fqdn, new CachedResult(nodes, now + ttlNanos, now + refreshAfterNanos));
+    }
+  }
+
+  private long ttlNanos(List<LookupResult> nodes) {
+    long ttlSeconds = Long.MAX_VALUE;
+    for (LookupResult node : nodes) {
+      ttlSeconds = Math.min(ttlSeconds, node.ttl());
+    }
+
+    final long ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0L));
+    return Math.min(Math.max(ttlNanos, minTtlNanos), maxTtlNanos);
+  }
+
+  private static final class CachedResult {
+    private final List<LookupResult> nodes;
+    private final long expiresAtNanos;
+    private final long refreshAtNanos;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    CachedResult(List<LookupResult> nodes, long expiresAtNanos, long refreshAtNanos) {
+      this.nodes = nodes;
+      this.expiresAtNanos = expiresAtNanos;
+      this.refreshAtNanos = refreshAtNanos;
+    }
+
+    boolean isExpired(long nowNanos) {
+      return nowNanos - expiresAtNanos >= 0;
+    }
+
+    boolean isDueForRefresh(long nowNanos) {
+      return nowNanos - refreshAtNanos >= 0;
+    }
+  }
+}
@@ -16,7 +16,10 @@
 
 package com.spotify.dns;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * A change notifier represents a watched lookup from a {@link DnsSrvWatcher}.
@@ -26,6 +29,19 @@ import java.util.Set;
  *
  * <p>A {@link Listener} can be attached to listen to change events on the watched set of records.
  *
+ * <p>Threading and ordering, for the notifiers in this library:
+ * <ul>
+ *   <li>Each listener gets each change once, in the order the changes happened, and never gets
+ *   two changes at the same time.</li>
+ *   <li>A listener without an executor is called synchronously, on the thread that fires the
+ *   change, when no other change is being delivered. If another thread is delivering a change
+ *   at that moment, the firing thread returns right away, and the change is delivered after it,
+ *   on that other thread. A listener may therefore be called on different threads over time,
+ *   and a change may not have been delivered yet when the firing thread moves on.</li>
+ *   <li>A listener with an executor is always called on that executor, one change at a time, and
+ *   never on the firing thread.</li>
+ * </ul>
+ *
  * @param <T> The records type
  */
 public interface ChangeNotifier<T> {
@@ -40,7 +56,8 @@ public interface ChangeNotifier<T> {
   /**
    * Set a listener to be called when the set of records change.
    *
-   * <p>One one listener can be added. Multiple calls to this method is an error.
+   * <p>One one listener can be added. Multiple calls to this method is an error. The listener
+   * has no executor, and is called as described in the threading notes on {@link ChangeNotifier}.
    *
    * @param listener The listener to set
    * @param fire     Fire the notification event immediately. Can be used to ensure that no updates
@@ -49,6 +66,25 @@ public interface ChangeNotifier<T> {
    */
   void setListener(Listener<T> listener, boolean fire);
 
+  /**
+   * Add a listener to be called when the set of records change. Unlike with
+   * {@link #setListener(Listener, boolean)}, any number of listeners can be added.
+   *
+   * <p>Each listener sees the changes in the order they happened. A listener without an executor
+   * is called on the thread that delivers the change, which is usually the thread that detected
+   * it (see {@link ChangeNotifier}), and so holds up the notification of the listeners after it,
+   * and for notifiers that poll, the poll. A listener with an executor is called on it, one
+   * change at a time, and never holds up the thread that detected the change.
+   *
+   * @param listener The listener to add
+   * @param fire     Fire the notification event immediately. Can be used to ensure that no updates
+   *                 are missed when adding the listener
+   * @param executor The executor to call the listener on (nullable)
+   */
+  default void addListener(Listener<T> listener, boolean fire, Executor executor) {
+    throw new java.lang.UnsupportedOperationException("Not implemented");
+  }
+
   /**
    * Close this {@link ChangeNotifier}, releasing any resources allocated. Once closed, no more
    * {@link Listener} events will be fired. Implementations of {@link ChangeNotifier} are not
@@ -76,5 +112,25 @@ public interface ChangeNotifier<T> {
   interface ChangeNotification<T> {
     Set<T> current();
     Set<T> previous();
+
+    /**
+     * Get the records that are in the current set but not in the previous one. Notifications
+     * from the notifiers in this library compute this at most once, however many listeners ask.
+     *
+     * @return The added records
+     */
+    default Set<T> added() {
+      return ImmutableSet.copyOf(Sets.difference(current(), previous()));
+    }
+
+    /**
+     * Get the records that are in the previous set but not in the current one. Notifications
+     * from the notifiers in this library compute this at most once, however many listeners ask.
+     *
+     * @return The removed records
+     */
+    default Set<T> removed() {
+      return ImmutableSet.copyOf(Sets.difference(previous(), current()));
+    }
   }
 }
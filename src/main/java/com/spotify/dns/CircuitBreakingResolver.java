@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.spotify.dns.statistics.DnsReporter;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+
+/**
+ * A circuit breaker for the resolver of a single DNS server. After a number of consecutive
+ * failed queries or SERVFAIL responses, the circuit opens, and queries fail right away instead
+ * of waiting for the server to time out, so that a resolver that queries several servers moves
+ * on to the next one immediately. While the circuit is open, a small fraction of the queries are
+ * still sent to the server as probes, one at a time, and the circuit closes again as soon as a
+ * probe succeeds.
+ */
+class CircuitBreakingResolver extends ForwardingResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(CircuitBreakingResolver.class);
+
+  private final Resolver delegate;
+  private final String server;
+  private final int failureThreshold;
+  private final int probeInterval;
+  private final DnsReporter reporter;
+
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private final AtomicBoolean open = new AtomicBoolean();
+  private final AtomicInteger rejectedSinceProbe = new AtomicInteger();
+  private final AtomicBoolean probing = new AtomicBoolean();
+
+  /**
+   * @param delegate         the resolver of the server to protect
+   * @param failureThreshold the number of consecutive failures that opens the circuit
+   * @param probeFraction    the fraction of queries sent to the server while the circuit is open
+   * @param reporter         the reporter to notify when the circuit opens or closes (nullable)
+   */
+  CircuitBreakingResolver(Resolver delegate, int failureThreshold, double probeFraction,
+                          DnsReporter reporter) {
+    super(ImmutableList.of(delegate));
+    Preconditions.checkArgument(failureThreshold > 0,
+                                "failure threshold must be positive, was %s", failureThreshold);
+    Preconditions.checkArgument(probeFraction > 0.0 && probeFraction <= 1.0,
+                                "probe fraction must be in (0, 1], was %s", probeFraction);
+
+    this.delegate = delegate;
+    this.server = serverName(delegate);
+    this.failureThreshold = failureThreshold;
+    this.probeInterval = (int) Math.max(Math.round(1.0 / probeFraction), 1);
+    this.reporter = reporter;
+  }
+
+  boolean isOpen() {
+    return open.get();
+  }
+
+  @Override
+  public String toString() {
+    return server;
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+    final boolean probe = open.get();
+    if (probe && !tryStartProbe()) {
+      final CompletableFuture<Message> rejected = new CompletableFuture<>();
+      rejected.completeExceptionally(
+          new IOException("Circuit breaker is open for DNS server " + server));
+      return rejected;
+    }
+
+    CompletionStage<Message> response;
+    try {
+      response = delegate.sendAsync(query, executor);
+    } catch (RuntimeException e) {
+      final CompletableFuture<Message> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      response = failed;
+    }
+
+    return response.whenComplete((message, e) -> {
+      if (e != null || message.getRcode() == Rcode.SERVFAIL) {
+        failed();
+      } else {
+        succeeded();
+      }
+      if (probe) {
+        probing.set(false);
+      }
+    });
+  }
+
+  private boolean tryStartProbe() {
+    if (rejectedSinceProbe.incrementAndGet() < probeInterval
+        || !probing.compareAndSet(false, true)) {
+      return false;
+    }
+    rejectedSinceProbe.set(0);
+    return true;
+  }
+
+  private void failed() {
+    if (consecutiveFailures.incrementAndGet() >= failureThreshold
+        && open.compareAndSet(false, true)) {
+      LOG.warn("Opened circuit breaker for DNS server {} after {} consecutive failures",
+               server, failureThreshold);
+      rejectedSinceProbe.set(0);
+      if (reporter != null) {
+        reporter.reportCircuitOpened(server);
+      }
+    }
+  }
+
+  private void succeeded() {
+    consecutiveFailures.set(0);
+    if (open.compareAndSet(true, false)) {
+      LOG.info("Closed circuit breaker for DNS server {}", server);
+      if (reporter != null) {
+        reporter.reportCircuitClosed(server);
+      }
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link ChangeNotifier} that coalesces bursts of changes from another notifier, such as the
+ * changes seen on every poll during a rolling deploy, into a single change.
+ *
+ * <p>A change is held back until no other change has followed it for the length of the window,
+ * but no longer than the max delay after the first change of the burst. The coalesced change then
+ * goes from the records before the burst to those after it, and isn't sent at all if they are the
+ * same. The first records, that replace the initial empty data, are sent right away, so that
+ * coalescing doesn't delay start-up.
+ *
+ * <p>Listeners are called on the thread of the scheduler, unless they were added with an
+ * executor. Changes are sent after the lock that guards the burst is released, so a slow listener
+ * doesn't block the thread that runs the delegate. If the scheduler rejects a flush, the burst is
+ * sent right away.
+ */
+class CoalescingChangeNotifier<T> extends AbstractChangeNotifier<T>
+    implements ChangeNotifierFactory.RunnableChangeNotifier<T> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(CoalescingChangeNotifier.class);
+
+  private final ChangeNotifierFactory.RunnableChangeNotifier<T> delegate;
+  private final long windowNanos;
+  private final long maxDelayNanos;
+  private final ScheduledExecutorService scheduler;
+  private final Ticker ticker;
+
+  private final Queue<ChangeNotification<T>> outgoing = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger sending = new AtomicInteger();
+
+  private volatile Set<T> records;
+
+  // guarded by this; burstPrevious is null when there's no burst
+  private Set<T> burstPrevious;
+  private Set<T> burstCurrent;
+  private long burstStartNanos;
+  private ScheduledFuture<?> flush;
+  private long flushes;
+  private boolean closed;
+
+  CoalescingChangeNotifier(ChangeNotifierFactory.RunnableChangeNotifier<T> delegate,
+                           long windowMillis, long maxDelayMillis,
+                           ScheduledExecutorService scheduler) {
+    this(delegate, windowMillis, maxDelayMillis, scheduler, Ticker.systemTicker());
+  }
+
+  /**
+   * @param delegate       the notifier to coalesce the changes of, which this notifier takes
+   *                       over: it runs and closes it, and sets its listener
+   * @param windowMillis   how long to wait for another change before sending a change
+   * @param maxDelayMillis the longest that the first change of a burst is held back
+   * @param scheduler      the scheduler to send changes on
+   * @param ticker         the time source
+   */
+  CoalescingChangeNotifier(ChangeNotifierFactory.RunnableChangeNotifier<T> delegate,
+                           long windowMillis, long maxDelayMillis,
+                           ScheduledExecutorService scheduler, Ticker ticker) {
+    Preconditions.checkArgument(windowMillis > 0, "window must be positive, was %s",
+                                windowMillis);
+    Preconditions.checkArgument(maxDelayMillis >= windowMillis,
+                                "max delay must not be less than the window, was %s",
+                                maxDelayMillis);
+
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+    this.scheduler = requireNonNull(scheduler, "scheduler");
+    this.ticker = requireNonNull(ticker, "ticker");
+
+    // A change that is sent while the listener is set waits for the lock, and is then applied
+    // to the records read here, so it's ignored if they already include it.
+    synchronized (this) {
+      delegate.setListener(this::onDelegateChange, false);
+      records = delegate.current();
+    }
+  }
+
+  @Override
+  public void run() {
+    delegate.run();
+  }
+
+  @Override
+  public Set<T> current() {
+    return records;
+  }
+
+  @Override
+  protected void closeImplementation() {
+    synchronized (this) {
+      closed = true;
+      if (flush != null) {
+        flush.cancel(false);
+        flush = null;
+      }
+    }
+    delegate.close();
+  }
+
+  private void onDelegateChange(ChangeNotification<T> changeNotification) {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+
+      final Set<T> current = changeNotification.current();
+      if (burstPrevious == null && ChangeNotifiers.isNoLongerInitial(current, records)) {
+        final Set<T> previous = records;
+        records = current;
+        outgoing.add(newDeltaChangeNotification(current, previous));
+      } else {
+        hold(current);
+      }
+    }
+    send();
+  }
+
+  private void hold(Set<T> current) {
+    final long now = ticker.read();
+    if (burstPrevious == null) {
+      burstPrevious = records;
+      burstStartNanos = now;
+    } else if (flush != null) {
+      flush.cancel(false);
+    }
+    burstCurrent = current;
+
+    // a flush that is already running when it's cancelled is told apart by its number
+    final long number = ++flushes;
+    final long delayNanos = Math.min(windowNanos, burstStartNanos + maxDelayNanos - now);
+    try {
+      flush = scheduler.schedule(() -> flush(number), Math.max(delayNanos, 0),
+                                 TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // the scheduler is shut down, so send the burst as it is rather than hold it forever
+      LOG.warn("Could not schedule sending of coalesced changes, sending them right away", e);
+      endBurst();
+    }
+  }
+
+  private void flush(long number) {
+    synchronized (this) {
+      if (closed || number != flushes) {
+        return;
+      }
+      endBurst();
+    }
+    send();
+  }
+
+  private void endBurst() {
+    final Set<T> previous = burstPrevious;
+    final Set<T> current = burstCurrent;
+    burstPrevious = null;
+    burstCurrent = null;
+    flush = null;
+
+    if (current.equals(previous)) {
+      // the burst undid itself
+      return;
+    }
+
+    records = current;
+    outgoing.add(newDeltaChangeNotification(current, previous));
+  }
+
+  /**
+   * Sends the changes queued while holding the lock, once it's released, so that slow listeners
+   * don't hold up the delegate. The thread that finds no changes being sent sends them all, in
+   * the order they were queued.
+   */
+  private void send() {
+    if (sending.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      final ChangeNotification<T> changeNotification = outgoing.poll();
+      if (changeNotification != null) {
+        fireRecordsUpdated(changeNotification);
+      }
+    } while (sending.decrementAndGet() != 0);
+  }
+}
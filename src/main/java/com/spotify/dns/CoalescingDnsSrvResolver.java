@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A DnsSrvResolver that makes concurrent asynchronous lookups of the same name share a single
+ * query to the delegate. Callers that arrive while a lookup is in flight get the result of that
+ * lookup rather than starting a new one.
+ */
+class CoalescingDnsSrvResolver implements DnsSrvResolver {
+  private final DnsSrvResolver delegate;
+  private final DnsReporter reporter;
+  private final ConcurrentMap<String, CompletableFuture<List<LookupResult>>> inFlight =
+      new ConcurrentHashMap<>();
+
+  /**
+   * @param delegate the resolver to send lookups to
+   * @param reporter the reporter to notify of coalesced lookups (nullable)
+   */
+  CoalescingDnsSrvResolver(DnsSrvResolver delegate, DnsReporter reporter) {
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.reporter = reporter;
+  }
+
+  @Override
+  public List<LookupResult> resolve(String fqdn) {
+    return delegate.resolve(fqdn);
+  }
+
+  @Override
+  public CompletionStage<List<LookupResult>> resolveAsync(String fqdn) {
+    requireNonNull(fqdn, "fqdn");
+
+    final CompletableFuture<List<LookupResult>> created = new CompletableFuture<>();
+    final CompletableFuture<List<LookupResult>> existing = inFlight.putIfAbsent(fqdn, created);
+
+    if (existing != null) {
+      if (reporter != null) {
+        reporter.reportCoalesced();
+      }
+      return copyOf(existing);
+    }
+
+    try {
+      delegate.resolveAsync(fqdn).whenComplete((nodes, e) -> {
+        inFlight.remove(fqdn, created);
+        if (e == null) {
+          created.complete(nodes);
+        } else {
+          created.completeExceptionally(e);
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.remove(fqdn, created);
+      created.completeExceptionally(e);
+      throw e;
+    }
+
+    return copyOf(created);
+  }
+
+  /**
+   * Gives each caller its own future, so that one caller completing or cancelling it doesn't
+   * affect the others sharing the lookup.
+   */
+  private static CompletionStage<List<LookupResult>> copyOf(
+      CompletableFuture<List<LookupResult>> shared) {
+    final CompletableFuture<List<LookupResult>> copy = new CompletableFuture<>();
+    shared.whenComplete((nodes, e) -> {
+      if (e == null) {
+        copy.complete(nodes);
+      } else {
+        copy.completeExceptionally(e);
+      }
+    });
+    return copy;
+  }
+}
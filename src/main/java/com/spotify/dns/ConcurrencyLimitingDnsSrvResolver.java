@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A DnsSrvResolver that limits the number of asynchronous lookups in flight, adjusting the limit
+ * to the observed latency using AIMD (additive increase, multiplicative decrease): the limit
+ * shrinks by a fixed factor whenever a lookup fails or is slower than a latency threshold, and
+ * grows by one whenever a lookup succeeds in time while at least half of the limit was in use.
+ *
+ * <p>Lookups over the limit are queued until a slot is free, for at most a configurable time. A
+ * lookup that times out in the queue, or that doesn't fit in the queue, fails with a
+ * {@link DnsException}, which lets a {@link RetainingDnsSrvResolver} above it fall back to
+ * retained data. Synchronous lookups aren't limited.
+ */
+class ConcurrencyLimitingDnsSrvResolver implements DnsSrvResolver {
+  static final int INITIAL_LIMIT = 20;
+  static final int MIN_LIMIT = 1;
+  static final int MAX_LIMIT = 1000;
+  static final int MAX_QUEUE_SIZE = 10_000;
+
+  private static final double BACKOFF_RATIO = 0.9;
+
+  private final DnsSrvResolver delegate;
+  private final long latencyThresholdNanos;
+  private final long queueTimeoutMillis;
+  private final int maxQueueSize;
+  private final DnsReporter reporter;
+  private final Ticker ticker;
+
+  // guarded by this
+  private double limit = INITIAL_LIMIT;
+  private int inFlight;
+  // lookups that timed out stay in the queue until they reach its head, so only count the others
+  private final Queue<Queued> queue = new ArrayDeque<>();
+  private int waiting;
+
+  // queued lookups that were given a slot, waiting to be started
+  private final Queue<Queued> ready = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger starting = new AtomicInteger();
+
+  ConcurrencyLimitingDnsSrvResolver(DnsSrvResolver delegate, long latencyThresholdMillis,
+                                    long queueTimeoutMillis, DnsReporter reporter) {
+    this(delegate, latencyThresholdMillis, queueTimeoutMillis, MAX_QUEUE_SIZE, reporter,
+         Ticker.systemTicker());
+  }
+
+  /**
+   * @param delegate               the resolver to limit lookups to
+   * @param latencyThresholdMillis lookups slower than this shrink the limit
+   * @param queueTimeoutMillis     how long a lookup may wait for a free slot, or 0 to fail
+   *                               lookups over the limit right away
+   * @param maxQueueSize           the maximum number of lookups waiting for a free slot
+   * @param reporter               the reporter to notify of changes to the limit and the queue
+   *                               depth (nullable)
+   * @param ticker                 the time source
+   */
+  ConcurrencyLimitingDnsSrvResolver(DnsSrvResolver delegate, long latencyThresholdMillis,
+                                    long queueTimeoutMillis, int maxQueueSize,
+                                    DnsReporter reporter, Ticker ticker) {
+    Preconditions.checkArgument(latencyThresholdMillis > 0,
+                                "latency threshold must be positive, was %s",
+                                latencyThresholdMillis);
+    Preconditions.checkArgument(queueTimeoutMillis >= 0,
+                                "queue timeout must not be negative, was %s", queueTimeoutMillis);
+    Preconditions.checkArgument(maxQueueSize >= 0,
+                                "max queue size must not be negative, was %s", maxQueueSize);
+
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+    this.queueTimeoutMillis = queueTimeoutMillis;
+    this.maxQueueSize = maxQueueSize;
+    this.reporter = reporter;
+    this.ticker = requireNonNull(ticker, "ticker");
+  }
+
+  @Override
+  public List<LookupResult> resolve(String fqdn) {
+    return delegate.resolve(fqdn);
+  }
+
+  @Override
+  public CompletionStage<List<LookupResult>> resolveAsync(String fqdn) {
+    requireNonNull(fqdn, "fqdn");
+
+    final Queued queued;
+    final int queueDepth;
+    synchronized (this) {
+      if (inFlight < (int) limit) {
+        inFlight++;
+        queued = null;
+        queueDepth = -1;
+      } else if (queueTimeoutMillis > 0 && waiting < maxQueueSize) {
+        queued = new Queued(fqdn);
+        queued.timeout = SharedScheduler.get().schedule(
+            () -> expire(queued), queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        queue.add(queued);
+        queueDepth = ++waiting;
+      } else {
+        final CompletableFuture<List<LookupResult>> shed = new CompletableFuture<>();
+        shed.completeExceptionally(new DnsException(
+            "Lookup of '" + fqdn + "' rejected: too many lookups in flight"));
+        return shed;
+      }
+    }
+
+    if (queued == null) {
+      final CompletableFuture<List<LookupResult>> result = new CompletableFuture<>();
+      start(fqdn, result);
+      return result;
+    }
+
+    reportQueueDepth(queueDepth);
+    return queued.result;
+  }
+
+  synchronized int limit() {
+    return (int) limit;
+  }
+
+  synchronized int queueDepth() {
+    return waiting;
+  }
+
+  private void start(String fqdn, CompletableFuture<List<LookupResult>> result) {
+    final int inFlightAtStart;
+    synchronized (this) {
+      inFlightAtStart = inFlight;
+    }
+    final long start = ticker.read();
+
+    CompletionStage<List<LookupResult>> lookup;
+    try {
+      lookup = delegate.resolveAsync(fqdn);
+    } catch (RuntimeException e) {
+      final CompletableFuture<List<LookupResult>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      lookup = failed;
+    }
+
+    lookup.whenComplete((nodes, e) -> {
+      completed(ticker.read() - start, e != null, inFlightAtStart);
+      if (e == null) {
+        result.complete(nodes);
+      } else {
+        result.completeExceptionally(e);
+      }
+    });
+  }
+
+  private void completed(long latencyNanos, boolean failed, int inFlightAtStart) {
+    final int previousLimit;
+    final int newLimit;
+    final List<Queued> next = new ArrayList<>(2);
+    final int queueDepth;
+    synchronized (this) {
+      previousLimit = (int) limit;
+      if (failed || latencyNanos > latencyThresholdNanos) {
+        limit = Math.max(MIN_LIMIT, limit * BACKOFF_RATIO);
+      } else if (inFlightAtStart * 2 >= limit) {
+        limit = Math.min(MAX_LIMIT, limit + 1);
+      }
+      newLimit = (int) limit;
+
+      // hand the free slots over to queued lookups, if the limit allows it
+      inFlight--;
+      while (inFlight < newLimit && waiting > 0) {
+        final Queued queued = queue.poll();
+        if (!queued.dequeued) {
+          queued.dequeued = true;
+          waiting--;
+          inFlight++;
+          next.add(queued);
+        }
+      }
+      queueDepth = waiting;
+    }
+
+    if (newLimit != previousLimit && reporter != null) {
+      reporter.reportConcurrencyLimit(newLimit);
+    }
+    if (!next.isEmpty()) {
+      reportQueueDepth(queueDepth);
+      for (Queued queued : next) {
+        queued.timeout.cancel(false);
+        ready.add(queued);
+        startReady();
+      }
+    }
+  }
+
+  /**
+   * Starts the queued lookups that were given a slot. A lookup that completes synchronously hands
+   * its slot over from within {@link #start}, so rather than starting the next lookup from there,
+   * which could recurse as deep as the queue, the thread that finds no lookups being started
+   * starts them all in a loop.
+   */
+  private void startReady() {
+    if (starting.getAndIncrement() != 0) {
+      return;
+    }
+
+    do {
+      final Queued queued = ready.poll();
+      start(queued.fqdn, queued.result);
+    } while (starting.decrementAndGet() != 0);
+  }
+
+  private void expire(Queued queued) {
+    final int queueDepth;
+    synchronized (this) {
+      if (queued.dequeued) {
+        return;
+      }
+      // removing it from the middle of the queue would take linear time, so leave it to be
+      // skipped, but drop any timed-out lookups at the head right away
+      queued.dequeued = true;
+      queueDepth = --waiting;
+      while (!queue.isEmpty() && queue.peek().dequeued) {
+        queue.poll();
+      }
+    }
+
+    reportQueueDepth(queueDepth);
+    queued.result.completeExceptionally(new DnsException(
+        "Lookup of '" + queued.fqdn + "' rejected: timed out waiting for a free slot after "
+        + queueTimeoutMillis + " ms"));
+  }
+
+  private void reportQueueDepth(int queueDepth) {
+    if (reporter != null) {
+      reporter.reportLookupQueueDepth(queueDepth);
+    }
+  }
+
+  private static final class Queued {
+    private final String fqdn;
+    private final CompletableFuture<List<LookupResult>> result = new CompletableFuture<>();
+    private volatile ScheduledFuture<?> timeout;
+    // guarded by the resolver; set once the lookup is given a slot or times out
+    private boolean dequeued;
+
+    Queued(String fqdn) {
+      this.fqdn = fqdn;
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * A ketama-style consistent hash ring, that maps keys such as user IDs to members such that only
+ * about 1/n of the keys move to other members when a member is added or removed.
+ *
+ * <p>The ring is a {@link ChangeNotifier.Listener}, so it can be attached to a notifier to follow
+ * its records. On each change, only the members that were added or removed are hashed, and their
+ * points are merged into or filtered out of the sorted points of the previous ring, rather than
+ * rebuilding it from scratch. The result is published as a new immutable ring through a volatile
+ * reference, so lookups never block and always see a consistent ring.
+ *
+ * <p>Members are placed on the ring by a string key, which should identify the member without
+ * depending on details that can change while it stays the same member, such as TTLs. Changes are
+ * found by comparing keys, so a member that is replaced by another with the same key, such as a
+ * lookup result whose TTL changed, keeps its points, which are handed to the new member without
+ * hashing it again. Of several members with the same key, only the first is placed on the ring.
+ *
+ * @param <T> the type of the members
+ */
+public final class ConsistentHashRing<T> implements ChangeNotifier.Listener<T> {
+
+  /**
+   * The number of points per member, which is what ketama uses.
+   */
+  public static final int DEFAULT_POINTS_PER_MEMBER = 160;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  private final Function<? super T, String> memberKey;
+  private final int pointsPerMember;
+
+  private volatile Ring<T> ring = Ring.empty();
+
+  private ConsistentHashRing(Function<? super T, String> memberKey, int pointsPerMember) {
+    Preconditions.checkArgument(pointsPerMember > 0,
+                                "points per member must be positive, was %s", pointsPerMember);
+    this.memberKey = requireNonNull(memberKey, "memberKey");
+    this.pointsPerMember = pointsPerMember;
+  }
+
+  /**
+   * Creates a ring of SRV lookup results, placed by their host and port.
+   *
+   * @return an empty ring
+   */
+  public static ConsistentHashRing<LookupResult> forLookupResults() {
+    return create(result -> result.host() + ":" + result.port());
+  }
+
+  /**
+   * @param memberKey the key to place a member on the ring by
+   * @param <T>       the type of the members
+   * @return an empty ring with {@link #DEFAULT_POINTS_PER_MEMBER} points per member
+   */
+  public static <T> ConsistentHashRing<T> create(Function<? super T, String> memberKey) {
+    return create(memberKey, DEFAULT_POINTS_PER_MEMBER);
+  }
+
+  /**
+   * @param memberKey       the key to place a member on the ring by
+   * @param pointsPerMember the number of points per member; more points spread the keys more
+   *                        evenly, at the cost of memory and time per change
+   * @param <T>             the type of the members
+   * @return an empty ring
+   */
+  public static <T> ConsistentHashRing<T> create(Function<? super T, String> memberKey,
+                                                 int pointsPerMember) {
+    return new ConsistentHashRing<>(memberKey, pointsPerMember);
+  }
+
+  @Override
+  public void onChange(ChangeNotifier.ChangeNotification<T> changeNotification) {
+    update(changeNotification.current());
+  }
+
+  /**
+   * Changes the members of the ring to the given set, hashing only the members with new keys.
+   *
+   * @param members the new members
+   */
+  public synchronized void update(Set<T> members) {
+    final Ring<T> previous = ring;
+
+    final Map<String, T> byKey = new LinkedHashMap<>();
+    for (T member : members) {
+      byKey.putIfAbsent(memberKey.apply(member), member);
+    }
+
+    // The deltas are taken against the members of the ring itself rather than the previous set
+    // of a notification, so that the ring stays correct whatever notification it's first given.
+    final List<T> added = new ArrayList<>();
+    final Map<T, T> replaced = new HashMap<>();
+    for (Map.Entry<String, T> entry : byKey.entrySet()) {
+      final T current = previous.members.get(entry.getKey());
+      if (current == null) {
+        added.add(entry.getValue());
+      } else if (!current.equals(entry.getValue())) {
+        replaced.put(current, entry.getValue());
+      }
+    }
+    final Set<T> removed = new HashSet<>();
+    for (Map.Entry<String, T> entry : previous.members.entrySet()) {
+      if (!byKey.containsKey(entry.getKey())) {
+        removed.add(entry.getValue());
+      }
+    }
+    if (added.isEmpty() && removed.isEmpty() && replaced.isEmpty()) {
+      return;
+    }
+
+    ring = previous.with(ImmutableMap.copyOf(byKey), added, removed, replaced, this);
+  }
+
+  /**
+   * Returns the member that a key maps to.
+   *
+   * @param key the key to look up, for instance a user ID
+   * @return the member, or null if the ring is empty
+   */
+  public T get(CharSequence key) {
+    return get(HASH.hashString(key, UTF_8).asLong());
+  }
+
+  /**
+   * Returns the member that a hash of a key maps to: the owner of the first point on the ring at
+   * or after the hash.
+   *
+   * @param hash the hash of a key, spread evenly over all long values
+   * @return the member, or null if the ring is empty
+   */
+  public T get(long hash) {
+    return ring.get(hash);
+  }
+
+  /**
+   * @return the current members of the ring
+   */
+  public Set<T> members() {
+    return ring.memberSet;
+  }
+
+  public boolean isEmpty() {
+    return ring.members.isEmpty();
+  }
+
+  private long pointOf(String key, int index) {
+    return HASH.newHasher().putString(key, UTF_8).putInt(index).hash().asLong();
+  }
+
+  /**
+   * An immutable ring: the members by key, and the points sorted by hash, with the owner of each
+   * point at the same index. Points with the same hash are sorted by the key of their owner, so
+   * that the ring doesn't depend on the order in which members were added.
+   */
+  private static final class Ring<T> {
+    private static final Ring<?> EMPTY = new Ring<>(ImmutableMap.of(), new long[0], new Object[0]);
+
+    private final Map<String, T> members;
+    private final Set<T> memberSet;
+    private final long[] points;
+    private final Object[] owners;
+
+    private Ring(Map<String, T> members, long[] points, Object[] owners) {
+      this.members = members;
+      this.memberSet = ImmutableSet.copyOf(members.values());
+      this.points = points;
+      this.owners = owners;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> Ring<T> empty() {
+      return (Ring<T>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long hash) {
+      if (points.length == 0) {
+        return null;
+      }
+      int i = Arrays.binarySearch(points, hash);
+      if (i < 0) {
+        i = -i - 1;
+      } else {
+        while (i > 0 && points[i - 1] == hash) {
+          i--;
+        }
+      }
+      return (T) owners[i == points.length ? 0 : i];
+    }
+
+    /**
+     * @param members  the members of the new ring by key
+     * @param added    the members with keys that aren't on this ring
+     * @param removed  the members of this ring with keys that aren't in the new ring
+     * @param replaced the members of this ring that are replaced by another member with the same
+     *                 key, which takes over their points
+     */
+    Ring<T> with(Map<String, T> members, List<T> added, Set<T> removed, Map<T, T> replaced,
+                 ConsistentHashRing<T> config) {
+      // the points of the added members, sorted
+      final int perMember = config.pointsPerMember;
+      final long[] newPoints = new long[added.size() * perMember];
+      final Object[] newOwners = new Object[newPoints.length];
+      int n = 0;
+      for (T member : added) {
+        final String key = config.memberKey.apply(member);
+        for (int i = 0; i < perMember; i++) {
+          newPoints[n] = config.pointOf(key, i);
+          newOwners[n] = member;
+          n++;
+        }
+      }
+      sort(newPoints, newOwners, config);
+
+      // merge them with the points of the members that remain
+      final int remaining = points.length - removed.size() * perMember;
+      final long[] mergedPoints = new long[remaining + newPoints.length];
+      final Object[] mergedOwners = new Object[mergedPoints.length];
+      int i = 0;
+      int j = 0;
+      int k = 0;
+      while (k < mergedPoints.length) {
+        while (i < points.length && removed.contains(owners[i])) {
+          i++;
+        }
+        if (j == newPoints.length ||
+            (i < points.length && compare(points[i], owners[i], newPoints[j], newOwners[j],
+                                          config) <= 0)) {
+          final T replacement = replaced.get(owners[i]);
+          mergedPoints[k] = points[i];
+          mergedOwners[k++] = replacement != null ? replacement : owners[i];
+          i++;
+        } else {
+          mergedPoints[k] = newPoints[j];
+          mergedOwners[k++] = newOwners[j++];
+        }
+      }
+
+      return new Ring<>(members, mergedPoints, mergedOwners);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> int compare(long point1, Object owner1, long point2, Object owner2,
+                                   ConsistentHashRing<T> config) {
+      final int result = Long.compare(point1, point2);
+      if (result != 0 || owner1 == owner2) {
+        return result;
+      }
+      return config.memberKey.apply((T) owner1).compareTo(config.memberKey.apply((T) owner2));
+    }
+
+    /**
+     * Sorts points and their owners together, which {@link Arrays#sort(long[])} can't do.
+     */
+    private static <T> void sort(long[] points, Object[] owners, ConsistentHashRing<T> config) {
+      final Integer[] order = new Integer[points.length];
+      for (int i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> compare(points[a], owners[a], points[b], owners[b], config));
+
+      final long[] sortedPoints = new long[points.length];
+      final Object[] sortedOwners = new Object[owners.length];
+      for (int i = 0; i < order.length; i++) {
+        sortedPoints[i] = points[order[i]];
+        sortedOwners[i] = owners[order[i]];
+      }
+      System.arraycopy(sortedPoints, 0, points, 0, points.length);
+      System.arraycopy(sortedOwners, 0, owners, 0, owners.length);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Contract for doing SRV lookups that also resolve the targets of the records to addresses.
+ */
+public interface DnsEndpointResolver {
+  /**
+   * Does a DNS SRV lookup for the supplied fully qualified domain name, and resolves the target
+   * of each matching record to its IPv4 and IPv6 addresses. A target that has no addresses, or
+   * whose addresses can't be resolved, is left out.
+   *
+   * @param fqdn a DNS name to query for
+   * @return a possibly empty list of endpoints, one per address of each target, in the order of
+   *         the SRV records
+   * @throws DnsException if there was an error doing the DNS lookup
+   */
+  CompletionStage<List<Endpoint>> resolveAsync(String fqdn);
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Contract for doing lookups of DNS records of any of the supported {@link RecordType}s.
+ */
+public interface DnsRecordResolver {
+  /**
+   * Does a DNS lookup of the records of the given type for the supplied fully qualified domain
+   * name, and returns their values.
+   *
+   * @param fqdn a DNS name to query for
+   * @param type the type of records to query for
+   * @param <T>  the type of the values of the records
+   * @return a possibly empty list of the values of the matching records
+   * @throws DnsException if there was an error doing the DNS lookup
+   */
+  <T> CompletionStage<List<T>> resolveAsync(String fqdn, RecordType<T> type);
+}
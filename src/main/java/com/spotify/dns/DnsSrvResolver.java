@@ -16,7 +16,9 @@
 
 package com.spotify.dns;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -48,4 +50,21 @@ public interface DnsSrvResolver {
   default CompletionStage<List<LookupResult>> resolveAsync(String fqdn) {
     throw new java.lang.UnsupportedOperationException("Not implemented");
   }
+
+  /**
+   * Does DNS SRV lookups for all of the supplied fully qualified domain names, using
+   * {@link #resolveAsync(String)}, with at most {@code maxConcurrency} lookups in flight at a
+   * time. A failed lookup doesn't fail the batch: it's passed to the error handler, and the name
+   * is left out of the result.
+   *
+   * @param fqdns          the DNS names to query for
+   * @param maxConcurrency the maximum number of lookups in flight at a time
+   * @param errorHandler   receives the failures of individual lookups
+   * @return the matching records of each name that was resolved successfully, in the order of
+   *         {@code fqdns}
+   */
+  default CompletionStage<Map<String, List<LookupResult>>> resolveAll(
+      Collection<String> fqdns, int maxConcurrency, ErrorHandler errorHandler) {
+    return BatchResolution.resolveAll(this, fqdns, maxConcurrency, errorHandler);
+  }
 }
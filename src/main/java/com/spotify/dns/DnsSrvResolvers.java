@@ -17,15 +17,19 @@
 package com.spotify.dns;
 
 import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import com.spotify.dns.statistics.DnsReporter;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ForkJoinPool;
 
+import org.xbill.DNS.Cache;
 import org.xbill.DNS.ExtendedResolver;
 import org.xbill.DNS.Resolver;
 
@@ -36,6 +40,12 @@ public final class DnsSrvResolvers {
 
   private static final int DEFAULT_DNS_TIMEOUT_SECONDS = 5;
   private static final int DEFAULT_RETENTION_DURATION_HOURS = 2;
+  private static final int DEFAULT_MAX_NEGATIVE_CACHE_TTL_MINUTES = 5;
+  private static final int DEFAULT_SNAPSHOT_INTERVAL_SECONDS = 60;
+  private static final int DEFAULT_SERVER_SCORE_DECAY_SECONDS = 10;
+  private static final double DEFAULT_CIRCUIT_BREAKER_PROBE_FRACTION = 0.05;
+  private static final long DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MILLIS = 200;
+  private static final long DEFAULT_LOOKUP_QUEUE_TIMEOUT_MILLIS = 1000;
 
   public static DnsSrvResolverBuilder newBuilder() {
     return new DnsSrvResolverBuilder();
@@ -50,6 +60,29 @@ public final class DnsSrvResolvers {
     private final long retentionDurationMillis;
     private final List<String> servers;
     private final Executor executor;
+    private final boolean cacheResults;
+    private final long minCacheTtlMillis;
+    private final long maxCacheTtlMillis;
+    private final boolean coalesceLookups;
+    private final long freshnessDurationMillis;
+    private final double refreshAheadFactor;
+    private final boolean cacheNegativeResults;
+    private final long maxNegativeCacheTtlMillis;
+    private final long maxRetainedRecords;
+    private final Path snapshotFile;
+    private final long snapshotIntervalMillis;
+    private final long hedgeDelayMillis;
+    private final double hedgePercentile;
+    private final boolean adaptiveServerSelection;
+    private final long serverScoreDecayMillis;
+    private final int circuitBreakerFailureThreshold;
+    private final double circuitBreakerProbeFraction;
+    private final boolean limitConcurrency;
+    private final long concurrencyLimitLatencyThresholdMillis;
+    private final long lookupQueueTimeoutMillis;
+    private final boolean multiplexUdp;
+    private final boolean pipelineTcp;
+    private final boolean virtualThreads;
 
     private DnsSrvResolverBuilder() {
       this(null,
@@ -58,7 +91,30 @@ public final class DnsSrvResolvers {
            SECONDS.toMillis(DEFAULT_DNS_TIMEOUT_SECONDS),
            HOURS.toMillis(DEFAULT_RETENTION_DURATION_HOURS),
            null,
-           null);
+           null,
+           false,
+           0L,
+           Long.MAX_VALUE,
+           false,
+           0L,
+           0.0,
+           false,
+           MINUTES.toMillis(DEFAULT_MAX_NEGATIVE_CACHE_TTL_MINUTES),
+           RetainingDnsSrvResolver.UNBOUNDED,
+           null,
+           SECONDS.toMillis(DEFAULT_SNAPSHOT_INTERVAL_SECONDS),
+           0L,
+           0.0,
+           false,
+           SECONDS.toMillis(DEFAULT_SERVER_SCORE_DECAY_SECONDS),
+           0,
+           DEFAULT_CIRCUIT_BREAKER_PROBE_FRACTION,
+           false,
+           DEFAULT_CONCURRENCY_LIMIT_LATENCY_THRESHOLD_MILLIS,
+           DEFAULT_LOOKUP_QUEUE_TIMEOUT_MILLIS,
+           false,
+           false,
+           false);
     }
 
     private DnsSrvResolverBuilder(
@@ -68,7 +124,30 @@ public final class DnsSrvResolvers {
         long dnsLookupTimeoutMillis,
         long retentionDurationMillis,
         List<String> servers,
-        Executor executor) {
+        Executor executor,
+        boolean cacheResults,
+        long minCacheTtlMillis,
+        long maxCacheTtlMillis,
+        boolean coalesceLookups,
+        long freshnessDurationMillis,
+        double refreshAheadFactor,
+        boolean cacheNegativeResults,
+        long maxNegativeCacheTtlMillis,
+        long maxRetainedRecords,
+        Path snapshotFile,
+        long snapshotIntervalMillis,
+        long hedgeDelayMillis,
+        double hedgePercentile,
+        boolean adaptiveServerSelection,
+        long serverScoreDecayMillis,
+        int circuitBreakerFailureThreshold,
+        double circuitBreakerProbeFraction,
+        boolean limitConcurrency,
+        long concurrencyLimitLatencyThresholdMillis,
+        long lookupQueueTimeoutMillis,
+        boolean multiplexUdp,
+        boolean pipelineTcp,
+        boolean virtualThreads) {
       this.reporter = reporter;
       this.retainData = retainData;
       this.cacheLookups = cacheLookups;
@@ -76,17 +155,135 @@ public final class DnsSrvResolvers {
       this.retentionDurationMillis = retentionDurationMillis;
       this.servers = servers;
       this.executor = executor;
+      this.cacheResults = cacheResults;
+      this.minCacheTtlMillis = minCacheTtlMillis;
+      this.maxCacheTtlMillis = maxCacheTtlMillis;
+      this.coalesceLookups = coalesceLookups;
+      this.freshnessDurationMillis = freshnessDurationMillis;
+      this.refreshAheadFactor = refreshAheadFactor;
+      this.cacheNegativeResults = cacheNegativeResults;
+      this.maxNegativeCacheTtlMillis = maxNegativeCacheTtlMillis;
+      this.maxRetainedRecords = maxRetainedRecords;
+      this.snapshotFile = snapshotFile;
+      this.snapshotIntervalMillis = snapshotIntervalMillis;
+      this.hedgeDelayMillis = hedgeDelayMillis;
+      this.hedgePercentile = hedgePercentile;
+      this.adaptiveServerSelection = adaptiveServerSelection;
+      this.serverScoreDecayMillis = serverScoreDecayMillis;
+      this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+      this.circuitBreakerProbeFraction = circuitBreakerProbeFraction;
+      this.limitConcurrency = limitConcurrency;
+      this.concurrencyLimitLatencyThresholdMillis = concurrencyLimitLatencyThresholdMillis;
+      this.lookupQueueTimeoutMillis = lookupQueueTimeoutMillis;
+      this.multiplexUdp = multiplexUdp;
+      this.pipelineTcp = pipelineTcp;
+      this.virtualThreads = virtualThreads;
     }
 
     public DnsSrvResolver build() {
+      LookupFactory lookupFactory = lookupFactory();
+
+      if (cacheLookups) {
+        lookupFactory = new CachingLookupFactory(lookupFactory);
+      }
+
+      return srvResolver(lookupFactory);
+    }
+
+    /**
+     * Builds a resolver for records of any {@link RecordType}. All lookups share one lookup
+     * session, and so the same DNS servers, transports, executor and cache. SRV lookups
+     * also go through the same metering, caching, coalescing and retention as the resolvers
+     * returned by {@link #build()}; lookups of other types are metered, and, if
+     * {@link #cachingResults(boolean)} is enabled, cached by the lookup session for as long as
+     * their TTL allows, capped by {@link #maxCacheTtlMillis(long)}.
+     * @return a record resolver
+     */
+    public DnsRecordResolver buildRecordResolver() {
+      final LookupFactory lookupFactory = lookupFactory();
+
+      DnsRecordResolver result = new XBillDnsRecordResolver(lookupFactory);
+
+      if (reporter != null) {
+        result = new MeteredDnsRecordResolver(result, reporter);
+      }
+
+      return new SrvDelegatingDnsRecordResolver(result, srvResolver(lookupFactory));
+    }
+
+    private DnsSrvResolver srvResolver(LookupFactory lookupFactory) {
+      DnsSrvResolver result = new XBillDnsSrvResolver(lookupFactory);
+
+      if (reporter != null) {
+        result = new MeteredDnsSrvResolver(result, reporter);
+      }
+
+      if (limitConcurrency) {
+        result = new ConcurrencyLimitingDnsSrvResolver(result,
+                                                       concurrencyLimitLatencyThresholdMillis,
+                                                       lookupQueueTimeoutMillis, reporter);
+      }
+
+      if (coalesceLookups) {
+        result = new CoalescingDnsSrvResolver(result, reporter);
+      }
+
+      if (cacheResults) {
+        result = new CachingDnsSrvResolver(result, minCacheTtlMillis, maxCacheTtlMillis,
+                                           refreshAheadFactor);
+      }
+
+      if (retainData) {
+        final RetainingDnsSrvResolver retaining =
+            new RetainingDnsSrvResolver(result, retentionDurationMillis, freshnessDurationMillis,
+                                        maxRetainedRecords, reporter);
+        if (snapshotFile != null) {
+          SrvSnapshotFile.restoreAndPersist(snapshotFile, retaining, snapshotIntervalMillis);
+        }
+        result = retaining;
+      }
+
+      return result;
+    }
+
+    /**
+     * Builds a resolver that also resolves the targets of SRV records to addresses, using the
+     * addresses in the additional section of SRV responses when servers include them, and
+     * looking up and caching the addresses of the other targets. The options for DNS servers,
+     * timeouts, transports, executors and negative caching apply to it; the options for caching,
+     * coalescing, retaining and limiting SRV lookups don't.
+     * @return an endpoint resolver
+     */
+    public DnsEndpointResolver buildEndpointResolver() {
+      final Resolver resolver = resolver();
+      final Executor lookupExecutor = lookupExecutor();
+      return new XBillDnsEndpointResolver(
+          resolver, new SimpleLookupFactory(resolver, lookupExecutor, cache()), lookupExecutor);
+    }
+
+    private LookupFactory lookupFactory() {
+      return new SimpleLookupFactory(resolver(), lookupExecutor(), cache());
+    }
+
+    private Resolver resolver() {
       Resolver resolver;
       try {
         // If the user specified DNS servers, create a new ExtendedResolver which uses them.
         // Otherwise, use the default constructor. That will use the servers in ResolverConfig,
-        // or if that's empty, localhost.
-        resolver = servers == null ?
-                   new ExtendedResolver() :
-                   new ExtendedResolver(servers.toArray(new String[0]));
+        // or if that's empty, localhost. Hedging and adaptive server selection use the same
+        // servers, but choose between them differently. Circuit breakers wrap each server, and
+        // the UDP and TCP transport options replace the per-server resolvers.
+        if (hedgeDelayMillis > 0) {
+          resolver = new HedgingResolver(serverResolvers(), hedgeDelayMillis, hedgePercentile);
+        } else if (adaptiveServerSelection) {
+          resolver = new ScoringResolver(serverResolvers(), serverScoreDecayMillis, reporter);
+        } else if (circuitBreakerFailureThreshold > 0 || multiplexUdp || pipelineTcp) {
+          resolver = new ExtendedResolver(serverResolvers());
+        } else {
+          resolver = servers == null ?
+                     new ExtendedResolver() :
+                     new ExtendedResolver(servers.toArray(new String[0]));
+        }
       } catch (UnknownHostException e) {
         throw new RuntimeException(e);
       }
@@ -94,35 +291,72 @@ public final class DnsSrvResolvers {
       // Configure the Resolver to use our timeouts.
       final Duration timeoutDuration = Duration.ofMillis(dnsLookupTimeoutMillis);
       resolver.setTimeout(timeoutDuration);
+      return resolver;
+    }
 
-      LookupFactory lookupFactory = executor == null ? new SimpleLookupFactory(resolver, ForkJoinPool.commonPool()) :
-              new SimpleLookupFactory(resolver, executor);
+    private Executor lookupExecutor() {
+      Executor lookupExecutor = executor;
+      if (lookupExecutor == null && virtualThreads) {
+        lookupExecutor = VirtualThreads.newExecutor("dns-lookup-");
+      }
+      return lookupExecutor != null ? lookupExecutor : ForkJoinPool.commonPool();
+    }
 
-      if (cacheLookups) {
-        lookupFactory = new CachingLookupFactory(lookupFactory);
+    private Cache cache() {
+      if (!cacheNegativeResults && !cacheResults) {
+        return null;
       }
 
-      DnsSrvResolver result = new XBillDnsSrvResolver(lookupFactory);
+      // Positive SRV results are cached by CachingDnsSrvResolver, and the others by the session.
+      return new NonSrvCache(cacheNegativeResults ? maxNegativeCacheTtlMillis : 0,
+                             cacheResults ? maxCacheTtlMillis : 0,
+                             cacheNegativeResults ? reporter : null);
+    }
 
-      if (reporter != null) {
-        result = new MeteredDnsSrvResolver(result, reporter);
+    private List<Resolver> serverResolvers() throws UnknownHostException {
+      final List<Resolver> resolvers =
+          ForwardingResolver.resolversFor(servers, multiplexUdp, pipelineTcp,
+                                          Duration.ofMillis(dnsLookupTimeoutMillis));
+      if (circuitBreakerFailureThreshold <= 0) {
+        return resolvers;
       }
 
-      if (retainData) {
-        result = new RetainingDnsSrvResolver(result, retentionDurationMillis);
+      final List<Resolver> circuitBreakers = new ArrayList<>(resolvers.size());
+      for (Resolver resolver : resolvers) {
+        circuitBreakers.add(new CircuitBreakingResolver(
+            resolver, circuitBreakerFailureThreshold, circuitBreakerProbeFraction, reporter));
       }
-
-      return result;
+      return circuitBreakers;
     }
 
     public DnsSrvResolverBuilder metered(DnsReporter reporter) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     public DnsSrvResolverBuilder retainingDataOnFailures(boolean retainData) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     /**
@@ -132,22 +366,598 @@ public final class DnsSrvResolvers {
     @Deprecated
     public DnsSrvResolverBuilder cachingLookups(boolean cacheLookups) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     public DnsSrvResolverBuilder dnsLookupTimeoutMillis(long dnsLookupTimeoutMillis) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     public DnsSrvResolverBuilder retentionDurationMillis(long retentionDurationMillis) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Bounds the data retained by {@link #retainingDataOnFailures(boolean)} to a maximum total
+     * number of records across all names. Once the bound is reached, a name is only retained if
+     * it has been resolved more often recently than the names it would push out. Defaults to
+     * unbounded.
+     * @param maxRetainedRecords the maximum number of retained records
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder maxRetainedRecords(long maxRetainedRecords) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Persists the data retained by {@link #retainingDataOnFailures(boolean)} to a file, so that
+     * it survives restarts. When the resolver is built, it's preloaded with the data in the file,
+     * if any. The preloaded data is returned by {@link DnsSrvResolver#resolveAsync(String)}
+     * right away, while it's revalidated in the background, so that starting up doesn't have to
+     * wait for DNS. The file is then periodically replaced with the currently retained data.
+     * @param snapshotFile the file to persist retained data to
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder snapshotFile(Path snapshotFile) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets how often the file configured by {@link #snapshotFile(Path)} is written. Defaults to
+     * 60 seconds.
+     * @param snapshotIntervalMillis the snapshot interval in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder snapshotIntervalMillis(long snapshotIntervalMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Enables serving retained data in a stale-while-revalidate fashion. Retained data that is
+     * younger than the given duration is returned without doing a lookup. Older data is still
+     * returned immediately, and refreshed in the background, so that callers never wait for the
+     * DNS lookup once a name has been resolved. Only used if
+     * {@link #retainingDataOnFailures(boolean)} is enabled. Defaults to 0, which disables it.
+     * @param freshnessDurationMillis how long retained data is considered fresh, in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder freshnessDurationMillis(long freshnessDurationMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Runs lookups and their continuations on virtual threads, one per lookup, if the JVM
+     * supports them (Java 21 and later). Otherwise, this has no effect. Many concurrent lookups
+     * then don't contend for a few shared platform threads. Ignored if an
+     * {@link #executor(Executor)} is given. Defaults to false.
+     * @param virtualThreads whether to use virtual threads
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder usingVirtualThreads(boolean virtualThreads) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     public DnsSrvResolverBuilder executor(Executor executor) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-              retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Enables caching of lookup results, shared between all callers of the resolver. An entry
+     * is kept for the lowest TTL among its records, clamped by {@link #minCacheTtlMillis(long)}
+     * and {@link #maxCacheTtlMillis(long)}. Unlike {@link #cachingLookups(boolean)}, this works
+     * with {@link DnsSrvResolver#resolveAsync(String)}.
+     * @param cacheResults whether to cache lookup results
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder cachingResults(boolean cacheResults) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the shortest time a result is cached for, regardless of its TTL. Only used if
+     * {@link #cachingResults(boolean)} is enabled. Defaults to 0.
+     * @param minCacheTtlMillis the minimum cache TTL in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder minCacheTtlMillis(long minCacheTtlMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the longest time a result is cached for, regardless of its TTL. Only used if
+     * {@link #cachingResults(boolean)} is enabled. Defaults to no limit.
+     * @param maxCacheTtlMillis the maximum cache TTL in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder maxCacheTtlMillis(long maxCacheTtlMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Enables refreshing cached results in the background before they expire. Once a result has
+     * been cached for the given fraction of its TTL, the next read of it triggers a new lookup,
+     * provided that the name has been read more than once since the result was cached. Names
+     * that are resolved often will then not see cache misses. Only used if
+     * {@link #cachingResults(boolean)} is enabled. Defaults to 0, which disables it.
+     * @param refreshAheadFactor the fraction of the TTL, in [0, 1), after which to refresh
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder refreshAheadFactor(double refreshAheadFactor) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Enables caching of negative (NXDOMAIN and NODATA) responses, so that repeated lookups of
+     * names that don't exist don't each result in a DNS query. As described in RFC 2308, a
+     * negative response is cached for the lifetime given by the SOA record in its authority
+     * section, capped by {@link #maxNegativeCacheTtlMillis(long)}. If
+     * {@link #metered(DnsReporter)} is used, hits and misses are reported through
+     * {@link DnsReporter#reportNegativeCacheHit()} and
+     * {@link DnsReporter#reportNegativeCacheMiss()}.
+     * @param cacheNegativeResults whether to cache negative responses
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder cachingNegativeResults(boolean cacheNegativeResults) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the longest time a negative response is cached for, regardless of the SOA record
+     * that came with it. Only used if {@link #cachingNegativeResults(boolean)} is enabled.
+     * Defaults to 5 minutes.
+     * @param maxNegativeCacheTtlMillis the maximum negative cache TTL in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder maxNegativeCacheTtlMillis(long maxNegativeCacheTtlMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Makes concurrent calls to {@link DnsSrvResolver#resolveAsync(String)} for the same name
+     * share a single DNS query. If {@link #metered(DnsReporter)} is used, each call that joins a
+     * query already in flight is reported through {@link DnsReporter#reportCoalesced()}.
+     * @param coalesceLookups whether to coalesce concurrent lookups of the same name
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder coalescingLookups(boolean coalesceLookups) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Enables hedged queries. Each query is sent to the first DNS server, and if it hasn't
+     * answered within the given delay, also to the next one, and so on; the first answer is used.
+     * The servers are the ones given to {@link #servers(List)}, or the system's DNS servers.
+     * Disabled by default.
+     * @param hedgeDelayMillis the delay before a query is sent to the next server, or 0 to not
+     *                         hedge queries
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder hedgingDelayMillis(long hedgeDelayMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Makes hedged queries use a percentile of each server's recent response times as the delay
+     * before a query is sent to the next server, instead of a fixed delay. The delay given to
+     * {@link #hedgingDelayMillis(long)} is used until enough response times have been measured.
+     * @param hedgePercentile the percentile to use, for instance 95, or 0 to use a fixed delay
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder hedgingPercentile(double hedgePercentile) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sends each query to the DNS server that has recently been fastest and most reliable,
+     * rather than to the servers in a fixed order. Servers are scored by moving averages of their
+     * response times and error rates, which decay over time so that a server that recovers gets
+     * traffic back. Per-server response times and failures are reported to the
+     * {@link #metered(DnsReporter) reporter}. Ignored if {@link #hedgingDelayMillis(long)
+     * hedging} is enabled. Disabled by default.
+     * @param adaptiveServerSelection true to select servers by their scores
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder adaptiveServerSelection(boolean adaptiveServerSelection) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the time constant of the moving averages used by
+     * {@link #adaptiveServerSelection(boolean)}: after this long without queries, a server's
+     * score has decayed to about a third. Defaults to 10 seconds.
+     * @param serverScoreDecayMillis the decay time constant in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder serverScoreDecayMillis(long serverScoreDecayMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Puts a circuit breaker in front of each DNS server. After the given number of consecutive
+     * failed queries or SERVFAIL responses from a server, queries stop being sent to it and go to
+     * the other servers instead, without waiting for it to time out. A small fraction of queries
+     * are still sent to the server as probes, and once one succeeds, the server is used again.
+     * Circuit breakers opening and closing are reported to the
+     * {@link #metered(DnsReporter) reporter}. Disabled by default.
+     * @param circuitBreakerFailureThreshold the number of consecutive failures that trips a
+     *                                       circuit breaker, or 0 to not use circuit breakers
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder circuitBreakerFailureThreshold(
+        int circuitBreakerFailureThreshold) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the fraction of queries that are sent to a DNS server as probes while its circuit
+     * breaker is open. Only used if {@link #circuitBreakerFailureThreshold(int)} is set.
+     * Defaults to 0.05.
+     * @param circuitBreakerProbeFraction the probe fraction, greater than 0 and at most 1
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder circuitBreakerProbeFraction(double circuitBreakerProbeFraction) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Limits the number of asynchronous lookups in flight. The limit adapts to the latency of the
+     * lookups: it shrinks when lookups fail or are slower than
+     * {@link #concurrencyLimitLatencyThresholdMillis(long)}, and grows while they are fast.
+     * Lookups over the limit wait for at most {@link #lookupQueueTimeoutMillis(long)}, and then
+     * fail, so that they fall back to retained data if {@link #retainingDataOnFailures(boolean)}
+     * is enabled. The limit and the number of waiting lookups are reported to the
+     * {@link #metered(DnsReporter) reporter}. Disabled by default.
+     * @param limitConcurrency true to limit the number of lookups in flight
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder limitingConcurrency(boolean limitConcurrency) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets the latency above which a lookup makes {@link #limitingConcurrency(boolean)} lower the
+     * limit. Defaults to 200 milliseconds.
+     * @param concurrencyLimitLatencyThresholdMillis the latency threshold in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder concurrencyLimitLatencyThresholdMillis(
+        long concurrencyLimitLatencyThresholdMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sets how long a lookup over the limit set by {@link #limitingConcurrency(boolean)} waits
+     * for a lookup in flight to complete, before it fails. With 0, lookups over the limit fail
+     * right away. Defaults to 1 second.
+     * @param lookupQueueTimeoutMillis the queue timeout in milliseconds
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder lookupQueueTimeoutMillis(long lookupQueueTimeoutMillis) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sends UDP queries over a small, fixed set of non-blocking sockets per DNS server, matching
+     * responses to queries by message ID, instead of opening a socket per query. This keeps the
+     * number of sockets constant at high query rates. Truncated responses are still retried over
+     * TCP. The sockets and the thread that serves them are shared by all resolvers built with
+     * the same servers and timeout. Defaults to false.
+     * @param multiplexUdp whether to multiplex UDP queries over shared sockets
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder multiplexingUdp(boolean multiplexUdp) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
+    }
+
+    /**
+     * Sends queries to each DNS server over a persistent TCP connection, pipelining them and
+     * matching responses to queries as described in RFC 7766, instead of over UDP. This avoids
+     * both truncated UDP responses and a TCP handshake per query, which suits large SRV record
+     * sets. Connections are reopened when needed after being closed for idleness, and are shared
+     * by all resolvers built with the same servers and timeout. Combined with
+     * {@link #multiplexingUdp(boolean)}, queries are sent over UDP, and only truncated responses
+     * are retried over the persistent connections. Defaults to false.
+     * @param pipelineTcp whether to send queries over persistent TCP connections
+     * @return this builder
+     */
+    public DnsSrvResolverBuilder pipeliningTcp(boolean pipelineTcp) {
+      return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
 
     /**
@@ -161,7 +971,17 @@ public final class DnsSrvResolvers {
      */
     public DnsSrvResolverBuilder servers(List<String> servers) {
       return new DnsSrvResolverBuilder(reporter, retainData, cacheLookups, dnsLookupTimeoutMillis,
-                                       retentionDurationMillis, servers, executor);
+                                       retentionDurationMillis, servers, executor, cacheResults,
+                                       minCacheTtlMillis, maxCacheTtlMillis, coalesceLookups,
+                                       freshnessDurationMillis, refreshAheadFactor,
+                                       cacheNegativeResults, maxNegativeCacheTtlMillis,
+                                       maxRetainedRecords, snapshotFile, snapshotIntervalMillis,
+                                       hedgeDelayMillis, hedgePercentile, adaptiveServerSelection,
+                                       serverScoreDecayMillis, circuitBreakerFailureThreshold,
+                                       circuitBreakerProbeFraction, limitConcurrency,
+                                       concurrencyLimitLatencyThresholdMillis,
+                                       lookupQueueTimeoutMillis, multiplexUdp, pipelineTcp,
+                                       virtualThreads);
     }
   }
 
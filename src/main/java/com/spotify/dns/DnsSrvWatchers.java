@@ -16,9 +16,11 @@
 
 package com.spotify.dns;
 
+import com.google.common.base.Ticker;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -26,7 +28,9 @@ import java.util.function.Function;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.spotify.dns.ChangeNotifierFactory.RunnableChangeNotifier;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 /**
@@ -103,10 +107,18 @@ public final class DnsSrvWatchers {
 
     private final ScheduledExecutorService scheduledExecutorService;
 
+    private final boolean virtualThreads;
+
+    private final long coalesceWindowMillis;
+    private final long coalesceMaxDelayMillis;
+
+    private final int removalLookups;
+    private final long removalDelayMillis;
+
     private DnsSrvWatcherBuilder(
         DnsSrvResolver resolver,
         Function<LookupResult, T> resultTransformer) {
-      this(resolver, resultTransformer, false, 0, null, null, null, null);
+      this(resolver, resultTransformer, false, 0, null, null, null, null, false, 0, 0, 1, 0);
     }
 
     private DnsSrvWatcherBuilder(
@@ -117,7 +129,12 @@ public final class DnsSrvWatchers {
         TimeUnit pollingIntervalUnit,
         ErrorHandler errorHandler,
         DnsSrvWatcherFactory<T> dnsSrvWatcherFactory,
-        ScheduledExecutorService scheduledExecutorService) {
+        ScheduledExecutorService scheduledExecutorService,
+        boolean virtualThreads,
+        long coalesceWindowMillis,
+        long coalesceMaxDelayMillis,
+        int removalLookups,
+        long removalDelayMillis) {
       this.resolver = resolver;
       this.resultTransformer = resultTransformer;
       this.polling = polling;
@@ -126,12 +143,18 @@ public final class DnsSrvWatchers {
       this.errorHandler = errorHandler;
       this.dnsSrvWatcherFactory = dnsSrvWatcherFactory;
       this.scheduledExecutorService = scheduledExecutorService;
+      this.virtualThreads = virtualThreads;
+      this.coalesceWindowMillis = coalesceWindowMillis;
+      this.coalesceMaxDelayMillis = coalesceMaxDelayMillis;
+      this.removalLookups = removalLookups;
+      this.removalDelayMillis = removalDelayMillis;
     }
 
     public DnsSrvWatcher<T> build() {
       checkState(polling ^ dnsSrvWatcherFactory != null, "specify either polling or custom trigger");
 
       DnsSrvWatcherFactory<T> watcherFactory;
+      final ScheduledExecutorService coalescingScheduler;
       if (polling) {
         final ScheduledExecutorService executor =
             scheduledExecutorService != null
@@ -143,46 +166,159 @@ public final class DnsSrvWatchers {
 
         watcherFactory =
             cnf -> new PollingDnsSrvWatcher<>(cnf, executor, pollingInterval, pollingIntervalUnit);
+        coalescingScheduler = executor;
       } else {
         watcherFactory = requireNonNull(dnsSrvWatcherFactory, "dnsSrvWatcherFactory");
+        coalescingScheduler =
+            scheduledExecutorService != null || coalesceWindowMillis == 0
+            ? scheduledExecutorService
+            : newCoalescingScheduler();
       }
 
-      final ChangeNotifierFactory<T> changeNotifierFactory =
-          fqdn -> new ServiceResolvingChangeNotifier<>(
-              resolver, fqdn, resultTransformer, errorHandler);
+      final Executor callbackExecutor =
+          virtualThreads ? VirtualThreads.newExecutor("dns-watcher-") : null;
+      final ScheduledExecutorService scheduler = coalescingScheduler;
+      final ChangeNotifierFactory<T> changeNotifierFactory = fqdn -> {
+        final RunnableChangeNotifier<T> changeNotifier = new ServiceResolvingChangeNotifier<>(
+            resolver, fqdn, resultTransformer, errorHandler, callbackExecutor, removalLookups,
+            removalDelayMillis, Ticker.systemTicker());
+        if (coalesceWindowMillis == 0) {
+          return changeNotifier;
+        }
+        return new CoalescingChangeNotifier<>(changeNotifier, coalesceWindowMillis,
+                                              coalesceMaxDelayMillis, scheduler);
+      };
 
       return watcherFactory.create(changeNotifierFactory);
     }
 
+    /**
+     * Creates the scheduler that coalesced changes are sent on when there is no polling thread
+     * or executor to use. Listeners without an executor are called on it, so it isn't shared
+     * with the resolvers' timers or other watchers, and its thread goes away when it's idle.
+     */
+    private static ScheduledExecutorService newCoalescingScheduler() {
+      final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+          1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-coalescing-%d").build());
+      scheduler.setRemoveOnCancelPolicy(true);
+      scheduler.setKeepAliveTime(1, MINUTES);
+      scheduler.allowCoreThreadTimeOut(true);
+      return scheduler;
+    }
+
     public DnsSrvWatcherBuilder<T> polling(long pollingInterval, TimeUnit pollingIntervalUnit) {
       checkArgument(pollingInterval > 0);
       requireNonNull(pollingIntervalUnit, "pollingIntervalUnit");
 
       return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, true, pollingInterval,
                                          pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
-                                         scheduledExecutorService);
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         removalLookups, removalDelayMillis);
     }
 
+    /**
+     * Sets the executor to poll on, and to send coalesced changes on if
+     * {@link #coalescingChanges(long, long, TimeUnit)} is used, with polling or a custom trigger.
+     * Defaults to a single thread of the watcher's own.
+     * @param scheduledExecutorService the executor to use
+     * @return this builder
+     */
     public DnsSrvWatcherBuilder<T> usingExecutor(ScheduledExecutorService scheduledExecutorService) {
       return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
                                          pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
-                                         scheduledExecutorService);
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         removalLookups, removalDelayMillis);
+    }
+
+    /**
+     * Handles lookup results, and calls listeners, on virtual threads if the JVM supports them
+     * (Java 21 and later), rather than on the thread that completed the lookup. Otherwise, this
+     * has no effect. Listeners that block then don't hold up the resolver's threads. The polling
+     * schedule itself still runs on a single platform thread. Defaults to false.
+     * @param virtualThreads whether to use virtual threads
+     * @return this builder
+     */
+    public DnsSrvWatcherBuilder<T> usingVirtualThreads(boolean virtualThreads) {
+      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
+                                         pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         removalLookups, removalDelayMillis);
+    }
+
+    /**
+     * Coalesces bursts of changes, such as those seen on every poll during a rolling deploy, into
+     * a single change from the records before the burst to those after it. A change is sent once
+     * no other change has followed it for the length of the window, but no later than the max
+     * delay after the first change of the burst. The first records are sent right away.
+     * Listeners without an executor are then called on the executor given to
+     * {@link #usingExecutor(ScheduledExecutorService)}, or else on the polling thread when polling,
+     * and on a thread of the watcher's own with a custom trigger. Defaults to not coalescing.
+     * @param window   how long to wait for another change before sending a change
+     * @param maxDelay the longest that the first change of a burst is held back, which must not
+     *                 be less than the window
+     * @param unit     the unit of the window and the max delay
+     * @return this builder
+     */
+    public DnsSrvWatcherBuilder<T> coalescingChanges(long window, long maxDelay, TimeUnit unit) {
+      requireNonNull(unit, "unit");
+      checkArgument(window > 0, "window must be positive");
+      checkArgument(maxDelay >= window, "max delay must not be less than the window");
+
+      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
+                                         pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
+                                         scheduledExecutorService, virtualThreads,
+                                         Math.max(unit.toMillis(window), 1),
+                                         Math.max(unit.toMillis(maxDelay), 1),
+                                         removalLookups, removalDelayMillis);
+    }
+
+    /**
+     * Damps removals, so that a record that is missing from a single truncated or partial answer
+     * isn't removed and then added back on the next lookup. A record is removed only once it has
+     * been missing from the given number of successful lookups in a row, and has been missing for
+     * at least the given time. Since records are only removed on lookups, a record can be kept up
+     * to a polling interval longer than that. Additions still take effect right away. Records are
+     * told apart by host and port, so a record whose TTL changes replaces the old one. Defaults to
+     * removing records as soon as they are missing from a lookup.
+     * @param lookups    the lookups in a row a record must be missing from, or 1 to not require
+     *                   more than one
+     * @param minAbsence how long a record must be missing for, or 0 to not require a time
+     * @param unit       the unit of the time
+     * @return this builder
+     */
+    public DnsSrvWatcherBuilder<T> dampingRemovals(int lookups, long minAbsence, TimeUnit unit) {
+      requireNonNull(unit, "unit");
+      checkArgument(lookups > 0, "lookups must be positive");
+      checkArgument(minAbsence >= 0, "min absence must not be negative");
+
+      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
+                                         pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         lookups, unit.toMillis(minAbsence));
     }
 
     public DnsSrvWatcherBuilder<T> customTrigger(DnsSrvWatcherFactory<T> watcherFactory) {
       requireNonNull(watcherFactory, "watcherFactory");
 
-      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, true, pollingInterval,
+      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
                                          pollingIntervalUnit, errorHandler, watcherFactory,
-                                         scheduledExecutorService);
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         removalLookups, removalDelayMillis);
     }
 
     public DnsSrvWatcherBuilder<T> withErrorHandler(ErrorHandler errorHandler) {
       requireNonNull(errorHandler, "errorHandler");
 
-      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, true, pollingInterval,
+      return new DnsSrvWatcherBuilder<T>(resolver, resultTransformer, polling, pollingInterval,
                                          pollingIntervalUnit, errorHandler, dnsSrvWatcherFactory,
-                                         scheduledExecutorService);
+                                         scheduledExecutorService, virtualThreads,
+                                         coalesceWindowMillis, coalesceMaxDelayMillis,
+                                         removalLookups, removalDelayMillis);
     }
   }
 
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Immutable data object with an SRV record and one of the addresses of its target.
+ */
+public class Endpoint {
+
+  private final LookupResult lookupResult;
+  private final InetSocketAddress address;
+  private final long ttl;
+
+  private Endpoint(final LookupResult lookupResult, final InetSocketAddress address,
+                   final long ttl) {
+    this.lookupResult = requireNonNull(lookupResult, "lookupResult");
+    this.address = requireNonNull(address, "address");
+    this.ttl = ttl;
+  }
+
+  /**
+   * @param lookupResult the SRV record
+   * @param address      an address of the target of the record, with the port of the record
+   * @param ttl          the lowest TTL of the SRV record and the address record, in seconds
+   */
+  public static Endpoint create(LookupResult lookupResult, InetSocketAddress address, long ttl) {
+    return new Endpoint(lookupResult, address, ttl);
+  }
+
+  public LookupResult lookupResult() {
+    return lookupResult;
+  }
+
+  public InetSocketAddress address() {
+    return address;
+  }
+
+  public int priority() {
+    return lookupResult.priority();
+  }
+
+  public int weight() {
+    return lookupResult.weight();
+  }
+
+  public long ttl() {
+    return ttl;
+  }
+
+  @Override
+  public boolean equals(final Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+
+    final Endpoint that = (Endpoint) o;
+
+    return ttl == that.ttl
+           && lookupResult.equals(that.lookupResult)
+           && address.equals(that.address);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = lookupResult.hashCode();
+    result = 31 * result + address.hashCode();
+    result = 31 * result + (int) (ttl ^ (ttl >>> 32));
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "Endpoint{" +
+           "lookupResult=" + lookupResult +
+           ", address=" + address +
+           ", ttl=" + ttl +
+           '}';
+  }
+}
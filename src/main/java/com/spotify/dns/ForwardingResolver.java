@@ -0,0 +1,372 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.google.common.base.Throwables.throwIfUnchecked;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import org.xbill.DNS.EDNSOption;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverConfig;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TSIG;
+
+/**
+ * Base class for Resolvers that send queries to one or more per-server resolvers according to
+ * some policy. Configuration, such as timeouts and EDNS settings, is applied to all of the
+ * per-server resolvers, and the synchronous send is implemented on top of
+ * {@link #sendAsync(Message, Executor)}, which is all that subclasses need to implement.
+ */
+abstract class ForwardingResolver implements Resolver {
+  private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+  // Resolvers that hold sockets and threads, shared by server and configuration, so that
+  // building many resolvers doesn't open sockets and start threads for each of them.
+  private static final ConcurrentMap<Transport, Resolver> SHARED = new ConcurrentHashMap<>();
+
+  private final List<Resolver> resolvers;
+  private Duration timeout;
+
+  ForwardingResolver(List<? extends Resolver> resolvers) {
+    Preconditions.checkArgument(!resolvers.isEmpty(), "at least one resolver is required");
+    this.resolvers = ImmutableList.copyOf(resolvers);
+    this.timeout = this.resolvers.get(0).getTimeout();
+  }
+
+  /**
+   * Creates a resolver for each of the given servers, or for each of the servers in the system's
+   * resolver configuration if none are given.
+   *
+   * @param servers host names or addresses of DNS servers (nullable)
+   */
+  static List<Resolver> resolversFor(List<String> servers) throws UnknownHostException {
+    return resolversFor(servers, false, false, DEFAULT_TIMEOUT);
+  }
+
+  /**
+   * Like {@link #resolversFor(List)}, but optionally with a different transport than
+   * {@link SimpleResolver}'s: multiplexed UDP, persistent pipelined TCP connections, or UDP with
+   * truncated responses retried over persistent TCP connections if both are enabled.
+   * Multiplexing and pipelining resolvers are shared by all callers that ask for the same server,
+   * transport and timeout, and stay open for as long as the JVM runs; their threads are daemon
+   * threads that are idle while they aren't used, and TCP connections are closed when idle. Since
+   * they are shared, they can't be reconfigured: setting anything other than what they were
+   * created with throws {@link UnsupportedOperationException}.
+   *
+   * @param servers      host names or addresses of DNS servers (nullable)
+   * @param multiplexUdp whether to send UDP queries over shared, multiplexed channels
+   * @param pipelineTcp  whether to send TCP queries over persistent, pipelined connections
+   * @param timeout      the query timeout
+   */
+  static List<Resolver> resolversFor(List<String> servers, boolean multiplexUdp,
+                                     boolean pipelineTcp, Duration timeout)
+      throws UnknownHostException {
+    final ImmutableList.Builder<InetSocketAddress> addresses = ImmutableList.builder();
+    if (servers != null) {
+      for (String server : servers) {
+        addresses.add(new InetSocketAddress(InetAddress.getByName(server),
+                                            SimpleResolver.DEFAULT_PORT));
+      }
+    } else {
+      addresses.addAll(ResolverConfig.getCurrentConfig().servers());
+    }
+
+    final ImmutableList.Builder<Resolver> resolvers = ImmutableList.builder();
+    for (InetSocketAddress address : addresses.build()) {
+      resolvers.add(resolverFor(address, multiplexUdp, pipelineTcp, timeout));
+    }
+
+    final List<Resolver> result = resolvers.build();
+    // Like ExtendedResolver, fall back to localhost if no servers are configured.
+    return result.isEmpty() ?
+           ImmutableList.of(resolverFor(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                                              SimpleResolver.DEFAULT_PORT),
+                                        multiplexUdp, pipelineTcp, timeout)) :
+           result;
+  }
+
+  private static Resolver resolverFor(InetSocketAddress address, boolean multiplexUdp,
+                                      boolean pipelineTcp, Duration timeout) {
+    if (!multiplexUdp && !pipelineTcp) {
+      final Resolver resolver = new SimpleResolver(address);
+      resolver.setTimeout(timeout);
+      return resolver;
+    }
+
+    return SHARED.computeIfAbsent(new Transport(address, multiplexUdp, pipelineTcp, timeout),
+                                  transport -> new SharedResolver(transport, open(transport)));
+  }
+
+  private static Resolver open(Transport transport) {
+    final Resolver resolver;
+    if (!transport.pipelineTcp) {
+      resolver = new MultiplexedUdpResolver(transport.address);
+    } else if (!transport.multiplexUdp) {
+      resolver = new PipelinedTcpResolver(transport.address);
+    } else {
+      resolver = new MultiplexedUdpResolver(transport.address,
+                                            MultiplexedUdpResolver.DEFAULT_CHANNELS,
+                                            new PipelinedTcpResolver(transport.address));
+    }
+    resolver.setTimeout(transport.timeout);
+    return resolver;
+  }
+
+  List<Resolver> resolvers() {
+    return resolvers;
+  }
+
+  /**
+   * Returns a name for a per-server resolver, for use in logs and metrics.
+   */
+  static String serverName(Resolver resolver) {
+    if (resolver instanceof SimpleResolver) {
+      final InetSocketAddress address = ((SimpleResolver) resolver).getAddress();
+      return address.getHostString() + ":" + address.getPort();
+    }
+    return resolver.toString();
+  }
+
+  /**
+   * Returns true if the response says that the server couldn't answer, rather than giving an
+   * answer, so that another server might.
+   */
+  static boolean isServerFailure(Message response) {
+    final int rcode = response.getRcode();
+    return rcode == Rcode.SERVFAIL || rcode == Rcode.REFUSED;
+  }
+
+  @Override
+  public void setPort(int port) {
+    for (Resolver resolver : resolvers) {
+      resolver.setPort(port);
+    }
+  }
+
+  @Override
+  public void setTCP(boolean flag) {
+    for (Resolver resolver : resolvers) {
+      resolver.setTCP(flag);
+    }
+  }
+
+  @Override
+  public void setIgnoreTruncation(boolean flag) {
+    for (Resolver resolver : resolvers) {
+      resolver.setIgnoreTruncation(flag);
+    }
+  }
+
+  @Override
+  public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+    for (Resolver resolver : resolvers) {
+      resolver.setEDNS(version, payloadSize, flags, options);
+    }
+  }
+
+  @Override
+  public void setTSIGKey(TSIG key) {
+    for (Resolver resolver : resolvers) {
+      resolver.setTSIGKey(key);
+    }
+  }
+
+  @Override
+  public void setTimeout(Duration timeout) {
+    this.timeout = timeout;
+    for (Resolver resolver : resolvers) {
+      resolver.setTimeout(timeout);
+    }
+  }
+
+  @Override
+  public Duration getTimeout() {
+    return timeout;
+  }
+
+  @Override
+  public Message send(Message query) throws IOException {
+    return await(sendAsync(query));
+  }
+
+  /**
+   * Waits for a response, unwrapping the cause of a failure like a synchronous send would throw.
+   */
+  static Message await(CompletionStage<Message> response) throws IOException {
+    try {
+      return response.toCompletableFuture().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof CompletionException && cause.getCause() != null) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query) {
+    return sendAsync(query, ForkJoinPool.commonPool());
+  }
+
+  @Override
+  public abstract CompletionStage<Message> sendAsync(Message query, Executor executor);
+
+  /**
+   * A server and the configuration of a resolver for it.
+   */
+  private static final class Transport {
+    private final InetSocketAddress address;
+    private final boolean multiplexUdp;
+    private final boolean pipelineTcp;
+    private final Duration timeout;
+
+    Transport(InetSocketAddress address, boolean multiplexUdp, boolean pipelineTcp,
+              Duration timeout) {
+      this.address = address;
+      this.multiplexUdp = multiplexUdp;
+      this.pipelineTcp = pipelineTcp;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      final Transport that = (Transport) o;
+      return multiplexUdp == that.multiplexUdp
+             && pipelineTcp == that.pipelineTcp
+             && address.equals(that.address)
+             && timeout.equals(that.timeout);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(address, multiplexUdp, pipelineTcp, timeout);
+    }
+  }
+
+  /**
+   * A resolver shared by everyone who asked for the same transport, which ignores settings that
+   * match those it was created with, and rejects others, so that one user of it can't change the
+   * queries of the others.
+   */
+  private static final class SharedResolver implements Resolver {
+    private final Transport transport;
+    private final Resolver delegate;
+
+    SharedResolver(Transport transport, Resolver delegate) {
+      this.transport = transport;
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void setPort(int port) {
+      check(port == transport.address.getPort(), "port");
+    }
+
+    @Override
+    public void setTCP(boolean flag) {
+      check(!flag || isTcpOnly(), "TCP");
+    }
+
+    @Override
+    public void setIgnoreTruncation(boolean flag) {
+      check(!flag || isTcpOnly(), "truncation handling");
+    }
+
+    @Override
+    public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+      check(false, "EDNS");
+    }
+
+    @Override
+    public void setTSIGKey(TSIG key) {
+      check(key == null, "TSIG key");
+    }
+
+    @Override
+    public void setTimeout(Duration timeout) {
+      check(transport.timeout.equals(timeout), "timeout");
+    }
+
+    @Override
+    public Duration getTimeout() {
+      return delegate.getTimeout();
+    }
+
+    @Override
+    public Message send(Message query) throws IOException {
+      return delegate.send(query);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query) {
+      return delegate.sendAsync(query);
+    }
+
+    @Override
+    public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+      return delegate.sendAsync(query, executor);
+    }
+
+    private boolean isTcpOnly() {
+      return transport.pipelineTcp && !transport.multiplexUdp;
+    }
+
+    private void check(boolean unchanged, String setting) {
+      if (!unchanged) {
+        throw new UnsupportedOperationException(
+            "Can't change the " + setting + " of the shared resolver for " + this);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return delegate.toString();
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A count-min sketch that estimates how often a key has been seen recently. Each key is mapped
+ * to four 4-bit counters, and the sketch has sixteen counters for every key it's sized for, which
+ * keeps collisions rare. Counters saturate at 15, and all counters are halved once the number of
+ * increments reaches ten times the number of keys the sketch was sized for, so that the estimates
+ * reflect recent popularity rather than all-time popularity. Used as the admission filter of a
+ * TinyLFU cache: a new entry is only admitted if it's estimated to be more popular than the one
+ * it replaces.
+ *
+ * <p>Updates are not atomic with respect to each other; concurrent increments may occasionally
+ * be lost, which only makes the estimates slightly less accurate.
+ */
+class FrequencySketch {
+  private static final int[] SEEDS = {0x97cb3127, 0xb5ad4ece, 0x7fe2d1a7, 0x5ac3cbf9};
+  private static final int MAX_COUNT = 15;
+  private static final int MIN_KEYS = 16;
+  private static final int MAX_KEYS = 1 << 24;
+
+  private final AtomicIntegerArray table;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  /**
+   * @param expectedKeys the number of distinct keys that are expected to be tracked
+   */
+  FrequencySketch(int expectedKeys) {
+    Preconditions.checkArgument(expectedKeys > 0,
+                                "expected keys must be positive, was %s", expectedKeys);
+
+    // sixteen counters per key, rounded up to a power of two; each int holds eight of them
+    final int keys = Math.min(Math.max(expectedKeys, MIN_KEYS), MAX_KEYS);
+    final int width = Integer.highestOneBit(keys - 1) << 5;
+    this.table = new AtomicIntegerArray(width >>> 3);
+    this.mask = width - 1;
+    this.sampleSize = 10 * keys;
+  }
+
+  /**
+   * Records an occurrence of the key.
+   */
+  void increment(Object key) {
+    final int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int seed : SEEDS) {
+      added |= incrementAt(indexOf(hash, seed));
+    }
+
+    if (added && ++additions >= sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * Returns the estimated number of recent occurrences of the key, between 0 and 15.
+   */
+  int frequency(Object key) {
+    final int hash = spread(key.hashCode());
+    int frequency = MAX_COUNT;
+    for (int seed : SEEDS) {
+      frequency = Math.min(frequency, countAt(indexOf(hash, seed)));
+    }
+    return frequency;
+  }
+
+  private int indexOf(int hash, int seed) {
+    return spread(hash * seed) & mask;
+  }
+
+  private int countAt(int index) {
+    return (table.get(index >>> 3) >>> shift(index)) & 0xf;
+  }
+
+  private boolean incrementAt(int index) {
+    final int slot = index >>> 3;
+    final int shift = shift(index);
+    while (true) {
+      final int current = table.get(slot);
+      if (((current >>> shift) & 0xf) == MAX_COUNT) {
+        return false;
+      }
+      if (table.compareAndSet(slot, current, current + (1 << shift))) {
+        return true;
+      }
+    }
+  }
+
+  private void reset() {
+    additions = 0;
+    for (int i = 0; i < table.length(); i++) {
+      // halve every counter in the int at once by shifting and masking out the carried bits
+      final int current = table.get(i);
+      table.set(i, (current >>> 1) & 0x77777777);
+    }
+  }
+
+  private static int shift(int index) {
+    return (index & 7) << 2;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Resolver;
+
+/**
+ * A Resolver that sends each query to the first of a list of servers, and hedges it: if no answer
+ * has arrived after a delay, the query is also sent to the next server, and so on. The first
+ * answer wins. If a server fails, or responds with SERVFAIL or REFUSED, the query is sent to the
+ * next server right away. The query only fails if all of the servers fail, and the last SERVFAIL
+ * or REFUSED response, if any, is returned if none of them answers.
+ *
+ * <p>The hedging delay is either fixed, or a percentile of the recent response times of the
+ * server that was queried, so that a duplicate query is only sent when a server is slower than
+ * it usually is. The fixed delay is used until enough response times have been measured.
+ */
+class HedgingResolver extends ForwardingResolver {
+  private static final int LATENCY_SAMPLES = 128;
+  private static final int MIN_LATENCY_SAMPLES = 16;
+
+  private final long hedgeDelayNanos;
+  private final double hedgePercentile;
+  private final LatencyWindow[] latencies;
+
+  /**
+   * @param resolvers        the per-server resolvers, in the order to query them in
+   * @param hedgeDelayMillis the delay before a query is sent to the next server
+   * @param hedgePercentile  the percentile of a server's response times to use as the delay
+   *                         before a query is sent to the next server, or 0 to always use
+   *                         {@code hedgeDelayMillis}
+   */
+  HedgingResolver(List<? extends Resolver> resolvers, long hedgeDelayMillis,
+                  double hedgePercentile) {
+    super(resolvers);
+    Preconditions.checkArgument(hedgeDelayMillis > 0,
+                                "hedge delay must be positive, was %s", hedgeDelayMillis);
+    Preconditions.checkArgument(hedgePercentile >= 0.0 && hedgePercentile < 100.0,
+                                "hedge percentile must be in [0, 100), was %s", hedgePercentile);
+
+    this.hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis);
+    this.hedgePercentile = hedgePercentile;
+    this.latencies = new LatencyWindow[resolvers.size()];
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new LatencyWindow();
+    }
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+    final HedgedQuery hedged = new HedgedQuery(query, executor);
+    hedged.sendNext();
+    return hedged.result;
+  }
+
+  long hedgeDelayNanos(int server) {
+    if (hedgePercentile > 0) {
+      final long percentile = latencies[server].percentile(hedgePercentile);
+      if (percentile >= 0) {
+        return percentile;
+      }
+    }
+    return hedgeDelayNanos;
+  }
+
+  private final class HedgedQuery {
+    private final Message query;
+    private final Executor executor;
+    private final CompletableFuture<Message> result = new CompletableFuture<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile ScheduledFuture<?> hedge;
+    private volatile Throwable lastFailure;
+    private volatile Message lastServerFailure;
+
+    HedgedQuery(Message query, Executor executor) {
+      this.query = query;
+      this.executor = executor;
+    }
+
+    /**
+     * Sends the query to the next server, if there is one and there's no answer yet.
+     *
+     * @return true if the query was sent
+     */
+    boolean sendNext() {
+      pending.incrementAndGet();
+      final int server = next.getAndIncrement();
+      if (server >= resolvers().size() || result.isDone()) {
+        if (pending.decrementAndGet() == 0) {
+          completeExhausted();
+        }
+        return false;
+      }
+
+      if (server + 1 < resolvers().size()) {
+        scheduleHedge(hedgeDelayNanos(server));
+      }
+
+      final long start = System.nanoTime();
+      CompletionStage<Message> response;
+      try {
+        response = resolvers().get(server).sendAsync(query.clone(), executor);
+      } catch (RuntimeException e) {
+        final CompletableFuture<Message> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        response = failed;
+      }
+
+      response.whenComplete((message, e) -> {
+        if (e == null && !isServerFailure(message)) {
+          latencies[server].record(System.nanoTime() - start);
+          result.complete(message);
+          cancelHedge();
+        } else {
+          if (e == null) {
+            lastServerFailure = message;
+          } else {
+            lastFailure = e;
+          }
+          final int stillPending = pending.decrementAndGet();
+          if (!sendNext() && stillPending == 0) {
+            completeExhausted();
+          }
+        }
+      });
+      return true;
+    }
+
+    /**
+     * Completes the query once every server has failed, with the last SERVFAIL or REFUSED
+     * response if there was one, since that is more informative than a failure to get any.
+     */
+    private void completeExhausted() {
+      final Message serverFailure = lastServerFailure;
+      if (serverFailure != null) {
+        result.complete(serverFailure);
+      } else {
+        result.completeExceptionally(lastFailure);
+      }
+    }
+
+    private void scheduleHedge(long delayNanos) {
+      cancelHedge();
+      hedge = SharedScheduler.get().schedule(this::sendNext, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelHedge() {
+      final ScheduledFuture<?> scheduled = hedge;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * The most recent response times of a server.
+   */
+  private static final class LatencyWindow {
+    private final long[] samples = new long[LATENCY_SAMPLES];
+    private int count;
+
+    synchronized void record(long latencyNanos) {
+      samples[count % LATENCY_SAMPLES] = latencyNanos;
+      count++;
+    }
+
+    /**
+     * @return the percentile of the recorded response times, or -1 if too few have been recorded
+     */
+    long percentile(double percentile) {
+      final long[] sorted;
+      synchronized (this) {
+        if (count < MIN_LATENCY_SAMPLES) {
+          return -1;
+        }
+        sorted = Arrays.copyOf(samples, Math.min(count, LATENCY_SAMPLES));
+      }
+      Arrays.sort(sorted);
+      final int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+      return sorted[Math.max(index, 0)];
+    }
+  }
+}
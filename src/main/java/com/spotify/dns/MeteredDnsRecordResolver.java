@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.google.common.base.Throwables.throwIfUnchecked;
+import static java.util.Objects.requireNonNull;
+
+import com.spotify.dns.statistics.DnsReporter;
+import com.spotify.dns.statistics.DnsTimingContext;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Tracks metrics for DnsRecordResolver calls, the same way as {@link MeteredDnsSrvResolver}.
+ */
+class MeteredDnsRecordResolver implements DnsRecordResolver {
+  private final DnsRecordResolver delegate;
+  private final DnsReporter reporter;
+
+  MeteredDnsRecordResolver(DnsRecordResolver delegate, DnsReporter reporter) {
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.reporter = requireNonNull(reporter, "reporter");
+  }
+
+  @Override
+  public <T> CompletionStage<List<T>> resolveAsync(String fqdn, RecordType<T> type) {
+    final DnsTimingContext resolveTimer = reporter.resolveTimer();
+
+    return delegate
+        .resolveAsync(fqdn, type)
+        .handle(
+            (result, error) -> {
+              resolveTimer.stop();
+              if (error == null) {
+                if (result.isEmpty()) {
+                  reporter.reportEmpty();
+                }
+
+                return result;
+              } else {
+                reporter.reportFailure(error);
+                throwIfUnchecked(error);
+                throw new RuntimeException(error);
+              }
+            });
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.EDNSOption;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TSIG;
+
+/**
+ * A Resolver that sends UDP queries to a single DNS server over a small, fixed set of
+ * non-blocking datagram channels, all served by one selector thread. Any number of queries can
+ * be outstanding on a channel at once; responses are matched to queries by their randomly chosen
+ * message ID, and must come from the server and repeat the question of the query, so stray or
+ * spoofed datagrams are dropped. Compared to {@link SimpleResolver}, which opens a socket per
+ * query, this keeps the number of sockets and file descriptors constant under high query rates.
+ *
+ * <p>The channels are bound to different random local ports, so that the source port adds
+ * entropy against spoofing, and a response matching no outstanding query is ignored. Truncated
+ * responses are retried over TCP, and queries are sent over TCP altogether when TCP or TSIG is
+ * configured, using a {@link SimpleResolver} unless another TCP resolver is given.
+ */
+final class MultiplexedUdpResolver implements Resolver, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(MultiplexedUdpResolver.class);
+
+  static final int DEFAULT_CHANNELS = 4;
+
+  private static final int MAX_UDP_SIZE = 65535;
+  private static final int MIN_MESSAGE_SIZE = 12;
+  static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+  private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-udp-selector-%d").build();
+
+  private final int channelCount;
+  private final Resolver tcpResolver;
+  private final Object lock = new Object();
+
+  private volatile InetSocketAddress address;
+  private volatile Duration timeout = DEFAULT_TIMEOUT;
+  private volatile boolean useTcp;
+  private volatile boolean ignoreTruncation;
+  private volatile OPTRecord opt =
+      new OPTRecord(DEFAULT_EDNS_PAYLOAD_SIZE, 0, 0, 0, Collections.emptyList());
+  private volatile TSIG tsig;
+
+  // written while holding lock
+  private Selector selector;
+  private volatile Channel[] channels;
+  private boolean closed;
+
+  MultiplexedUdpResolver(InetSocketAddress address) {
+    this(address, DEFAULT_CHANNELS);
+  }
+
+  MultiplexedUdpResolver(InetSocketAddress address, int channelCount) {
+    this(address, channelCount, tcpResolver(address));
+  }
+
+  /**
+   * @param address      the address of the DNS server
+   * @param channelCount the number of datagram channels to spread queries over
+   * @param tcpResolver  the resolver to use for queries that need to be sent over TCP
+   */
+  MultiplexedUdpResolver(InetSocketAddress address, int channelCount, Resolver tcpResolver) {
+    Preconditions.checkArgument(channelCount > 0,
+                                "channel count must be positive, was %s", channelCount);
+
+    this.address = requireNonNull(address, "address");
+    this.channelCount = channelCount;
+    this.tcpResolver = requireNonNull(tcpResolver, "tcpResolver");
+    this.tcpResolver.setTimeout(timeout);
+  }
+
+  private static Resolver tcpResolver(InetSocketAddress address) {
+    final SimpleResolver resolver = new SimpleResolver(address);
+    resolver.setTCP(true);
+    return resolver;
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public void setPort(int port) {
+    address = new InetSocketAddress(address.getAddress(), port);
+    tcpResolver.setPort(port);
+  }
+
+  @Override
+  public void setTCP(boolean flag) {
+    useTcp = flag;
+  }
+
+  @Override
+  public void setIgnoreTruncation(boolean flag) {
+    ignoreTruncation = flag;
+    tcpResolver.setIgnoreTruncation(flag);
+  }
+
+  @Override
+  public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+    Preconditions.checkArgument(version == -1 || version == 0,
+                                "EDNS version must be -1 or 0, was %s", version);
+    opt = version == -1 ? null : new OPTRecord(
+        payloadSize == 0 ? DEFAULT_EDNS_PAYLOAD_SIZE : payloadSize, 0, version, flags,
+        options == null ? Collections.emptyList() : options);
+    tcpResolver.setEDNS(version, payloadSize, flags, options);
+  }
+
+  @Override
+  public void setTSIGKey(TSIG key) {
+    tsig = key;
+    tcpResolver.setTSIGKey(key);
+  }
+
+  @Override
+  public void setTimeout(Duration timeout) {
+    this.timeout = requireNonNull(timeout, "timeout");
+    tcpResolver.setTimeout(timeout);
+  }
+
+  @Override
+  public Duration getTimeout() {
+    return timeout;
+  }
+
+  @Override
+  public Message send(Message query) throws IOException {
+    return ForwardingResolver.await(sendAsync(query));
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query) {
+    return sendAsync(query, ForkJoinPool.commonPool());
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+    if (useTcp || tsig != null) {
+      return tcpResolver.sendAsync(query, executor);
+    }
+
+    final CompletableFuture<Message> result = new CompletableFuture<>();
+    try {
+      final Channel[] channels = channels();
+      channels[ThreadLocalRandom.current().nextInt(channels.length)]
+          .send(query, result, executor);
+    } catch (IOException | RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  /**
+   * Closes the channels and stops the selector thread. Outstanding queries fail.
+   */
+  @Override
+  public void close() throws IOException {
+    final Channel[] toClose;
+    synchronized (lock) {
+      closed = true;
+      toClose = channels;
+      if (selector != null) {
+        selector.close();
+      }
+    }
+
+    if (toClose != null) {
+      for (Channel channel : toClose) {
+        channel.close();
+      }
+    }
+    if (tcpResolver instanceof Closeable) {
+      ((Closeable) tcpResolver).close();
+    }
+  }
+
+  private Channel[] channels() throws IOException {
+    Channel[] result = channels;
+    if (result != null) {
+      return result;
+    }
+
+    synchronized (lock) {
+      if (closed) {
+        throw new IOException("resolver is closed");
+      }
+      if (channels == null) {
+        channels = open();
+      }
+      return channels;
+    }
+  }
+
+  private Channel[] open() throws IOException {
+    final Selector selector = Selector.open();
+    final Channel[] result = new Channel[channelCount];
+    try {
+      for (int i = 0; i < channelCount; i++) {
+        final DatagramChannel datagramChannel = DatagramChannel.open();
+        result[i] = new Channel(datagramChannel);
+        datagramChannel.configureBlocking(false);
+        datagramChannel.bind(null);
+        datagramChannel.register(selector, SelectionKey.OP_READ, result[i]);
+      }
+    } catch (IOException e) {
+      selector.close();
+      for (Channel channel : result) {
+        if (channel != null) {
+          channel.close();
+        }
+      }
+      throw e;
+    }
+
+    this.selector = selector;
+    THREAD_FACTORY.newThread(() -> select(selector)).start();
+    return result;
+  }
+
+  /**
+   * Runs until the selector is closed. A failure to handle one channel is logged, and doesn't
+   * stop the others or later responses from being received, since the resolver may be shared
+   * for the lifetime of the JVM.
+   */
+  private void select(Selector selector) {
+    while (selector.isOpen()) {
+      try {
+        selector.select();
+        for (SelectionKey key : selector.selectedKeys()) {
+          try {
+            ((Channel) key.attachment()).receive();
+          } catch (IOException | RuntimeException e) {
+            if (e instanceof ClosedSelectorException) {
+              throw e;
+            }
+            LOG.warn("Failed to receive DNS responses from {}", this, e);
+          }
+        }
+        selector.selectedKeys().clear();
+      } catch (ClosedSelectorException e) {
+        // closed, so we're done
+        return;
+      } catch (IOException | RuntimeException e) {
+        LOG.error("DNS selector for {} failed", this, e);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  /**
+   * A datagram channel and the queries outstanding on it.
+   */
+  private final class Channel {
+    private final DatagramChannel datagramChannel;
+    private final PendingQueries pending;
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_UDP_SIZE);
+
+    Channel(DatagramChannel datagramChannel) {
+      this.datagramChannel = datagramChannel;
+      this.pending = new PendingQueries(MultiplexedUdpResolver.this.toString());
+    }
+
+    void send(Message query, CompletableFuture<Message> future, Executor executor)
+        throws IOException {
+      final PendingQueries.Query entry = pending.register(query, future, executor, timeout);
+      try {
+        final InetSocketAddress target = address;
+        final ByteBuffer request = ByteBuffer.wrap(entry.request(opt).toWire());
+        if (datagramChannel.send(request, target) == 0) {
+          throw new IOException("no buffer space to send query to " + target);
+        }
+      } catch (IOException | RuntimeException e) {
+        pending.remove(entry);
+        throw e;
+      }
+    }
+
+    void receive() throws IOException {
+      while (true) {
+        receiveBuffer.clear();
+        final SocketAddress from = datagramChannel.receive(receiveBuffer);
+        if (from == null) {
+          return;
+        }
+        if (!from.equals(address) || receiveBuffer.position() < MIN_MESSAGE_SIZE) {
+          continue;
+        }
+
+        final PendingQueries.Query entry = pending.get(receiveBuffer.getShort(0) & 0xFFFF);
+        if (entry == null) {
+          continue;
+        }
+
+        final Message response;
+        try {
+          response = new Message(Arrays.copyOf(receiveBuffer.array(), receiveBuffer.position()));
+        } catch (IOException e) {
+          LOG.debug("Ignoring malformed response from {}", from, e);
+          continue;
+        }
+
+        if (!PendingQueries.isResponseTo(entry.query(), response) || !pending.remove(entry)) {
+          continue;
+        }
+
+        if (response.getHeader().getFlag(Flags.TC) && !ignoreTruncation) {
+          retryOverTcp(entry);
+        } else {
+          entry.complete(response);
+        }
+      }
+    }
+
+    private void retryOverTcp(PendingQueries.Query entry) {
+      final CompletionStage<Message> tcpResponse;
+      try {
+        tcpResponse = tcpResolver.sendAsync(entry.query(), entry.executor());
+      } catch (RuntimeException e) {
+        entry.fail(e);
+        return;
+      }
+      tcpResponse.whenComplete((response, e) -> {
+        if (e != null) {
+          entry.fail(e);
+        } else {
+          entry.complete(response);
+        }
+      });
+    }
+
+    void close() throws IOException {
+      datagramChannel.close();
+      for (PendingQueries.Query entry : pending.removeAll()) {
+        entry.fail(new IOException("resolver is closed"));
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.concurrent.TimeUnit;
+import org.xbill.DNS.Cache;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.SetResponse;
+import org.xbill.DNS.Type;
+
+/**
+ * A dnsjava {@link Cache} for use with a {@link org.xbill.DNS.lookup.LookupSession} that keeps
+ * everything but SRV records: negative responses (NXDOMAIN and NODATA), and optionally positive
+ * responses of other types. As described in RFC 2308, each negative entry lives for the lifetime given by the SOA
+ * record in the authority section of the response, capped at a configurable maximum. Positive
+ * entries live for their TTL, capped at another maximum. SRV records are never kept, since they
+ * are cached by {@link CachingDnsSrvResolver} if at all, which must see every lookup that it
+ * doesn't answer itself to refresh its entries.
+ */
+class NonSrvCache extends Cache {
+  private final DnsReporter reporter;
+
+  /**
+   * @param maxTtlMillis the longest time to keep a negative entry for
+   * @param reporter     the reporter to notify of negative cache hits and misses (nullable)
+   */
+  NonSrvCache(long maxTtlMillis, DnsReporter reporter) {
+    this(maxTtlMillis, 0, reporter);
+  }
+
+  /**
+   * @param maxTtlMillis         the longest time to keep a negative entry for
+   * @param maxPositiveTtlMillis the longest time to keep a positive entry other than SRV records
+   *                             for, or 0 to not keep them
+   * @param reporter             the reporter to notify of negative cache hits and misses
+   *                             (nullable)
+   */
+  NonSrvCache(long maxTtlMillis, long maxPositiveTtlMillis, DnsReporter reporter) {
+    super(DClass.IN);
+    Preconditions.checkArgument(maxTtlMillis >= 0L,
+                                "max negative TTL must not be negative, was %s", maxTtlMillis);
+    Preconditions.checkArgument(maxPositiveTtlMillis >= 0L,
+                                "max positive TTL must not be negative, was %s",
+                                maxPositiveTtlMillis);
+
+    this.reporter = reporter;
+    setMaxCache(Ints.saturatedCast(TimeUnit.MILLISECONDS.toSeconds(maxPositiveTtlMillis)));
+    setMaxNCache(Ints.saturatedCast(TimeUnit.MILLISECONDS.toSeconds(maxTtlMillis)));
+  }
+
+  @Override
+  public void addRRset(RRset rrset, int cred) {
+    if (rrset.getType() != Type.SRV) {
+      super.addRRset(rrset, cred);
+    }
+  }
+
+  @Override
+  public SetResponse lookupRecords(Name name, int type, int minCred) {
+    final SetResponse response = super.lookupRecords(name, type, minCred);
+    if (reporter != null && (response.isNXDOMAIN() || response.isNXRRSET())) {
+      reporter.reportNegativeCacheHit();
+    }
+    return response;
+  }
+
+  @Override
+  public void addNegative(Name name, int type, SOARecord soa, int cred) {
+    super.addNegative(name, type, soa, cred);
+    if (reporter != null) {
+      reporter.reportNegativeCacheMiss();
+    }
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+
+/**
+ * The queries outstanding on a connection that multiplexes queries, by message ID. Each query is
+ * sent with a randomly chosen ID that is unique among the outstanding queries, and times out
+ * unless a response to it arrives in time.
+ */
+final class PendingQueries {
+  private static final Random RANDOM = new SecureRandom();
+  private static final int MAX_ATTEMPTS_PER_ID = 16;
+
+  private final String server;
+  private final ConcurrentMap<Integer, Query> queries = new ConcurrentHashMap<>();
+
+  /**
+   * @param server the name of the server that queries are sent to, used in error messages
+   */
+  PendingQueries(String server) {
+    this.server = server;
+  }
+
+  /**
+   * Adds an outstanding query with a new ID, which fails with a {@link SocketTimeoutException}
+   * unless it is removed before the timeout.
+   */
+  Query register(Message query, CompletableFuture<Message> future, Executor executor,
+                 Duration timeout) throws IOException {
+    return register(query, future, executor, timeout, false);
+  }
+
+  /**
+   * Like {@link #register(Message, CompletableFuture, Executor, Duration)}, but marks whether
+   * the query may be sent again if the connection fails.
+   */
+  Query register(Message query, CompletableFuture<Message> future, Executor executor,
+                 Duration timeout, boolean mayResend) throws IOException {
+    // The ID space is only 16 bits, so give up rather than spin if it's nearly exhausted.
+    for (int i = 0; i < MAX_ATTEMPTS_PER_ID; i++) {
+      // The entry has its ID before it's published, as a response may be matched to it, and it
+      // may be removed, as soon as it is.
+      final Query entry = new Query(RANDOM.nextInt(0x10000), query, future, executor, mayResend);
+      if (queries.putIfAbsent(entry.id, entry) == null) {
+        entry.timeout = SharedScheduler.get().schedule(
+            () -> expire(entry), timeout.toNanos(), TimeUnit.NANOSECONDS);
+        return entry;
+      }
+    }
+    throw new IOException("too many outstanding queries to " + server);
+  }
+
+  /**
+   * Returns the outstanding query with the given ID, if any.
+   */
+  Query get(int id) {
+    return queries.get(id);
+  }
+
+  /**
+   * Removes an outstanding query, returning true if it was still outstanding.
+   */
+  boolean remove(Query entry) {
+    if (!queries.remove(entry.id, entry)) {
+      return false;
+    }
+
+    final ScheduledFuture<?> timeout = entry.timeout;
+    if (timeout != null) {
+      timeout.cancel(false);
+    }
+    return true;
+  }
+
+  /**
+   * Removes all outstanding queries, returning the ones that were removed.
+   */
+  List<Query> removeAll() {
+    final List<Query> removed = new ArrayList<>();
+    for (Query entry : queries.values()) {
+      if (remove(entry)) {
+        removed.add(entry);
+      }
+    }
+    return removed;
+  }
+
+  boolean isEmpty() {
+    return queries.isEmpty();
+  }
+
+  private void expire(Query entry) {
+    if (queries.remove(entry.id, entry)) {
+      entry.fail(new SocketTimeoutException("query to " + server + " timed out"));
+    }
+  }
+
+  /**
+   * Returns true if the given message is a response to the given query, that is, if it has the
+   * same question. Responses are matched to queries by ID, but the ID alone is easy to guess.
+   */
+  static boolean isResponseTo(Message query, Message response) {
+    if (!response.getHeader().getFlag(Flags.QR)) {
+      return false;
+    }
+
+    final Record question = query.getQuestion();
+    final Record answered = response.getQuestion();
+    if (question == null || answered == null) {
+      return question == answered;
+    }
+
+    return question.getName().equals(answered.getName())
+           && question.getType() == answered.getType()
+           && question.getDClass() == answered.getDClass();
+  }
+
+  static final class Query {
+    private final Message query;
+    private final CompletableFuture<Message> future;
+    private final Executor executor;
+    private final boolean mayResend;
+    private final int id;
+    private volatile ScheduledFuture<?> timeout;
+
+    private Query(int id, Message query, CompletableFuture<Message> future, Executor executor,
+                  boolean mayResend) {
+      this.id = id;
+      this.query = query;
+      this.future = future;
+      this.executor = executor;
+      this.mayResend = mayResend;
+    }
+
+    Message query() {
+      return query;
+    }
+
+    CompletableFuture<Message> future() {
+      return future;
+    }
+
+    Executor executor() {
+      return executor;
+    }
+
+    boolean mayResend() {
+      return mayResend;
+    }
+
+    /**
+     * Returns the message to send for this query: a copy of the query with the ID of this entry,
+     * and the given EDNS record, unless the query already has one.
+     */
+    Message request(OPTRecord opt) {
+      final Message request = query.clone();
+      request.getHeader().setID(id);
+      if (opt != null && request.getOPT() == null) {
+        request.addRecord(opt, Section.ADDITIONAL);
+      }
+      return request;
+    }
+
+    /**
+     * Completes the query with a response, giving the response the ID of the original query.
+     */
+    void complete(Message response) {
+      response.getHeader().setID(query.getHeader().getID());
+      run(() -> future.complete(response));
+    }
+
+    void fail(Throwable failure) {
+      run(() -> future.completeExceptionally(failure));
+    }
+
+    private void run(Runnable completion) {
+      try {
+        executor.execute(completion);
+      } catch (RejectedExecutionException e) {
+        completion.run();
+      }
+    }
+  }
+}
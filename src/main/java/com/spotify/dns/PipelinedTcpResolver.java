@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.EDNSOption;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TSIG;
+
+/**
+ * A Resolver that sends queries to a single DNS server over a persistent TCP connection, as
+ * described in RFC 7766. Queries are pipelined: any number of them can be outstanding on the
+ * connection at once, and responses, which the server may send in any order, are matched to
+ * queries by their randomly chosen message ID and their question. This avoids the handshake of
+ * a new connection per query, which makes TCP viable for responses that don't fit in a UDP
+ * datagram, such as SRV record sets with many targets.
+ *
+ * <p>The connection is opened on the first query, and closed after it has been idle for a while.
+ * If the connection is closed while queries are outstanding, as servers are allowed to do, those
+ * queries are sent again once on a new connection. Queries using TSIG are sent with a
+ * {@link SimpleResolver} instead.
+ */
+final class PipelinedTcpResolver implements Resolver, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(PipelinedTcpResolver.class);
+
+  static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 30_000;
+
+  private static final int MIN_MESSAGE_SIZE = 12;
+  private static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(10);
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-tcp-reader-%d").build();
+  private static final ThreadFactory WRITER_THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-tcp-writer-%d").build();
+
+  private final long idleTimeoutMillis;
+  private final SimpleResolver tsigResolver;
+
+  private volatile InetSocketAddress address;
+  private volatile Duration timeout = DEFAULT_TIMEOUT;
+  private volatile OPTRecord opt = new OPTRecord(
+      MultiplexedUdpResolver.DEFAULT_EDNS_PAYLOAD_SIZE, 0, 0, 0, Collections.emptyList());
+  private volatile TSIG tsig;
+
+  // guarded by this
+  private Connection connection;
+  private boolean closed;
+
+  PipelinedTcpResolver(InetSocketAddress address) {
+    this(address, DEFAULT_IDLE_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * @param address           the address of the DNS server
+   * @param idleTimeoutMillis how long to keep a connection open without outstanding queries
+   */
+  PipelinedTcpResolver(InetSocketAddress address, long idleTimeoutMillis) {
+    Preconditions.checkArgument(idleTimeoutMillis > 0,
+                                "idle timeout must be positive, was %s", idleTimeoutMillis);
+
+    this.address = requireNonNull(address, "address");
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.tsigResolver = new SimpleResolver(address);
+    this.tsigResolver.setTCP(true);
+    this.tsigResolver.setTimeout(timeout);
+  }
+
+  @Override
+  public void setPort(int port) {
+    address = new InetSocketAddress(address.getAddress(), port);
+    tsigResolver.setPort(port);
+
+    // Outstanding queries are sent again on a connection to the new port.
+    final Connection previous;
+    synchronized (this) {
+      previous = connection;
+      connection = null;
+    }
+    if (previous != null) {
+      previous.close(new IOException("port changed"));
+    }
+  }
+
+  @Override
+  public void setTCP(boolean flag) {
+    // always uses TCP
+  }
+
+  @Override
+  public void setIgnoreTruncation(boolean flag) {
+    // responses over TCP are never truncated
+  }
+
+  @Override
+  public void setEDNS(int version, int payloadSize, int flags, List<EDNSOption> options) {
+    Preconditions.checkArgument(version == -1 || version == 0,
+                                "EDNS version must be -1 or 0, was %s", version);
+    opt = version == -1 ? null : new OPTRecord(
+        payloadSize == 0 ? MultiplexedUdpResolver.DEFAULT_EDNS_PAYLOAD_SIZE : payloadSize, 0,
+        version, flags, options == null ? Collections.emptyList() : options);
+    tsigResolver.setEDNS(version, payloadSize, flags, options);
+  }
+
+  @Override
+  public void setTSIGKey(TSIG key) {
+    tsig = key;
+    tsigResolver.setTSIGKey(key);
+  }
+
+  @Override
+  public void setTimeout(Duration timeout) {
+    this.timeout = requireNonNull(timeout, "timeout");
+    tsigResolver.setTimeout(timeout);
+  }
+
+  @Override
+  public Duration getTimeout() {
+    return timeout;
+  }
+
+  @Override
+  public Message send(Message query) throws IOException {
+    return ForwardingResolver.await(sendAsync(query));
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query) {
+    return sendAsync(query, ForkJoinPool.commonPool());
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+    if (tsig != null) {
+      return tsigResolver.sendAsync(query, executor);
+    }
+
+    final CompletableFuture<Message> result = new CompletableFuture<>();
+    send(query, result, executor, true);
+    return result;
+  }
+
+  private void send(Message query, CompletableFuture<Message> result, Executor executor,
+                    boolean mayResend) {
+    try {
+      connection().send(query, result, executor, mayResend);
+    } catch (IOException | RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Closes the connection. Outstanding queries fail.
+   */
+  @Override
+  public void close() {
+    final Connection previous;
+    synchronized (this) {
+      closed = true;
+      previous = connection;
+      connection = null;
+    }
+    if (previous != null) {
+      previous.close(new IOException("resolver is closed"));
+    }
+  }
+
+  private synchronized Connection connection() throws IOException {
+    if (closed) {
+      throw new IOException("resolver is closed");
+    }
+    if (connection == null || connection.isClosed()) {
+      connection = new Connection(address);
+      connection.start();
+    }
+    return connection;
+  }
+
+  private synchronized void closed(Connection closedConnection) {
+    if (connection == closedConnection) {
+      connection = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return address.getHostString() + ":" + address.getPort();
+  }
+
+  /**
+   * A connection and the queries outstanding on it. Queries are put on a queue that a writer
+   * thread writes to the connection, so that sending never blocks the caller, even if the server
+   * stops reading. A reader thread connects, starts the writer, and then reads responses.
+   */
+  private final class Connection {
+    private final InetSocketAddress target;
+    private final PendingQueries pending;
+    private final SocketChannel channel;
+    private final BlockingQueue<ByteBuffer> unsent = new LinkedBlockingQueue<>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean idleCheckScheduled = new AtomicBoolean();
+
+    private volatile Thread writer;
+
+    private volatile long lastUsedNanos = System.nanoTime();
+
+    Connection(InetSocketAddress target) throws IOException {
+      this.target = target;
+      this.pending = new PendingQueries(PipelinedTcpResolver.this.toString());
+      this.channel = SocketChannel.open();
+    }
+
+    void start() {
+      THREAD_FACTORY.newThread(this::run).start();
+      scheduleIdleCheck();
+    }
+
+    boolean isClosed() {
+      return closed.get();
+    }
+
+    void send(Message query, CompletableFuture<Message> future, Executor executor,
+              boolean mayResend) throws IOException {
+      lastUsedNanos = System.nanoTime();
+      final PendingQueries.Query entry =
+          pending.register(query, future, executor, timeout, mayResend);
+
+      final byte[] wire = entry.request(opt).toWire();
+      final ByteBuffer buffer = ByteBuffer.allocate(2 + wire.length);
+      buffer.putShort((short) wire.length).put(wire).flip();
+
+      if (closed.get()) {
+        // The query wasn't written, so it's safe to send it on a new connection.
+        if (pending.remove(entry)) {
+          if (mayResend) {
+            PipelinedTcpResolver.this.send(query, future, executor, false);
+          } else {
+            entry.fail(new IOException("connection to " + target + " is closed"));
+          }
+        }
+        return;
+      }
+
+      // If the connection closes before the query is written, close() sends it again.
+      unsent.add(buffer);
+    }
+
+    private void write() {
+      try {
+        while (!closed.get()) {
+          final ByteBuffer buffer = unsent.take();
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+      } catch (InterruptedException e) {
+        // closed, so we're done
+      } catch (IOException e) {
+        close(e);
+      }
+    }
+
+    private void run() {
+      try {
+        channel.socket().connect(target, (int) Math.min(timeout.toMillis(), Integer.MAX_VALUE));
+        writer = WRITER_THREAD_FACTORY.newThread(this::write);
+        writer.start();
+        if (closed.get()) {
+          writer.interrupt();
+        }
+
+        final ByteBuffer length = ByteBuffer.allocate(2);
+        while (!closed.get()) {
+          length.clear();
+          readFully(length);
+          final ByteBuffer message = ByteBuffer.allocate(length.getShort(0) & 0xFFFF);
+          readFully(message);
+          receive(message.array());
+        }
+      } catch (IOException e) {
+        close(e);
+      } catch (RuntimeException e) {
+        LOG.error("DNS connection to {} failed", target, e);
+        close(new IOException(e));
+      }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer) < 0) {
+          throw new EOFException("connection to " + target + " closed by server");
+        }
+      }
+    }
+
+    private void receive(byte[] data) {
+      if (data.length < MIN_MESSAGE_SIZE) {
+        return;
+      }
+
+      final PendingQueries.Query entry = pending.get(((data[0] & 0xFF) << 8) | (data[1] & 0xFF));
+      if (entry == null) {
+        return;
+      }
+
+      final Message response;
+      try {
+        response = new Message(data);
+      } catch (IOException e) {
+        LOG.debug("Ignoring malformed response from {}", target, e);
+        return;
+      }
+
+      if (PendingQueries.isResponseTo(entry.query(), response) && pending.remove(entry)) {
+        lastUsedNanos = System.nanoTime();
+        entry.complete(response);
+      }
+    }
+
+    private void scheduleIdleCheck() {
+      if (idleCheckScheduled.compareAndSet(false, true)) {
+        SharedScheduler.get().schedule(this::closeIfIdle, idleTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+
+    private void closeIfIdle() {
+      idleCheckScheduled.set(false);
+      if (closed.get()) {
+        return;
+      }
+
+      final long idleNanos = System.nanoTime() - lastUsedNanos;
+      if (pending.isEmpty() && idleNanos >= TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+        close(new IOException("connection to " + target + " was idle"));
+      } else {
+        scheduleIdleCheck();
+      }
+    }
+
+    /**
+     * Closes the connection. Outstanding queries that haven't been sent again before are sent
+     * again on a new connection, unless the resolver is closed; the others fail.
+     */
+    void close(IOException cause) {
+      if (!closed.compareAndSet(false, true)) {
+        return;
+      }
+
+      closed(this);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        LOG.debug("Failed to close connection to {}", target, e);
+      }
+      final Thread currentWriter = writer;
+      if (currentWriter != null) {
+        currentWriter.interrupt();
+      }
+      unsent.clear();
+
+      for (PendingQueries.Query entry : pending.removeAll()) {
+        if (entry.mayResend() && !PipelinedTcpResolver.this.isClosed()) {
+          PipelinedTcpResolver.this.send(entry.query(), entry.future(), entry.executor(), false);
+        } else {
+          entry.fail(cause);
+        }
+      }
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+}
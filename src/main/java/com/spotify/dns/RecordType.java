@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import java.net.InetAddress;
+import java.util.function.Function;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+/**
+ * A type of DNS record that a {@link DnsRecordResolver} can look up, together with the value that
+ * each record of the type is turned into.
+ *
+ * @param <T> the type of the values of the records
+ */
+public final class RecordType<T> {
+
+  /** IPv4 addresses. */
+  public static final RecordType<InetAddress> A =
+      new RecordType<>("A", Type.A, ARecord.class, ARecord::getAddress);
+
+  /** IPv6 addresses. */
+  public static final RecordType<InetAddress> AAAA =
+      new RecordType<>("AAAA", Type.AAAA, AAAARecord.class, AAAARecord::getAddress);
+
+  /** Text records, with the strings of each record joined together. */
+  public static final RecordType<String> TXT =
+      new RecordType<>("TXT", Type.TXT, TXTRecord.class,
+                       record -> String.join("", record.getStrings()));
+
+  /** Canonical names, as fully qualified names. */
+  public static final RecordType<String> CNAME =
+      new RecordType<>("CNAME", Type.CNAME, CNAMERecord.class,
+                       record -> record.getTarget().toString());
+
+  /** Service records, the same as those returned by {@link DnsSrvResolver}. */
+  public static final RecordType<LookupResult> SRV =
+      new RecordType<>("SRV", Type.SRV, SRVRecord.class,
+                       record -> LookupResult.create(record.getTarget().toString(),
+                                                     record.getPort(),
+                                                     record.getPriority(),
+                                                     record.getWeight(),
+                                                     record.getTTL()));
+
+  private final String name;
+  private final int type;
+  private final Function<Record, T> mapper;
+
+  private <R extends Record> RecordType(String name, int type, Class<R> recordClass,
+                                        Function<? super R, T> mapper) {
+    this.name = requireNonNull(name, "name");
+    this.type = type;
+    requireNonNull(recordClass, "recordClass");
+    requireNonNull(mapper, "mapper");
+    this.mapper = record -> recordClass.isInstance(record) ?
+                            mapper.apply(recordClass.cast(record)) :
+                            null;
+  }
+
+  /**
+   * @return the dnsjava {@link Type} of the records
+   */
+  int type() {
+    return type;
+  }
+
+  /**
+   * Returns the value of a record, or null if the record isn't of this type, such as the CNAME
+   * records that lead up to the records of other types.
+   */
+  T valueOf(Record record) {
+    return mapper.apply(record);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
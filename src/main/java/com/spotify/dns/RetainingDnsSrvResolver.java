@@ -20,51 +20,163 @@ import static com.google.common.base.Throwables.throwIfUnchecked;
 import static java.util.Objects.requireNonNull;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableMap;
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A DnsSrvResolver that keeps track of the previous results of a particular query. If
  * available, the previous result is returned in case of a failure, or if a query that used to
  * return valid data starts returning empty results. The purpose is to provide protection against
  * transient failures in the DNS infrastructure. Data is retained for a configurable period of time.
+ *
+ * <p>Optionally, retained data can be served in a stale-while-revalidate fashion: if a freshness
+ * duration is configured, asynchronous lookups are answered directly from the retained data.
+ * Once the data is older than the freshness duration, it is still returned immediately, while a
+ * lookup to refresh it is made in the background.
+ *
+ * <p>The amount of retained data can be bounded by a maximum total number of records. When the
+ * bound is reached, a name is only retained if it has been resolved more often recently than the
+ * entries that it would replace, each picked as the least popular of a random sample (TinyLFU
+ * admission), so that names that are resolved once don't push out the data of names that are
+ * resolved all the time.
+ *
+ * <p>Retained data can be exported and restored, for instance to persist it across restarts.
+ * Restored data is considered stale: it's returned immediately by asynchronous lookups, which
+ * revalidate it in the background, and used as a fallback by synchronous ones. It keeps the age
+ * it was exported with, so that it isn't retained for longer than the retention time in total.
  */
 class RetainingDnsSrvResolver implements DnsSrvResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(RetainingDnsSrvResolver.class);
+
+  static final long UNBOUNDED = Long.MAX_VALUE;
+
+  private static final int MAX_SKETCHED_KEYS = 1 << 16;
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
   private final DnsSrvResolver delegate;
-  private final Cache<String, List<LookupResult>> cache;
+  private final Cache<String, Retained> cache;
+  private final long retentionNanos;
+  private final long freshnessNanos;
+  private final long maxRetainedRecords;
+  private final FrequencySketch sketch;
+  private final DnsReporter reporter;
+  private final Ticker ticker;
+  private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+  private final AtomicLong retainedRecords = new AtomicLong();
+
+  // guarded by admissionLock; the retained names, so that they can be sampled at random
+  private final Object admissionLock = new Object();
+  private final List<String> names = new ArrayList<>();
+  private final Map<String, Integer> nameIndexes = new HashMap<>();
 
   RetainingDnsSrvResolver(DnsSrvResolver delegate, long retentionTimeMillis) {
+    this(delegate, retentionTimeMillis, 0L);
+  }
+
+  RetainingDnsSrvResolver(DnsSrvResolver delegate, long retentionTimeMillis,
+                          long freshnessMillis) {
+    this(delegate, retentionTimeMillis, freshnessMillis, Ticker.systemTicker());
+  }
+
+  RetainingDnsSrvResolver(DnsSrvResolver delegate, long retentionTimeMillis,
+                          long freshnessMillis, Ticker ticker) {
+    this(delegate, retentionTimeMillis, freshnessMillis, UNBOUNDED, null, ticker);
+  }
+
+  RetainingDnsSrvResolver(DnsSrvResolver delegate, long retentionTimeMillis,
+                          long freshnessMillis, long maxRetainedRecords, DnsReporter reporter) {
+    this(delegate, retentionTimeMillis, freshnessMillis, maxRetainedRecords, reporter,
+         Ticker.systemTicker());
+  }
+
+  /**
+   * @param delegate            the resolver to retain results from
+   * @param retentionTimeMillis how long to retain results for
+   * @param freshnessMillis     how long retained results are served without a lookup, or 0 to
+   *                            always look up
+   * @param maxRetainedRecords  the maximum total number of records to retain, or
+   *                            {@link #UNBOUNDED}
+   * @param reporter            the reporter to notify of retention hits, misses and evictions
+   *                            (nullable)
+   * @param ticker              the time source
+   */
+  RetainingDnsSrvResolver(DnsSrvResolver delegate, long retentionTimeMillis,
+                          long freshnessMillis, long maxRetainedRecords, DnsReporter reporter,
+                          Ticker ticker) {
     Preconditions.checkArgument(retentionTimeMillis > 0L,
                                 "retention time must be positive, was %d", retentionTimeMillis);
+    Preconditions.checkArgument(freshnessMillis >= 0L,
+                                "freshness must not be negative, was %d", freshnessMillis);
+    Preconditions.checkArgument(maxRetainedRecords > 0L,
+                                "max retained records must be positive, was %d",
+                                maxRetainedRecords);
 
     this.delegate = requireNonNull(delegate, "delegate");
-    cache = CacheBuilder.newBuilder()
+    this.retentionNanos = TimeUnit.MILLISECONDS.toNanos(retentionTimeMillis);
+    this.freshnessNanos = TimeUnit.MILLISECONDS.toNanos(freshnessMillis);
+    this.maxRetainedRecords = maxRetainedRecords;
+    this.reporter = reporter;
+    this.ticker = requireNonNull(ticker, "ticker");
+
+    CacheBuilder<String, Retained> builder = CacheBuilder.newBuilder()
         .expireAfterWrite(retentionTimeMillis, TimeUnit.MILLISECONDS)
-        .build();
+        .ticker(ticker)
+        .removalListener(this::onRemoval);
+
+    if (maxRetainedRecords != UNBOUNDED) {
+      // A single segment, so that the bound applies to the cache as a whole rather than to
+      // each segment, and matches the weight tracked for admission.
+      builder = builder
+          .maximumWeight(maxRetainedRecords)
+          .weigher((fqdn, retained) -> weight(retained.nodes))
+          .concurrencyLevel(1);
+      sketch = new FrequencySketch((int) Math.min(maxRetainedRecords, MAX_SKETCHED_KEYS));
+    } else {
+      sketch = null;
+    }
+
+    cache = builder.build();
   }
 
   @Override
   public List<LookupResult> resolve(final String fqdn) {
     requireNonNull(fqdn, "fqdn");
+    recordAccess(fqdn);
 
     try {
       final List<LookupResult> nodes = delegate.resolve(fqdn);
 
       // No nodes resolved? Return stale data.
       if (nodes.isEmpty()) {
-        List<LookupResult> cached = cache.getIfPresent(fqdn);
+        List<LookupResult> cached = getRetained(fqdn);
         return (cached != null) ? cached : nodes;
       }
 
-      cache.put(fqdn, nodes);
+      retain(fqdn, nodes);
 
       return nodes;
     } catch (Exception e) {
-      if (cache.getIfPresent(fqdn) != null) {
-        return cache.getIfPresent(fqdn);
+      final List<LookupResult> cached = getRetained(fqdn);
+      if (cached != null) {
+        return cached;
       }
 
       throwIfUnchecked(e);
@@ -75,20 +187,41 @@ class RetainingDnsSrvResolver implements DnsSrvResolver {
   @Override
   public CompletionStage<List<LookupResult>> resolveAsync(final String fqdn) {
     requireNonNull(fqdn, "fqdn");
+    recordAccess(fqdn);
+
+    final Retained retained = getIfRetained(fqdn);
+    if (retained != null && (retained.stale || freshnessNanos > 0)) {
+      reportRetained(true);
+      if (retained.stale || ticker.read() - retained.retainedAtNanos >= freshnessNanos) {
+        refreshInBackground(fqdn);
+      }
+      return CompletableFuture.completedFuture(retained.nodes);
+    }
+    if (freshnessNanos > 0) {
+      // reported once here, so the fallback to retained data doesn't report it again
+      reportRetained(false);
+      return lookup(fqdn, false);
+    }
+
+    return lookup(fqdn, true);
+  }
+
+  private CompletionStage<List<LookupResult>> lookup(final String fqdn, final boolean report) {
     return delegate.resolveAsync(fqdn).handle((nodes, e) -> {
       if (e == null){
         // No nodes resolved? Return stale data.
         if (nodes.isEmpty()) {
-          List<LookupResult> cached = cache.getIfPresent(fqdn);
+          List<LookupResult> cached = getRetained(fqdn, report);
           return (cached != null) ? cached : nodes;
         }
   
-        cache.put(fqdn, nodes);
+        retain(fqdn, nodes);
   
         return nodes;
       } else{
-        if (cache.getIfPresent(fqdn) != null) {
-          return cache.getIfPresent(fqdn);
+        final List<LookupResult> cached = getRetained(fqdn, report);
+        if (cached != null) {
+          return cached;
         }
   
         throwIfUnchecked(e);
@@ -96,4 +229,275 @@ class RetainingDnsSrvResolver implements DnsSrvResolver {
       }
     });
   }
+
+  private void refreshInBackground(final String fqdn) {
+    if (!refreshing.add(fqdn)) {
+      return;
+    }
+
+    // Not through lookup(), which would report the retained data as used a second time.
+    try {
+      delegate.resolveAsync(fqdn).whenComplete((nodes, e) -> {
+        if (e == null && !nodes.isEmpty()) {
+          retain(fqdn, nodes);
+        }
+        refreshing.remove(fqdn);
+      });
+    } catch (RuntimeException e) {
+      refreshing.remove(fqdn);
+      LOG.warn("Failed to refresh retained data for '{}'", fqdn, e);
+    }
+  }
+
+  private List<LookupResult> getRetained(String fqdn) {
+    return getRetained(fqdn, true);
+  }
+
+  private List<LookupResult> getRetained(String fqdn, boolean report) {
+    final Retained retained = getIfRetained(fqdn);
+    if (report) {
+      reportRetained(retained != null);
+    }
+    return retained != null ? retained.nodes : null;
+  }
+
+  /**
+   * Returns the retained data for a name, unless there is none or it's older than the retention
+   * time. The cache only expires data by when it was put into it, while restored data may have
+   * been retained before that.
+   */
+  private Retained getIfRetained(String fqdn) {
+    final Retained retained = cache.getIfPresent(fqdn);
+    if (retained != null && ticker.read() - retained.retainedAtNanos >= retentionNanos) {
+      cache.asMap().remove(fqdn, retained);
+      return null;
+    }
+    return retained;
+  }
+
+  /**
+   * Returns the currently retained data, with how long ago each name's data was retained.
+   */
+  Map<String, RetainedRecords> export() {
+    final long now = ticker.read();
+    final ImmutableMap.Builder<String, RetainedRecords> exported = ImmutableMap.builder();
+    for (Map.Entry<String, Retained> entry : cache.asMap().entrySet()) {
+      final long ageNanos = now - entry.getValue().retainedAtNanos;
+      if (ageNanos < retentionNanos) {
+        exported.put(entry.getKey(), new RetainedRecords(
+            entry.getValue().nodes, TimeUnit.NANOSECONDS.toMillis(ageNanos)));
+      }
+    }
+    return exported.build();
+  }
+
+  /**
+   * Retains the given exported data as stale, for names that don't have any retained data yet.
+   * Data that is older than the retention time is skipped, and the rest is retained for what is
+   * left of it.
+   */
+  void restore(Map<String, RetainedRecords> data) {
+    final long now = ticker.read();
+    for (Map.Entry<String, RetainedRecords> entry : data.entrySet()) {
+      final RetainedRecords records = entry.getValue();
+      final long ageNanos = TimeUnit.MILLISECONDS.toNanos(records.ageMillis());
+      if (!records.nodes().isEmpty() && ageNanos < retentionNanos
+          && !cache.asMap().containsKey(entry.getKey())) {
+        retain(entry.getKey(), records.nodes(), now - ageNanos, true);
+      }
+    }
+  }
+
+  private void retain(String fqdn, List<LookupResult> nodes) {
+    retain(fqdn, nodes, ticker.read(), false);
+  }
+
+  private void retain(String fqdn, List<LookupResult> nodes, long retainedAtNanos,
+                      boolean stale) {
+    if (sketch == null) {
+      put(fqdn, nodes, retainedAtNanos, stale);
+      return;
+    }
+
+    synchronized (admissionLock) {
+      if (!admit(fqdn, nodes)) {
+        LOG.debug("Not retaining data for '{}', as it doesn't fit the retained record budget",
+                  fqdn);
+        return;
+      }
+
+      put(fqdn, nodes, retainedAtNanos, stale);
+      if (!nameIndexes.containsKey(fqdn)) {
+        nameIndexes.put(fqdn, names.size());
+        names.add(fqdn);
+      }
+    }
+  }
+
+  private void put(String fqdn, List<LookupResult> nodes, long retainedAtNanos,
+                   boolean stale) {
+    cache.put(fqdn, new Retained(nodes, retainedAtNanos, stale));
+    retainedRecords.addAndGet(weight(nodes));
+  }
+
+  /**
+   * Decides whether to retain data for a name once the record budget is exhausted. As long as the
+   * data doesn't fit, the least popular of a random sample of the other retained names is picked,
+   * and evicted if the new name is more popular, or else the new data is rejected. Updates for a
+   * name that is already retained skip the popularity check, since keeping its old data instead
+   * would serve records that are known to be outdated; if the update can't fit at all, the name
+   * is dropped. The data always fits once admitted, so that the cache never evicts past this
+   * check.
+   */
+  private boolean admit(String fqdn, List<LookupResult> nodes) {
+    final Retained current = cache.getIfPresent(fqdn);
+    final long needed = weight(nodes) - (current != null ? weight(current.nodes) : 0);
+    if (weight(nodes) > maxRetainedRecords) {
+      if (current != null) {
+        cache.invalidate(fqdn);
+        forget(fqdn);
+      }
+      return false;
+    }
+
+    final int frequency = sketch.frequency(fqdn);
+    while (retainedRecords.get() + needed > maxRetainedRecords) {
+      final String victim = sampleVictim(fqdn);
+      if (victim == null || (current == null && frequency <= sketch.frequency(victim))) {
+        return false;
+      }
+
+      cache.invalidate(victim);
+      // in case another thread removed it, and hasn't been notified yet
+      forget(victim);
+      if (reporter != null) {
+        reporter.reportRetentionEviction();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the least popular of a random sample of the retained names other than the given one,
+   *     or null if there are none
+   */
+  private String sampleVictim(String fqdn) {
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    String victim = null;
+    int victimFrequency = Integer.MAX_VALUE;
+    for (int i = 0; i < EVICTION_SAMPLE_SIZE && names.size() > 1; i++) {
+      final String name = names.get(random.nextInt(names.size()));
+      final int frequency = sketch.frequency(name);
+      if (!name.equals(fqdn) && frequency < victimFrequency) {
+        victim = name;
+        victimFrequency = frequency;
+      }
+    }
+    if (victim == null && names.size() == 1 && !names.get(0).equals(fqdn)) {
+      victim = names.get(0);
+    }
+    return victim;
+  }
+
+  private void forget(String fqdn) {
+    synchronized (admissionLock) {
+      final Integer index = nameIndexes.remove(fqdn);
+      if (index == null) {
+        return;
+      }
+
+      // move the last name into the gap, so that removal takes constant time
+      final String last = names.remove(names.size() - 1);
+      if (index < names.size()) {
+        names.set(index, last);
+        nameIndexes.put(last, index);
+      }
+    }
+  }
+
+  private void recordAccess(String fqdn) {
+    if (sketch != null) {
+      sketch.increment(fqdn);
+    }
+  }
+
+  private void onRemoval(RemovalNotification<String, Retained> notification) {
+    retainedRecords.addAndGet(-weight(notification.getValue().nodes));
+    if (sketch != null && notification.getCause() != RemovalCause.REPLACED) {
+      forget(notification.getKey());
+    }
+    if (reporter != null && notification.getCause() == RemovalCause.SIZE) {
+      reporter.reportRetentionEviction();
+    }
+  }
+
+  private void reportRetained(boolean hit) {
+    if (reporter != null) {
+      if (hit) {
+        reporter.reportRetentionHit();
+      } else {
+        reporter.reportRetentionMiss();
+      }
+    }
+  }
+
+  private static int weight(List<LookupResult> nodes) {
+    return Math.max(nodes.size(), 1);
+  }
+
+  private static final class Retained {
+    private final List<LookupResult> nodes;
+    private final long retainedAtNanos;
+    private final boolean stale;
+
+    Retained(List<LookupResult> nodes, long retainedAtNanos, boolean stale) {
+      this.nodes = nodes;
+      this.retainedAtNanos = retainedAtNanos;
+      this.stale = stale;
+    }
+  }
+
+  /**
+   * Retained records, as exported for a snapshot, with how long ago they were retained.
+   */
+  static final class RetainedRecords {
+    private final List<LookupResult> nodes;
+    private final long ageMillis;
+
+    RetainedRecords(List<LookupResult> nodes, long ageMillis) {
+      this.nodes = requireNonNull(nodes, "nodes");
+      this.ageMillis = ageMillis;
+    }
+
+    List<LookupResult> nodes() {
+      return nodes;
+    }
+
+    long ageMillis() {
+      return ageMillis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+
+      final RetainedRecords that = (RetainedRecords) o;
+      return ageMillis == that.ageMillis && nodes.equals(that.nodes);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * nodes.hashCode() + (int) (ageMillis ^ (ageMillis >>> 32));
+    }
+
+    @Override
+    public String toString() {
+      return "RetainedRecords{nodes=" + nodes + ", ageMillis=" + ageMillis + '}';
+    }
+  }
 }
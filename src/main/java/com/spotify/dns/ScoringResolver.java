@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.spotify.dns.statistics.DnsReporter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Resolver;
+
+/**
+ * A Resolver that sends each query to the server that currently has the lowest cost, and on
+ * failure to the one with the next lowest cost, and so on. The cost of a server is an
+ * exponentially weighted moving average (EWMA) of its response times, multiplied by a penalty
+ * that grows with the EWMA of its error rate. Failed queries and SERVFAIL and REFUSED responses
+ * count as errors, and as taking as long as the query timeout, so that a server that fails fast
+ * doesn't look fast. They are also retried on the next server; if all servers fail, the last
+ * response is returned, or the last error thrown.
+ *
+ * <p>The averages are weighted by time rather than by number of samples, and decay towards zero
+ * while a server isn't queried. A server that was avoided because it was slow or failing will
+ * therefore eventually look cheap enough to be queried again, and get traffic back if it has
+ * recovered. Latency spikes, responses slower than the decayed average, are taken into account
+ * immediately, rather than averaged in.
+ */
+class ScoringResolver extends ForwardingResolver {
+  private static final double ERROR_PENALTY = 10.0;
+  private static final long DEFAULT_FAILURE_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+  private final Score[] scores;
+  private final String[] names;
+  private final DnsReporter reporter;
+  private final Ticker ticker;
+
+  ScoringResolver(List<? extends Resolver> resolvers, long decayMillis, DnsReporter reporter) {
+    this(resolvers, decayMillis, reporter, Ticker.systemTicker());
+  }
+
+  /**
+   * @param resolvers   the per-server resolvers
+   * @param decayMillis the time constant of the moving averages; after this long without
+   *                    queries, a server's cost has decayed to about a third
+   * @param reporter    the reporter to notify of per-server response times and failures
+   *                    (nullable)
+   * @param ticker      the time source
+   */
+  ScoringResolver(List<? extends Resolver> resolvers, long decayMillis, DnsReporter reporter,
+                  Ticker ticker) {
+    super(resolvers);
+    Preconditions.checkArgument(decayMillis > 0, "decay must be positive, was %s", decayMillis);
+
+    this.reporter = reporter;
+    this.ticker = requireNonNull(ticker, "ticker");
+    this.scores = new Score[resolvers.size()];
+    this.names = new String[resolvers.size()];
+    final double decayNanos = TimeUnit.MILLISECONDS.toNanos(decayMillis);
+    for (int i = 0; i < scores.length; i++) {
+      scores[i] = new Score(decayNanos, ticker.read());
+      names[i] = serverName(resolvers.get(i));
+    }
+  }
+
+  @Override
+  public CompletionStage<Message> sendAsync(Message query, Executor executor) {
+    final CompletableFuture<Message> result = new CompletableFuture<>();
+    send(query, executor, serversByCost(), 0, result);
+    return result;
+  }
+
+  /**
+   * Returns the indexes of the servers, cheapest first.
+   */
+  List<Integer> serversByCost() {
+    final double[] costs = new double[scores.length];
+    final List<Integer> servers = new ArrayList<>(scores.length);
+    for (int i = 0; i < scores.length; i++) {
+      costs[i] = cost(i);
+      servers.add(i);
+    }
+    servers.sort(Comparator.comparingDouble(server -> costs[server]));
+    return servers;
+  }
+
+  /**
+   * Returns the current cost of a server, in nanoseconds.
+   */
+  double cost(int server) {
+    return scores[server].cost(ticker.read());
+  }
+
+  private void send(Message query, Executor executor, List<Integer> servers, int attempt,
+                    CompletableFuture<Message> result) {
+    final int server = servers.get(attempt);
+    final long start = ticker.read();
+
+    CompletionStage<Message> response;
+    try {
+      response = resolvers().get(server).sendAsync(query.clone(), executor);
+    } catch (RuntimeException e) {
+      final CompletableFuture<Message> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      response = failed;
+    }
+
+    response.whenComplete((message, e) -> {
+      final long end = ticker.read();
+      final boolean failed = e != null || isServerFailure(message);
+      final long latency = failed ? Math.max(end - start, failureLatencyNanos()) : end - start;
+      scores[server].update(latency, failed, end);
+
+      if (reporter != null) {
+        if (failed) {
+          reporter.reportServerFailure(names[server]);
+        } else {
+          reporter.reportServerResponse(names[server], end - start);
+        }
+      }
+
+      if (failed && attempt + 1 < servers.size()) {
+        send(query, executor, servers, attempt + 1, result);
+      } else if (e == null) {
+        result.complete(message);
+      } else {
+        result.completeExceptionally(e);
+      }
+    });
+  }
+
+  private long failureLatencyNanos() {
+    final Duration timeout = getTimeout();
+    return timeout != null ? timeout.toNanos() : DEFAULT_FAILURE_LATENCY_NANOS;
+  }
+
+  /**
+   * The moving averages of the response time and error rate of a server.
+   */
+  private static final class Score {
+    private final double decayNanos;
+    private double latencyNanos;
+    private double errorRate;
+    private long updatedAtNanos;
+
+    Score(double decayNanos, long nowNanos) {
+      this.decayNanos = decayNanos;
+      this.updatedAtNanos = nowNanos;
+    }
+
+    synchronized void update(long latencyNanos, boolean failed, long nowNanos) {
+      final double weight = weight(nowNanos);
+      // Peak EWMA: a response that is slower than the average, as decayed since the last update,
+      // replaces it outright.
+      final double decayedNanos = this.latencyNanos * weight;
+      this.latencyNanos = latencyNanos > decayedNanos
+                          ? latencyNanos
+                          : decayedNanos + latencyNanos * (1 - weight);
+      this.errorRate = errorRate * weight + (failed ? 1 - weight : 0);
+      this.updatedAtNanos = nowNanos;
+    }
+
+    synchronized double cost(long nowNanos) {
+      final double weight = weight(nowNanos);
+      return latencyNanos * weight * (1 + ERROR_PENALTY * errorRate * weight);
+    }
+
+    private double weight(long nowNanos) {
+      return Math.exp(-Math.max(nowNanos - updatedAtNanos, 0) / decayNanos);
+    }
+  }
+}
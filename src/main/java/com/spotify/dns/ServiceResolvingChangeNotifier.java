@@ -18,8 +18,18 @@ package com.spotify.dns;
 
 import static java.util.Objects.requireNonNull;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +38,13 @@ import org.slf4j.LoggerFactory;
  * A {@link ChangeNotifier} that resolves and provides records using a {@link DnsSrvResolver}.
  *
  * <p>The records are refreshable when {@link #run()} is called.
+ *
+ * <p>Removals can be damped, so that a record that is missing from a single truncated or partial
+ * answer isn't removed and then added back on the next lookup. A record is then only removed once
+ * it has been missing from a number of lookups in a row, and for a minimum time. Additions still
+ * take effect right away. Records are told apart by the host and port they were looked up as, so
+ * a record whose TTL, priority or weight changes is replaced rather than kept next to its new
+ * version.
  */
 class ServiceResolvingChangeNotifier<T> extends AbstractChangeNotifier<T>
     implements ChangeNotifierFactory.RunnableChangeNotifier<T> {
@@ -39,6 +56,16 @@ class ServiceResolvingChangeNotifier<T> extends AbstractChangeNotifier<T>
   private final Function<LookupResult, T> resultTransformer;
 
   private final ErrorHandler errorHandler;
+  private final Executor executor;
+
+  private final int removalLookups;
+  private final long removalDelayNanos;
+  private final Ticker ticker;
+
+  // guarded by this; the host and port of each record, and of those that are kept although they
+  // were missing from the last lookup
+  private Map<T, String> recordKeys = Collections.emptyMap();
+  private final Map<String, Absence> absences = new HashMap<>();
 
   private volatile Set<T> records = ChangeNotifiers.initialEmptyDataInstance();
   private volatile boolean waitingForFirstEvent = true;
@@ -64,11 +91,56 @@ class ServiceResolvingChangeNotifier<T> extends AbstractChangeNotifier<T>
                                  final String fqdn,
                                  final Function<LookupResult, T> resultTransformer,
                                  final ErrorHandler errorHandler) {
+    this(resolver, fqdn, resultTransformer, errorHandler, null);
+  }
+
+  /**
+   * Like {@link #ServiceResolvingChangeNotifier(DnsSrvResolver, String, Function, ErrorHandler)},
+   * but handles lookup results, and so notifies listeners, on the given executor rather than on
+   * the thread that completes the lookup.
+   *
+   * @param executor            The executor to handle lookup results on (nullable)
+   */
+  ServiceResolvingChangeNotifier(final DnsSrvResolver resolver,
+                                 final String fqdn,
+                                 final Function<LookupResult, T> resultTransformer,
+                                 final ErrorHandler errorHandler,
+                                 final Executor executor) {
+    this(resolver, fqdn, resultTransformer, errorHandler, executor, 1, 0, Ticker.systemTicker());
+  }
+
+  /**
+   * Like {@link #ServiceResolvingChangeNotifier(DnsSrvResolver, String, Function, ErrorHandler,
+   * Executor)}, but damps removals: a record is removed only once it has been missing from
+   * {@code removalLookups} successful lookups in a row, and has been missing for at least
+   * {@code removalDelayMillis}.
+   *
+   * @param removalLookups      the lookups in a row a record must be missing from, or 1 to not
+   *                            require more than one
+   * @param removalDelayMillis  how long a record must be missing for, or 0 to not require a time
+   * @param ticker              the time source
+   */
+  ServiceResolvingChangeNotifier(final DnsSrvResolver resolver,
+                                 final String fqdn,
+                                 final Function<LookupResult, T> resultTransformer,
+                                 final ErrorHandler errorHandler,
+                                 final Executor executor,
+                                 final int removalLookups,
+                                 final long removalDelayMillis,
+                                 final Ticker ticker) {
+    Preconditions.checkArgument(removalLookups > 0,
+                                "removal lookups must be positive, was %s", removalLookups);
+    Preconditions.checkArgument(removalDelayMillis >= 0,
+                                "removal delay must not be negative, was %s", removalDelayMillis);
 
     this.resolver = requireNonNull(resolver, "resolver");
     this.fqdn = requireNonNull(fqdn, "fqdn");
     this.resultTransformer = requireNonNull(resultTransformer, "resultTransformer");
     this.errorHandler = errorHandler;
+    this.executor = executor;
+    this.removalLookups = removalLookups;
+    this.removalDelayNanos = TimeUnit.MILLISECONDS.toNanos(removalDelayMillis);
+    this.ticker = requireNonNull(ticker, "ticker");
   }
 
   @Override
@@ -87,42 +159,100 @@ class ServiceResolvingChangeNotifier<T> extends AbstractChangeNotifier<T>
       return;
     }
 
-    resolver.resolveAsync(fqdn).whenComplete((nodes, e) -> {
-      if (e instanceof DnsException) {
-        if (errorHandler != null) {
-          errorHandler.handle(fqdn, (DnsException) e);
-        }
-        log.error(e.getMessage(), e);
-        fireIfFirstError();
-      } else if (e != null) {
-        log.error(e.getMessage(), e);
-        fireIfFirstError();
-      } else {
-        final Set<T> current;
-        try {
-          ImmutableSet.Builder<T> builder = ImmutableSet.builder();
-          for (LookupResult node : nodes) {
-            T transformed = resultTransformer.apply(node);
-            builder.add(requireNonNull(transformed, "transformed"));
+    final CompletionStage<List<LookupResult>> lookup = resolver.resolveAsync(fqdn);
+    if (executor == null) {
+      lookup.whenComplete(this::update);
+    } else {
+      lookup.whenCompleteAsync(this::update, executor);
+    }
+  }
+
+  private void update(List<LookupResult> nodes, Throwable e) {
+    if (e instanceof DnsException) {
+      if (errorHandler != null) {
+        errorHandler.handle(fqdn, (DnsException) e);
+      }
+      log.error(e.getMessage(), e);
+      fireIfFirstError();
+    } else if (e != null) {
+      log.error(e.getMessage(), e);
+      fireIfFirstError();
+    } else {
+      final Set<T> resolved;
+      final Map<T, String> keys = isDamping() ? new HashMap<>() : null;
+      try {
+        ImmutableSet.Builder<T> builder = ImmutableSet.builder();
+        for (LookupResult node : nodes) {
+          T transformed = resultTransformer.apply(node);
+          builder.add(requireNonNull(transformed, "transformed"));
+          if (keys != null) {
+            keys.put(transformed, node.host() + ":" + node.port());
           }
-          current = builder.build();
-        } catch (Exception transformerException) {
-          log.error(transformerException.getMessage(), transformerException);
-          fireIfFirstError();
-          return;
         }
+        resolved = builder.build();
+      } catch (Exception transformerException) {
+        log.error(transformerException.getMessage(), transformerException);
+        fireIfFirstError();
+        return;
+      }
+
+      final Set<T> current = keys == null ? resolved : dampRemovals(resolved, keys);
+
+      if (ChangeNotifiers.isNoLongerInitial(current, records) || !current.equals(records)) {
+        // This means that any subsequent DNS error will be ignored and the existing result will be kept
+        waitingForFirstEvent = false;
+        final ChangeNotification<T> changeNotification =
+                newDeltaChangeNotification(current, records);
+        records = current;
+
+        fireRecordsUpdated(changeNotification);
+      }
+    }
+  }
+
+  private boolean isDamping() {
+    return removalLookups > 1 || removalDelayNanos > 0;
+  }
+
+  /**
+   * Adds back the records whose host and port are missing from a lookup, but haven't been missing
+   * for long enough to be removed.
+   *
+   * @param resolved the records from the lookup
+   * @param keys     the host and port of each resolved record, which the kept records are added to
+   */
+  private Set<T> dampRemovals(Set<T> resolved, Map<T, String> keys) {
+    synchronized (this) {
+      final Set<String> present = new HashSet<>(keys.values());
+      absences.keySet().removeIf(present::contains);
+      final Map<T, String> previousKeys = recordKeys;
+      recordKeys = keys;
+      if (ChangeNotifiers.isInitialEmptyData(records)) {
+        return resolved;
+      }
 
-        if (ChangeNotifiers.isNoLongerInitial(current, records) || !current.equals(records)) {
-          // This means that any subsequent DNS error will be ignored and the existing result will be kept
-          waitingForFirstEvent = false;
-          final ChangeNotification<T> changeNotification =
-                  newChangeNotification(current, records);
-          records = current;
+      final long now = ticker.read();
+      ImmutableSet.Builder<T> kept = null;
+      for (T record : records) {
+        final String key = previousKeys.get(record);
+        if (key == null || present.contains(key) || resolved.contains(record)) {
+          continue;
+        }
 
-          fireRecordsUpdated(changeNotification);
+        final Absence absence = absences.computeIfAbsent(key, k -> new Absence(now));
+        absence.lookups++;
+        if (absence.lookups >= removalLookups && now - absence.sinceNanos >= removalDelayNanos) {
+          absences.remove(key);
+        } else {
+          if (kept == null) {
+            kept = ImmutableSet.<T>builder().addAll(resolved);
+          }
+          kept.add(record);
+          keys.put(record, key);
         }
       }
-    });
+      return kept == null ? resolved : kept.build();
+    }
   }
 
   private void fireIfFirstError() {
@@ -133,5 +263,13 @@ class ServiceResolvingChangeNotifier<T> extends AbstractChangeNotifier<T>
       fireRecordsUpdated(newChangeNotification(records, previous));
     }
   }
-}
 
+  private static final class Absence {
+    private final long sinceNanos;
+    private int lookups;
+
+    Absence(long sinceNanos) {
+      this.sinceNanos = sinceNanos;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A scheduler for the short, non-blocking timer tasks of the resolvers, such as sending hedged
+ * queries. It runs on a single daemon thread, so it never keeps the JVM from exiting, and
+ * removes cancelled tasks right away, since most timers are cancelled before they fire.
+ */
+final class SharedScheduler {
+  private static final ScheduledExecutorService INSTANCE = create();
+
+  private SharedScheduler() {
+    // prevent instantiation
+  }
+
+  static ScheduledExecutorService get() {
+    return INSTANCE;
+  }
+
+  private static ScheduledExecutorService create() {
+    final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+        1, new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-scheduler-%d").build());
+    scheduler.setRemoveOnCancelPolicy(true);
+    return scheduler;
+  }
+}
@@ -18,6 +18,7 @@ package com.spotify.dns;
 
 import static java.util.Objects.requireNonNull;
 
+import org.xbill.DNS.Cache;
 import org.xbill.DNS.DClass;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Resolver;
@@ -57,9 +58,23 @@ public class SimpleLookupFactory implements LookupFactory {
   }
 
   public SimpleLookupFactory(Resolver resolver, Executor executor) {
+    this(resolver, executor, null);
+  }
+
+  /**
+   * @param resolver the resolver to send queries to
+   * @param executor the executor to run lookups on
+   * @param cache    the cache to use for asynchronous lookups (nullable)
+   */
+  SimpleLookupFactory(Resolver resolver, Executor executor, Cache cache) {
     requireNonNull(executor);
     this.resolver = resolver;
-    this.session = LookupSession.builder().resolver(resolver).executor(executor).build();
+    LookupSession.LookupSessionBuilder builder =
+        LookupSession.builder().resolver(resolver).executor(executor);
+    if (cache != null) {
+      builder = builder.cache(cache);
+    }
+    this.session = builder.build();
   }
 
   @Override
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A DnsRecordResolver that sends SRV lookups to a {@link DnsSrvResolver}, so that they get the
+ * caching, coalescing and retention that it's been configured with, and lookups of other types
+ * of records to another DnsRecordResolver.
+ */
+class SrvDelegatingDnsRecordResolver implements DnsRecordResolver {
+  private final DnsRecordResolver delegate;
+  private final DnsSrvResolver srvResolver;
+
+  /**
+   * @param delegate    the resolver for lookups of records other than SRV records
+   * @param srvResolver the resolver for SRV lookups
+   */
+  SrvDelegatingDnsRecordResolver(DnsRecordResolver delegate, DnsSrvResolver srvResolver) {
+    this.delegate = requireNonNull(delegate, "delegate");
+    this.srvResolver = requireNonNull(srvResolver, "srvResolver");
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> CompletionStage<List<T>> resolveAsync(String fqdn, RecordType<T> type) {
+    if (type == RecordType.SRV) {
+      // T is LookupResult, since SRV is the only RecordType with that type
+      return (CompletionStage<List<T>>) (CompletionStage<?>) srvResolver.resolveAsync(fqdn);
+    }
+    return delegate.resolveAsync(fqdn, type);
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.spotify.dns.RetainingDnsSrvResolver.RetainedRecords;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes snapshots of resolved SRV data, so that a resolver can start with the data it
+ * had when the process last ran instead of waiting for DNS.
+ *
+ * <p>The file format is a magic number and a format version, followed by the time the snapshot
+ * was written, the number of names and, for each name, the name, how long before the snapshot
+ * its records were retained, and the records. Strings are stored as their length followed by
+ * their UTF-8 bytes. Snapshots are written to a temporary file that is then moved into place, so
+ * a reader never sees a partially written snapshot. They are read by memory-mapping the file.
+ *
+ * <p>Records read from a snapshot are as old as they were when it was written, plus the time
+ * since, so that restarts don't extend how long they are retained.
+ *
+ * <p>There is at most one persister per file, shared by all resolvers that are built to persist
+ * to it, so that they don't overwrite each other's data.
+ */
+class SrvSnapshotFile implements Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(SrvSnapshotFile.class);
+
+  private static final int MAGIC = 0x53525653; // "SRVS"
+  private static final int VERSION = 2;
+
+  private static final ThreadFactory THREAD_FACTORY =
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("dns-snapshot-%d").build();
+
+  // guarded by SrvSnapshotFile.class
+  private static final Map<Path, SrvSnapshotFile> PERSISTERS = new HashMap<>();
+
+  private final Path path;
+  private final Clock clock;
+
+  // guarded by this; weak, so that a resolver that is no longer used can be collected
+  private final List<WeakReference<RetainingDnsSrvResolver>> resolvers = new ArrayList<>();
+  private ScheduledExecutorService executor;
+
+  SrvSnapshotFile(Path path) {
+    this(path, Clock.systemUTC());
+  }
+
+  /**
+   * @param path  the snapshot file
+   * @param clock the wall clock, used to age snapshots across restarts
+   */
+  SrvSnapshotFile(Path path, Clock clock) {
+    this.path = requireNonNull(path, "path").toAbsolutePath();
+    this.clock = requireNonNull(clock, "clock");
+  }
+
+  Path path() {
+    return path;
+  }
+
+  /**
+   * Preloads the resolver with the data in the snapshot at the given path, if there is one, and
+   * then periodically replaces the snapshot with the data retained by the resolver, and by any
+   * other resolver persisting to the same file. Snapshots are written by a daemon thread, so they
+   * don't keep the JVM from exiting, which is shared per file; the interval of the first resolver
+   * is used. The thread stops once the returned persister is closed, or once none of the
+   * resolvers are used anymore.
+   *
+   * @return the persister of the file
+   */
+  static SrvSnapshotFile restoreAndPersist(Path path, RetainingDnsSrvResolver resolver,
+                                           long intervalMillis) {
+    final Path absolutePath = path.toAbsolutePath();
+    new SrvSnapshotFile(absolutePath).restore(resolver);
+
+    // registered while holding the lock, so that a persister that is closing isn't joined
+    synchronized (SrvSnapshotFile.class) {
+      final SrvSnapshotFile persister =
+          PERSISTERS.computeIfAbsent(absolutePath, SrvSnapshotFile::new);
+      persister.persist(resolver, intervalMillis);
+      return persister;
+    }
+  }
+
+  private void restore(RetainingDnsSrvResolver resolver) {
+    try {
+      resolver.restore(read());
+    } catch (IOException e) {
+      LOG.warn("Failed to load snapshot of SRV records from {}", path, e);
+    }
+  }
+
+  private synchronized void persist(RetainingDnsSrvResolver resolver, long intervalMillis) {
+    resolvers.add(new WeakReference<>(resolver));
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(THREAD_FACTORY);
+      executor.scheduleWithFixedDelay(
+          this::persist, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void persist() {
+    final List<RetainingDnsSrvResolver> live;
+    synchronized (SrvSnapshotFile.class) {
+      live = liveResolvers();
+      if (live.isEmpty()) {
+        close();
+        return;
+      }
+    }
+
+    try {
+      write(merge(live));
+    } catch (IOException | RuntimeException e) {
+      LOG.warn("Failed to write snapshot of SRV records to {}", path, e);
+    }
+  }
+
+  private synchronized List<RetainingDnsSrvResolver> liveResolvers() {
+    final List<RetainingDnsSrvResolver> live = new ArrayList<>();
+    final Iterator<WeakReference<RetainingDnsSrvResolver>> iterator = resolvers.iterator();
+    while (iterator.hasNext()) {
+      final RetainingDnsSrvResolver resolver = iterator.next().get();
+      if (resolver == null) {
+        iterator.remove();
+      } else {
+        live.add(resolver);
+      }
+    }
+    return live;
+  }
+
+  /**
+   * Merges the data retained by several resolvers, keeping the most recent data for each name.
+   */
+  private static Map<String, RetainedRecords> merge(List<RetainingDnsSrvResolver> resolvers) {
+    if (resolvers.size() == 1) {
+      return resolvers.get(0).export();
+    }
+
+    final Map<String, RetainedRecords> merged = new LinkedHashMap<>();
+    for (RetainingDnsSrvResolver resolver : resolvers) {
+      for (Map.Entry<String, RetainedRecords> entry : resolver.export().entrySet()) {
+        merged.merge(entry.getKey(), entry.getValue(),
+                     (a, b) -> a.ageMillis() <= b.ageMillis() ? a : b);
+      }
+    }
+    return merged;
+  }
+
+  /**
+   * Stops persisting to the file. The snapshot is left as it was last written.
+   */
+  @Override
+  public void close() {
+    synchronized (SrvSnapshotFile.class) {
+      PERSISTERS.remove(path, this);
+    }
+
+    synchronized (this) {
+      resolvers.clear();
+      if (executor != null) {
+        executor.shutdown();
+        executor = null;
+      }
+    }
+  }
+
+  /**
+   * Reads the snapshot.
+   *
+   * @return the records of each name in the snapshot, aged by the time since the snapshot was
+   *     written, or an empty map if there is no snapshot
+   * @throws IOException if the snapshot can't be read or isn't a valid snapshot
+   */
+  Map<String, RetainedRecords> read() throws IOException {
+    if (!Files.exists(path)) {
+      return ImmutableMap.of();
+    }
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /**
+   * Replaces the snapshot with the given records.
+   */
+  void write(Map<String, RetainedRecords> snapshot) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(clock.millis());
+      out.writeInt(snapshot.size());
+      for (Map.Entry<String, RetainedRecords> entry : snapshot.entrySet()) {
+        writeString(out, entry.getKey());
+        out.writeLong(entry.getValue().ageMillis());
+        out.writeInt(entry.getValue().nodes().size());
+        for (LookupResult node : entry.getValue().nodes()) {
+          writeString(out, node.host());
+          out.writeInt(node.port());
+          out.writeInt(node.priority());
+          out.writeInt(node.weight());
+          out.writeLong(node.ttl());
+        }
+      }
+    }
+
+    final Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, bytes.toByteArray());
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private Map<String, RetainedRecords> parse(ByteBuffer buffer) throws IOException {
+    try {
+      if (buffer.getInt() != MAGIC) {
+        throw new IOException(path + " is not a snapshot of SRV records");
+      }
+      final int version = buffer.getInt();
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version + " in " + path);
+      }
+
+      final long writtenAtMillis = buffer.getLong();
+      // a clock that was set back doesn't make the snapshot younger
+      final long snapshotAgeMillis = Math.max(clock.millis() - writtenAtMillis, 0);
+
+      final int names = buffer.getInt();
+      final ImmutableMap.Builder<String, RetainedRecords> snapshot = ImmutableMap.builder();
+      for (int i = 0; i < names; i++) {
+        final String fqdn = readString(buffer);
+        final long ageMillis = buffer.getLong();
+        final int count = buffer.getInt();
+        final ImmutableList.Builder<LookupResult> nodes = ImmutableList.builder();
+        for (int j = 0; j < count; j++) {
+          nodes.add(LookupResult.create(readString(buffer), buffer.getInt(), buffer.getInt(),
+                                        buffer.getInt(), buffer.getLong()));
+        }
+        snapshot.put(fqdn, new RetainedRecords(nodes.build(), ageMillis + snapshotAgeMillis));
+      }
+      return snapshot.build();
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new IOException("Truncated or corrupt snapshot " + path, e);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    final byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    final int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    final byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
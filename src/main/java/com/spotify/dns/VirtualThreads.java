@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates executors that run tasks on virtual threads, when the JVM supports them. Virtual
+ * threads were added in Java 21, while this library targets Java 8, so they are looked up
+ * reflectively, and callers fall back to their usual executors on older JVMs.
+ */
+final class VirtualThreads {
+  private static final Logger LOG = LoggerFactory.getLogger(VirtualThreads.class);
+
+  private VirtualThreads() {
+    // prevent instantiation
+  }
+
+  /**
+   * Returns true if the JVM supports virtual threads.
+   */
+  static boolean isSupported() {
+    return threadFactory("probe-") != null;
+  }
+
+  /**
+   * Returns an executor that runs each task on a new virtual thread, or null if the JVM doesn't
+   * support virtual threads. Virtual threads never keep the JVM from exiting, so the executor
+   * doesn't need to be shut down.
+   *
+   * @param namePrefix the prefix of the names of the threads, which are numbered
+   */
+  static ExecutorService newExecutor(String namePrefix) {
+    final ThreadFactory threadFactory = threadFactory(namePrefix);
+    if (threadFactory == null) {
+      LOG.info("Virtual threads are not supported by this JVM, using platform threads");
+      return null;
+    }
+
+    try {
+      return (ExecutorService) Executors.class
+          .getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+          .invoke(null, threadFactory);
+    } catch (ReflectiveOperationException e) {
+      LOG.warn("Failed to create a virtual thread executor, using platform threads", e);
+      return null;
+    }
+  }
+
+  private static ThreadFactory threadFactory(String namePrefix) {
+    try {
+      final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, namePrefix, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      // before Java 21, or 19 and 20 without preview features enabled
+      return null;
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof UnsupportedOperationException) {
+        return null;
+      }
+      LOG.warn("Failed to create a virtual thread factory", e);
+      return null;
+    } catch (ReflectiveOperationException e) {
+      LOG.warn("Failed to create a virtual thread factory", e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToIntFunction;
+
+/**
+ * Selects records at random the way RFC 2782 describes for SRV records: only among those with
+ * the lowest priority value, with a probability proportional to their weight.
+ *
+ * <p>A selector is immutable, and meant to be created once per change of the records, for
+ * instance in a {@link ChangeNotifier.Listener}, and then shared by all threads. Each priority
+ * group is precomputed into an alias table, so that a selection takes constant time and
+ * doesn't allocate.
+ *
+ * <p>Records with weight 0 are never selected from a group that has records with a positive
+ * weight. If all the records of a group have weight 0, they are selected uniformly.
+ *
+ * @param <T> the type of the records
+ */
+public final class WeightedSelector<T> {
+
+  private final List<Group<T>> groups;
+
+  private WeightedSelector(List<Group<T>> groups) {
+    this.groups = groups;
+  }
+
+  /**
+   * Creates a selector for SRV lookup results.
+   *
+   * @param results the results to select from
+   * @return a selector for the results
+   */
+  public static WeightedSelector<LookupResult> of(Collection<LookupResult> results) {
+    return of(results, LookupResult::priority, LookupResult::weight);
+  }
+
+  /**
+   * Creates a selector for records of any type.
+   *
+   * @param records  the records to select from
+   * @param priority the priority of a record; lower values are preferred
+   * @param weight   the weight of a record, which must not be negative
+   * @param <T>      the type of the records
+   * @return a selector for the records
+   */
+  public static <T> WeightedSelector<T> of(Collection<T> records,
+                                           ToIntFunction<? super T> priority,
+                                           ToIntFunction<? super T> weight) {
+    requireNonNull(records, "records");
+    requireNonNull(priority, "priority");
+    requireNonNull(weight, "weight");
+
+    final Map<Integer, List<T>> byPriority = new TreeMap<>();
+    for (T record : records) {
+      byPriority.computeIfAbsent(priority.applyAsInt(record), p -> new ArrayList<>()).add(record);
+    }
+
+    final List<Group<T>> groups = new ArrayList<>(byPriority.size());
+    for (List<T> group : byPriority.values()) {
+      groups.add(new Group<>(group, weight));
+    }
+    return new WeightedSelector<>(groups);
+  }
+
+  /**
+   * @return true if there are no records to select from
+   */
+  public boolean isEmpty() {
+    return groups.isEmpty();
+  }
+
+  /**
+   * @return the number of distinct priorities among the records
+   */
+  public int priorityGroups() {
+    return groups.size();
+  }
+
+  /**
+   * Selects a record from those with the lowest priority value.
+   *
+   * @return the selected record
+   * @throws NoSuchElementException if there are no records
+   */
+  public T select() {
+    return select(0);
+  }
+
+  /**
+   * Selects a record from those with the given priority rank, for instance to fall back to the
+   * records with the second lowest priority value with rank 1.
+   *
+   * @param group the priority rank, starting from 0 for the lowest priority value
+   * @return the selected record
+   * @throws NoSuchElementException if there are no records
+   * @throws IndexOutOfBoundsException if there are records, but no group of that rank
+   */
+  public T select(int group) {
+    return select(group, ThreadLocalRandom.current().nextDouble());
+  }
+
+  T select(int group, double random) {
+    if (groups.isEmpty()) {
+      throw new NoSuchElementException("no records to select from");
+    }
+    return groups.get(group).select(random);
+  }
+
+  /**
+   * The records of one priority, with an alias table built with Vose's method: entry i is
+   * chosen with probability {@code probability[i]}, and otherwise its alias is.
+   */
+  private static final class Group<T> {
+    private final Object[] records;
+    private final double[] probability;
+    private final int[] alias;
+
+    Group(List<T> records, ToIntFunction<? super T> weight) {
+      final int n = records.size();
+      this.records = records.toArray();
+      this.probability = new double[n];
+      this.alias = new int[n];
+
+      final long[] weights = new long[n];
+      long total = 0;
+      for (int i = 0; i < n; i++) {
+        weights[i] = weight.applyAsInt(records.get(i));
+        Preconditions.checkArgument(weights[i] >= 0, "weight must not be negative, was %s",
+                                    weights[i]);
+        total += weights[i];
+      }
+
+      if (total == 0) {
+        for (int i = 0; i < n; i++) {
+          probability[i] = 1.0;
+          alias[i] = i;
+        }
+        return;
+      }
+
+      final double[] scaled = new double[n];
+      final int[] small = new int[n];
+      final int[] large = new int[n];
+      int smallCount = 0;
+      int largeCount = 0;
+      for (int i = 0; i < n; i++) {
+        scaled[i] = (double) weights[i] * n / total;
+        if (scaled[i] < 1.0) {
+          small[smallCount++] = i;
+        } else {
+          large[largeCount++] = i;
+        }
+      }
+
+      while (smallCount > 0 && largeCount > 0) {
+        final int less = small[--smallCount];
+        final int more = large[--largeCount];
+        probability[less] = scaled[less];
+        alias[less] = more;
+        scaled[more] = scaled[more] + scaled[less] - 1.0;
+        if (scaled[more] < 1.0) {
+          small[smallCount++] = more;
+        } else {
+          large[largeCount++] = more;
+        }
+      }
+
+      // whatever remains is 1 up to rounding errors, except that records with weight 0 must
+      // still never be selected
+      while (largeCount > 0) {
+        final int i = large[--largeCount];
+        probability[i] = 1.0;
+        alias[i] = i;
+      }
+      while (smallCount > 0) {
+        final int i = small[--smallCount];
+        probability[i] = weights[i] > 0 ? 1.0 : 0.0;
+        alias[i] = weights[i] > 0 ? i : heaviest(weights);
+      }
+    }
+
+    private static int heaviest(long[] weights) {
+      int heaviest = 0;
+      for (int i = 1; i < weights.length; i++) {
+        if (weights[i] > weights[heaviest]) {
+          heaviest = i;
+        }
+      }
+      return heaviest;
+    }
+
+    @SuppressWarnings("unchecked")
+    T select(double random) {
+      final double scaled = random * records.length;
+      final int i = Math.min((int) scaled, records.length - 1);
+      return (T) records[scaled - i < probability[i] ? i : alias[i]];
+    }
+  }
+}
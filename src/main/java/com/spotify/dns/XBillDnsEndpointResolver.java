@@ -0,0 +1,348 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.Type;
+
+/**
+ * A DnsEndpointResolver that sends SRV queries directly to a dnsjava {@link Resolver}, so that it
+ * can use the addresses of the targets that servers commonly include in the additional section
+ * of the response. The addresses of the other targets are looked up with A and AAAA queries in
+ * parallel. Those addresses are cached for as long as their TTL allows, and shared by all SRV
+ * names that have the same target, so a target is looked up at most once at a time. The cache
+ * holds a bounded number of targets, evicting the least recently used ones, and replaces the
+ * addresses of a target once they expire.
+ */
+class XBillDnsEndpointResolver implements DnsEndpointResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(XBillDnsEndpointResolver.class);
+
+  static final int MAX_CACHED_TARGETS = 10_000;
+
+  private final Resolver resolver;
+  private final XBillDnsRecordResolver records;
+  private final Executor executor;
+  private final Ticker ticker;
+  private final ConcurrentMap<Name, CachedAddresses> addresses;
+
+  XBillDnsEndpointResolver(Resolver resolver, LookupFactory lookupFactory, Executor executor) {
+    this(resolver, lookupFactory, executor, Ticker.systemTicker());
+  }
+
+  XBillDnsEndpointResolver(Resolver resolver, LookupFactory lookupFactory, Executor executor,
+                           Ticker ticker) {
+    this(resolver, lookupFactory, executor, MAX_CACHED_TARGETS, ticker);
+  }
+
+  /**
+   * @param resolver         the resolver to send SRV queries to
+   * @param lookupFactory    provides the lookup session to look up addresses with
+   * @param executor         the executor to run lookups on
+   * @param maxCachedTargets the maximum number of targets to cache the addresses of
+   * @param ticker           the time source for expiring cached addresses
+   */
+  XBillDnsEndpointResolver(Resolver resolver, LookupFactory lookupFactory, Executor executor,
+                           int maxCachedTargets, Ticker ticker) {
+    Preconditions.checkArgument(maxCachedTargets > 0,
+                                "max cached targets must be positive, was %s", maxCachedTargets);
+
+    this.resolver = requireNonNull(resolver, "resolver");
+    this.records = new XBillDnsRecordResolver(lookupFactory);
+    this.executor = requireNonNull(executor, "executor");
+    this.ticker = requireNonNull(ticker, "ticker");
+    this.addresses = CacheBuilder.newBuilder()
+        .maximumSize(maxCachedTargets)
+        .<Name, CachedAddresses>build()
+        .asMap();
+  }
+
+  @Override
+  public CompletionStage<List<Endpoint>> resolveAsync(final String fqdn) {
+    final Name name;
+    try {
+      // queries sent straight to the resolver need an absolute name
+      name = Name.fromString(fqdn, Name.root);
+    } catch (TextParseException e) {
+      throw new DnsException("unable to create lookup for name: " + fqdn, e);
+    }
+
+    final Message query = Message.newQuery(Record.newRecord(name, Type.SRV, DClass.IN));
+    return resolver.sendAsync(query, executor)
+        .handle((response, e) -> {
+          if (e != null) {
+            throw new DnsException(
+                String.format("Lookup of '%s' failed: %s ", fqdn, e.getMessage()), e);
+          }
+          return response;
+        })
+        .thenCompose(response -> endpoints(fqdn, response));
+  }
+
+  private CompletionStage<List<Endpoint>> endpoints(String fqdn, Message response) {
+    final int rcode = response.getRcode();
+    if (rcode == Rcode.NXDOMAIN) {
+      LOG.warn("No results returned for query '{}'; result from dnsjava: {}",
+               fqdn, Rcode.string(rcode));
+      return CompletableFuture.completedFuture(ImmutableList.of());
+    }
+    if (rcode != Rcode.NOERROR) {
+      throw new DnsException(
+          String.format("Lookup of '%s' failed with rcode: %s", fqdn, Rcode.string(rcode)));
+    }
+
+    final List<SRVRecord> srvRecords = new ArrayList<>();
+    for (Record record : response.getSection(Section.ANSWER)) {
+      if (record instanceof SRVRecord && !((SRVRecord) record).getTarget().equals(Name.root)) {
+        srvRecords.add((SRVRecord) record);
+      }
+    }
+    if (srvRecords.isEmpty()) {
+      LOG.warn("No results returned for query '{}'", fqdn);
+      return CompletableFuture.completedFuture(ImmutableList.of());
+    }
+
+    final Map<Name, List<Record>> glue = addressRecordsByName(response);
+    final Map<Name, CompletableFuture<List<Record>>> targets = new LinkedHashMap<>();
+    for (SRVRecord srvRecord : srvRecords) {
+      final Name target = srvRecord.getTarget();
+      if (!targets.containsKey(target)) {
+        final List<Record> targetGlue = glue.get(target);
+        targets.put(target, targetGlue != null ?
+                            completeGlue(target, targetGlue) :
+                            addressesOf(target));
+      }
+    }
+
+    return CompletableFuture.allOf(targets.values().toArray(new CompletableFuture<?>[0]))
+        .handle((ignored, e) -> toEndpoints(fqdn, srvRecords, targets, e));
+  }
+
+  private static List<Endpoint> toEndpoints(
+      String fqdn, List<SRVRecord> srvRecords,
+      Map<Name, CompletableFuture<List<Record>>> targets, Throwable failure) {
+    final ImmutableList.Builder<Endpoint> endpoints = ImmutableList.builder();
+    boolean anyResolved = false;
+
+    for (SRVRecord srvRecord : srvRecords) {
+      final CompletableFuture<List<Record>> target = targets.get(srvRecord.getTarget());
+      if (target.isCompletedExceptionally()) {
+        continue;
+      }
+      anyResolved = true;
+
+      final LookupResult lookupResult = LookupResult.create(srvRecord.getTarget().toString(),
+                                                            srvRecord.getPort(),
+                                                            srvRecord.getPriority(),
+                                                            srvRecord.getWeight(),
+                                                            srvRecord.getTTL());
+      for (Record record : target.join()) {
+        final InetSocketAddress address =
+            new InetSocketAddress(addressOf(srvRecord.getTarget(), record), srvRecord.getPort());
+        endpoints.add(Endpoint.create(lookupResult, address,
+                                      Math.min(srvRecord.getTTL(), record.getTTL())));
+      }
+    }
+
+    if (failure != null) {
+      if (!anyResolved) {
+        throw new DnsException(
+            String.format("Lookup of targets of '%s' failed: %s ", fqdn, failure.getMessage()),
+            failure);
+      }
+      LOG.warn("Lookup of some targets of '{}' failed", fqdn, failure);
+    }
+
+    return endpoints.build();
+  }
+
+  /**
+   * Returns the glue for a target, along with its looked-up addresses of the other family if the
+   * glue only has IPv4 or only IPv6 addresses, since servers may leave out additional records
+   * that don't fit in the response. The glue is used on its own if the lookup fails.
+   */
+  private CompletableFuture<List<Record>> completeGlue(Name target, List<Record> glue) {
+    boolean hasV4 = false;
+    boolean hasV6 = false;
+    for (Record record : glue) {
+      hasV4 |= record instanceof ARecord;
+      hasV6 |= record instanceof AAAARecord;
+    }
+    if (hasV4 && hasV6) {
+      return CompletableFuture.completedFuture(glue);
+    }
+
+    final Class<? extends Record> missing = hasV4 ? AAAARecord.class : ARecord.class;
+    return addressesOf(target).handle((records, e) -> {
+      if (e != null) {
+        return glue;
+      }
+
+      final ImmutableList.Builder<Record> result = ImmutableList.<Record>builder().addAll(glue);
+      for (Record record : records) {
+        if (missing.isInstance(record)) {
+          result.add(record);
+        }
+      }
+      return result.build();
+    });
+  }
+
+  private static Map<Name, List<Record>> addressRecordsByName(Message response) {
+    final Map<Name, List<Record>> result = new LinkedHashMap<>();
+    for (Record record : response.getSection(Section.ADDITIONAL)) {
+      if (record instanceof ARecord || record instanceof AAAARecord) {
+        result.computeIfAbsent(record.getName(), name -> new ArrayList<>()).add(record);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the address of an A or AAAA record, with the target as its host name, so that it
+   * can be used to verify TLS certificates, for instance.
+   */
+  private static InetAddress addressOf(Name target, Record record) {
+    final InetAddress address = record instanceof ARecord ?
+                                ((ARecord) record).getAddress() :
+                                ((AAAARecord) record).getAddress();
+    try {
+      return InetAddress.getByAddress(target.toString(true), address.getAddress());
+    } catch (UnknownHostException e) {
+      // can't happen, since the address comes from a valid record
+      return address;
+    }
+  }
+
+  private CompletableFuture<List<Record>> addressesOf(Name target) {
+    final CachedAddresses cached = addresses.get(target);
+    if (cached != null && !cached.isExpired(ticker.read())) {
+      return cached.future;
+    }
+
+    // Expired addresses are replaced right away, rather than waiting to be evicted.
+    final CachedAddresses loading = new CachedAddresses();
+    final boolean won = cached == null ?
+                        addresses.putIfAbsent(target, loading) == null :
+                        addresses.replace(target, cached, loading);
+    if (!won) {
+      // another caller started a lookup first, so use that one
+      return addressesOf(target);
+    }
+
+    lookupAddresses(target).whenComplete((records, e) -> {
+      if (e != null || records.isEmpty()) {
+        addresses.remove(target, loading);
+      } else {
+        loading.expiresAtNanos = ticker.read() + TimeUnit.SECONDS.toNanos(minTtl(records));
+      }
+
+      if (e != null) {
+        loading.future.completeExceptionally(e);
+      } else {
+        loading.future.complete(records);
+      }
+    });
+    return loading.future;
+  }
+
+  private CompletableFuture<List<Record>> lookupAddresses(Name target) {
+    final CompletableFuture<List<Record>> v4 = lookup(target, Type.A);
+    final CompletableFuture<List<Record>> v6 = lookup(target, Type.AAAA);
+
+    // Use whatever addresses could be resolved, unless neither lookup succeeded.
+    return CompletableFuture.allOf(v4, v6).handle((ignored, e) -> {
+      if (v4.isCompletedExceptionally() && v6.isCompletedExceptionally()) {
+        throw e instanceof CompletionException ? (CompletionException) e :
+              new CompletionException(e);
+      }
+
+      final ImmutableList.Builder<Record> records = ImmutableList.builder();
+      if (!v4.isCompletedExceptionally()) {
+        records.addAll(v4.join());
+      }
+      if (!v6.isCompletedExceptionally()) {
+        records.addAll(v6.join());
+      }
+      return records.build();
+    });
+  }
+
+  private CompletableFuture<List<Record>> lookup(Name target, int type) {
+    return records.lookupRecords(target.toString(), target, type)
+        .thenApply(XBillDnsEndpointResolver::addressRecords)
+        .toCompletableFuture();
+  }
+
+  private static List<Record> addressRecords(List<Record> records) {
+    final ImmutableList.Builder<Record> result = ImmutableList.builder();
+    for (Record record : records) {
+      if (record instanceof ARecord || record instanceof AAAARecord) {
+        result.add(record);
+      }
+    }
+    return result.build();
+  }
+
+  private static long minTtl(List<Record> records) {
+    long ttl = Long.MAX_VALUE;
+    for (Record record : records) {
+      ttl = Math.min(ttl, record.getTTL());
+    }
+    return Math.max(ttl, 0L);
+  }
+
+  private static final class CachedAddresses {
+    private final CompletableFuture<List<Record>> future = new CompletableFuture<>();
+    // Long.MAX_VALUE while loading, so that concurrent callers share the lookup
+    private volatile long expiresAtNanos = Long.MAX_VALUE;
+
+    boolean isExpired(long nowNanos) {
+      return expiresAtNanos != Long.MAX_VALUE && nowNanos - expiresAtNanos >= 0;
+    }
+  }
+}
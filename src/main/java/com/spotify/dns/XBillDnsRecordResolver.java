@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.TextParseException;
+import org.xbill.DNS.lookup.NoSuchDomainException;
+import org.xbill.DNS.lookup.NoSuchRRSetException;
+
+/**
+ * A DnsRecordResolver that looks up records with the {@link org.xbill.DNS.lookup.LookupSession}
+ * of a {@link LookupFactory}, so that lookups of all record types share its resolver, executor
+ * and cache.
+ */
+class XBillDnsRecordResolver implements DnsRecordResolver {
+  private static final Logger LOG = LoggerFactory.getLogger(XBillDnsRecordResolver.class);
+
+  private final LookupFactory lookupFactory;
+
+  XBillDnsRecordResolver(LookupFactory lookupFactory) {
+    this.lookupFactory = requireNonNull(lookupFactory, "lookupFactory");
+  }
+
+  @Override
+  public <T> CompletionStage<List<T>> resolveAsync(final String fqdn, final RecordType<T> type) {
+    requireNonNull(type, "type");
+    final Name name;
+    try {
+      name = Name.fromString(fqdn);
+    } catch (TextParseException e) {
+      throw new DnsException("unable to create lookup for name: " + fqdn, e);
+    }
+
+    return lookupRecords(fqdn, name, type.type()).thenApply(records -> {
+      if (records.isEmpty()) {
+        LOG.warn("No results returned for {} query '{}'", type, fqdn);
+      }
+      return valuesOf(records, type);
+    });
+  }
+
+  /**
+   * Looks up the records of a type, treating names and types that don't exist as having no
+   * records.
+   *
+   * @param fqdn the name to use in error messages
+   * @param name the name to query for
+   * @param type the dnsjava {@link org.xbill.DNS.Type} to query for
+   * @return the records in the answer, which may include CNAME records that lead up to them
+   */
+  CompletionStage<List<Record>> lookupRecords(final String fqdn, final Name name, final int type) {
+    return lookupFactory.sessionForName(fqdn)
+        .lookupAsync(name, type, DClass.IN)
+        .handle((result, ex) -> {
+          if (ex == null) {
+            return result.getRecords();
+          }
+
+          Throwable cause = ex;
+          if (ex instanceof CompletionException && ex.getCause() != null) {
+            cause = ex.getCause();
+          }
+          if (cause instanceof NoSuchRRSetException || cause instanceof NoSuchDomainException) {
+            return ImmutableList.of();
+          }
+          throw new DnsException(
+              String.format("Lookup of '%s' failed: %s ", fqdn, ex.getMessage()), ex);
+        });
+  }
+
+  private static <T> List<T> valuesOf(List<Record> records, RecordType<T> type) {
+    final ImmutableList.Builder<T> values = ImmutableList.builder();
+    for (Record record : records) {
+      final T value = type.valueOf(record);
+      if (value != null) {
+        values.add(value);
+      }
+    }
+    return values.build();
+  }
+}
@@ -22,19 +22,11 @@ import com.google.common.collect.ImmutableList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xbill.DNS.DClass;
 import org.xbill.DNS.Lookup;
-import org.xbill.DNS.Name;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.SRVRecord;
-import org.xbill.DNS.TextParseException;
-import org.xbill.DNS.Type;
-import org.xbill.DNS.lookup.LookupSession;
-import org.xbill.DNS.lookup.NoSuchDomainException;
-import org.xbill.DNS.lookup.NoSuchRRSetException;
 
 import java.util.List;
-import java.util.concurrent.CompletionException;
 import java.util.concurrent.CompletionStage;
 
 /**
@@ -45,9 +37,11 @@ class XBillDnsSrvResolver implements DnsSrvResolver {
   private static final Logger LOG = LoggerFactory.getLogger(XBillDnsSrvResolver.class);
 
   private final LookupFactory lookupFactory;
+  private final XBillDnsRecordResolver records;
 
   XBillDnsSrvResolver(LookupFactory lookupFactory) {
     this.lookupFactory = requireNonNull(lookupFactory, "lookupFactory");
+    this.records = new XBillDnsRecordResolver(lookupFactory);
   }
 
   @Override
@@ -73,48 +67,7 @@ class XBillDnsSrvResolver implements DnsSrvResolver {
 
   @Override
   public CompletionStage<List<LookupResult>> resolveAsync(final String fqdn) {
-    LookupSession lookup = lookupFactory.sessionForName(fqdn);
-    Name name;
-    try {
-      name = Name.fromString(fqdn);
-    } catch (TextParseException e) {
-      throw new DnsException("unable to create lookup for name: " + fqdn, e);
-    }
-
-    return lookup.lookupAsync(name, Type.SRV, DClass.IN).handle((result, ex) ->{
-      if (ex == null){
-        return toLookupResults(result);
-      } else{
-        Throwable cause = ex;
-        if (ex instanceof CompletionException && ex.getCause() != null) {
-          cause = ex.getCause();
-        }
-        if (cause instanceof NoSuchRRSetException || cause instanceof NoSuchDomainException) {
-          LOG.warn("No results returned for query '{}'; result from dnsjava: {}",
-                  fqdn, ex.getMessage());
-          return ImmutableList.of();
-        }
-        throw new DnsException(
-                String.format("Lookup of '%s' failed: %s ", fqdn, ex.getMessage()), ex);
-      }
-    });
-  }
-
-  private static List<LookupResult> toLookupResults(org.xbill.DNS.lookup.LookupResult queryResult) {
-    ImmutableList.Builder<LookupResult> builder = ImmutableList.builder();
-
-    for (Record record: queryResult.getRecords()) {
-      if (record instanceof SRVRecord) {
-        SRVRecord srvRecord = (SRVRecord) record;
-        builder.add(LookupResult.create(srvRecord.getTarget().toString(),
-                                        srvRecord.getPort(),
-                                        srvRecord.getPriority(),
-                                        srvRecord.getWeight(),
-                                        srvRecord.getTTL()));
-      }
-    }
-
-    return builder.build();
+    return records.resolveAsync(fqdn, RecordType.SRV);
   }
 
   private static List<LookupResult> toLookupResults(Record[] queryResult) {
@@ -39,4 +39,88 @@ public interface DnsReporter {
    * @param error The exception causing the failure.
    */
   void reportFailure(Throwable error);
+
+  /**
+   * Report that a resolve joined a lookup of the same name that was already in flight, instead
+   * of sending a query of its own.
+   */
+  default void reportCoalesced() {
+  }
+
+  /**
+   * Report that a resolve was answered by a cached negative (NXDOMAIN or NODATA) response.
+   */
+  default void reportNegativeCacheHit() {
+  }
+
+  /**
+   * Report that a negative (NXDOMAIN or NODATA) response had to be fetched from a DNS server,
+   * rather than being answered from the cache.
+   */
+  default void reportNegativeCacheMiss() {
+  }
+
+  /**
+   * Report that a resolve was answered with retained data, either because the lookup failed or
+   * returned no results, or because the retained data was still fresh.
+   */
+  default void reportRetentionHit() {
+  }
+
+  /**
+   * Report that retained data would have been used to answer a resolve, but there was none.
+   */
+  default void reportRetentionMiss() {
+  }
+
+  /**
+   * Report that retained data was evicted to stay within the configured maximum number of
+   * retained records.
+   */
+  default void reportRetentionEviction() {
+  }
+
+  /**
+   * Report that a DNS server answered a query.
+   * @param server The host and port of the server.
+   * @param latencyNanos The time it took to get the answer, in nanoseconds.
+   */
+  default void reportServerResponse(String server, long latencyNanos) {
+  }
+
+  /**
+   * Report that a query to a DNS server failed, or was answered with SERVFAIL.
+   * @param server The host and port of the server.
+   */
+  default void reportServerFailure(String server) {
+  }
+
+  /**
+   * Report that the circuit breaker of a DNS server opened, so that queries are no longer sent to
+   * it, except for occasional probes.
+   * @param server The host and port of the server.
+   */
+  default void reportCircuitOpened(String server) {
+  }
+
+  /**
+   * Report that the circuit breaker of a DNS server closed again, after a successful probe.
+   * @param server The host and port of the server.
+   */
+  default void reportCircuitClosed(String server) {
+  }
+
+  /**
+   * Report that the limit on the number of lookups in flight changed.
+   * @param limit The new limit.
+   */
+  default void reportConcurrencyLimit(int limit) {
+  }
+
+  /**
+   * Report that the number of lookups waiting for the concurrency limit changed.
+   * @param queueDepth The number of waiting lookups.
+   */
+  default void reportLookupQueueDepth(int queueDepth) {
+  }
 }
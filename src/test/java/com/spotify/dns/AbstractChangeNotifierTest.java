@@ -18,21 +18,33 @@ package com.spotify.dns;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -125,4 +137,191 @@ public class AbstractChangeNotifierTest {
     sut.setListener(listener, false);
     sut.fireRecordsUpdated(changeNotification);
   }
+
+  @Test
+  public void shouldNotifyAllListeners() {
+    ChangeNotifier.Listener<String> other = mockListener();
+    sut.setListener(listener, false);
+    sut.addListener(other, false, null);
+
+    sut.fireRecordsUpdated(changeNotification);
+
+    verify(listener).onChange(changeNotification);
+    verify(other).onChange(changeNotification);
+  }
+
+  @Test
+  public void shouldAllowSettingListenerAfterAddingOne() {
+    sut.addListener(mockListener(), false, null);
+    sut.setListener(listener, false);
+
+    sut.fireRecordsUpdated(changeNotification);
+
+    verify(listener).onChange(changeNotification);
+  }
+
+  @Test
+  public void shouldNotifyListenersAfterOneThatThrows() {
+    doThrow(new RuntimeException("stupid listener"))
+        .when(listener)
+        .onChange(changeNotification);
+    ChangeNotifier.Listener<String> other = mockListener();
+    sut.addListener(listener, false, null);
+    sut.addListener(other, false, null);
+
+    sut.fireRecordsUpdated(changeNotification);
+
+    verify(other).onChange(changeNotification);
+  }
+
+  @Test
+  public void shouldCallListenerOnFiringThreadBeforeReturning() {
+    final List<Thread> threads = new ArrayList<>();
+    sut.addListener(n -> threads.add(Thread.currentThread()), false, null);
+
+    sut.fireRecordsUpdated(changeNotification);
+
+    assertThat(threads, is(Collections.singletonList(Thread.currentThread())));
+  }
+
+  @Test
+  public void shouldDeliverChangesInOrderOnExecutor() {
+    List<Runnable> tasks = new ArrayList<>();
+    sut.addListener(listener, true, tasks::add);
+    ChangeNotifier.ChangeNotification<String> second = mockNotification();
+
+    sut.fireRecordsUpdated(changeNotification);
+    sut.fireRecordsUpdated(second);
+
+    verifyZeroInteractions(listener);
+    assertThat(tasks.size(), is(1));
+
+    tasks.get(0).run();
+
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener, times(3)).onChange(captor.capture());
+    assertThat(captor.getAllValues().get(1), is(sameInstance(changeNotification)));
+    assertThat(captor.getAllValues().get(2), is(sameInstance(second)));
+  }
+
+  @Test
+  public void shouldScheduleAgainForChangesAfterDraining() {
+    List<Runnable> tasks = new ArrayList<>();
+    sut.addListener(listener, false, tasks::add);
+
+    sut.fireRecordsUpdated(changeNotification);
+    tasks.get(0).run();
+    sut.fireRecordsUpdated(changeNotification);
+    tasks.get(1).run();
+
+    verify(listener, times(2)).onChange(changeNotification);
+  }
+
+  @Test
+  public void shouldNotDeliverChangesOnExecutorAfterClose() {
+    List<Runnable> tasks = new ArrayList<>();
+    sut.addListener(listener, false, tasks::add);
+
+    sut.fireRecordsUpdated(changeNotification);
+    sut.close();
+    tasks.get(0).run();
+
+    verifyZeroInteractions(listener);
+  }
+
+  @Test
+  public void shouldDeliverChangesFiredByListenersAfterTheCurrentOne() {
+    ChangeNotifier.ChangeNotification<String> second = mockNotification();
+    ChangeNotifier.Listener<String> other = mockListener();
+    sut.addListener(n -> {
+      if (n == changeNotification) {
+        sut.fireRecordsUpdated(second);
+      }
+    }, false, null);
+    sut.addListener(other, false, null);
+
+    sut.fireRecordsUpdated(changeNotification);
+
+    InOrder inOrder = inOrder(other);
+    inOrder.verify(other).onChange(changeNotification);
+    inOrder.verify(other).onChange(second);
+  }
+
+  @Test
+  public void shouldDeliverConcurrentChangesOnceAndInOrder() throws Exception {
+    final int threads = 4;
+    final int changesPerThread = 10000;
+    final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    sut.setListener(n -> received.add(Iterables.getOnlyElement(n.current())), false);
+
+    final CountDownLatch start = new CountDownLatch(1);
+    final List<Thread> firing = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int thread = t;
+      firing.add(new Thread(() -> {
+        Uninterruptibles.awaitUninterruptibly(start);
+        for (int i = 0; i < changesPerThread; i++) {
+          sut.fireRecordsUpdated(
+              sut.newChangeNotification(ImmutableSet.of(thread + ":" + i), ImmutableSet.of()));
+        }
+      }));
+    }
+    firing.forEach(Thread::start);
+    start.countDown();
+    for (Thread thread : firing) {
+      thread.join();
+    }
+
+    assertThat(received.size(), is(threads * changesPerThread));
+    final int[] next = new int[threads];
+    for (String change : received) {
+      final int thread = Integer.parseInt(change.substring(0, change.indexOf(':')));
+      assertThat(change, is(thread + ":" + next[thread]++));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChangeNotifier.Listener<String> mockListener() {
+    return mock(ChangeNotifier.Listener.class);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static ChangeNotifier.ChangeNotification<String> mockNotification() {
+    return mock(ChangeNotifier.ChangeNotification.class);
+  }
+
+  @Test
+  public void shouldComputeDeltasOnce() {
+    ChangeNotifier.ChangeNotification<String> notification =
+        sut.newChangeNotification(Sets.newHashSet("foo", "bar"), Sets.newHashSet("bar", "baz"));
+
+    assertThat(notification.added(), containsInAnyOrder("foo"));
+    assertThat(notification.removed(), containsInAnyOrder("baz"));
+    assertThat(notification.added(), is(sameInstance(notification.added())));
+    assertThat(notification.removed(), is(sameInstance(notification.removed())));
+  }
+
+  @Test
+  public void shouldRebuildPreviousFromDeltas() {
+    ChangeNotifier.ChangeNotification<String> notification =
+        sut.newDeltaChangeNotification(ImmutableSet.of("foo", "bar"),
+                                       ImmutableSet.of("bar", "baz"));
+
+    assertThat(notification.added(), containsInAnyOrder("foo"));
+    assertThat(notification.removed(), containsInAnyOrder("baz"));
+    assertThat(notification.current(), containsInAnyOrder("foo", "bar"));
+    assertThat(notification.previous(), containsInAnyOrder("bar", "baz"));
+  }
+
+  @Test
+  public void shouldKeepInitialEmptyDataInDeltaNotifications() {
+    ChangeNotifier.ChangeNotification<String> notification =
+        sut.newDeltaChangeNotification(ImmutableSet.of("foo"),
+                                       ChangeNotifiers.initialEmptyDataInstance());
+
+    assertThat(ChangeNotifiers.isInitialEmptyData(notification.previous()), is(true));
+    assertThat(notification.added(), containsInAnyOrder("foo"));
+    assertThat(notification.removed().isEmpty(), is(true));
+  }
 }
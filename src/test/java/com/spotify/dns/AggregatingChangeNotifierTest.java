@@ -15,18 +15,27 @@
  */
 package com.spotify.dns;
 
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
 public class AggregatingChangeNotifierTest {
   @Test
@@ -44,7 +53,105 @@ public class AggregatingChangeNotifierTest {
 
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldAggregateChangesOfAllNotifiers() {
+    AtomicReference<Set<String>> records1 = new AtomicReference<>(ImmutableSet.of("a", "b"));
+    AtomicReference<Set<String>> records2 = new AtomicReference<>(ImmutableSet.of("b", "c"));
+    ChangeNotifierFactory.RunnableChangeNotifier<String> child1 = ChangeNotifiers.direct(records1);
+    ChangeNotifierFactory.RunnableChangeNotifier<String> child2 = ChangeNotifiers.direct(records2);
+    child1.run();
+    child2.run();
+
+    AggregatingChangeNotifier<String> notifier =
+        new AggregatingChangeNotifier<>(Arrays.asList(child1, child2));
+    ChangeNotifier.Listener<String> listener = mock(ChangeNotifier.Listener.class);
+    notifier.setListener(listener, false);
+    assertThat(notifier.current(), containsInAnyOrder("a", "b", "c"));
+
+    // b is still provided by the second notifier
+    records1.set(ImmutableSet.of("a", "d"));
+    child1.run();
+
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener).onChange(captor.capture());
+    ChangeNotifier.ChangeNotification<String> notification = captor.getValue();
+    assertThat(notification.added(), containsInAnyOrder("d"));
+    assertThat(notification.removed().isEmpty(), is(true));
+    assertThat(notification.previous(), containsInAnyOrder("a", "b", "c"));
+    assertThat(notification.current(), containsInAnyOrder("a", "b", "c", "d"));
+
+    records2.set(ImmutableSet.of("c"));
+    child2.run();
+
+    verify(listener, times(2)).onChange(captor.capture());
+    notification = captor.getValue();
+    assertThat(notification.added().isEmpty(), is(true));
+    assertThat(notification.removed(), containsInAnyOrder("b"));
+    assertThat(notifier.current(), containsInAnyOrder("a", "c", "d"));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldNotNotifyIfAggregateIsUnchanged() {
+    AtomicReference<Set<String>> records1 = new AtomicReference<>(ImmutableSet.of("a"));
+    AtomicReference<Set<String>> records2 = new AtomicReference<>(ImmutableSet.of("a"));
+    ChangeNotifierFactory.RunnableChangeNotifier<String> child1 = ChangeNotifiers.direct(records1);
+    ChangeNotifierFactory.RunnableChangeNotifier<String> child2 = ChangeNotifiers.direct(records2);
+    child1.run();
+    child2.run();
+
+    AggregatingChangeNotifier<String> notifier =
+        new AggregatingChangeNotifier<>(Arrays.asList(child1, child2));
+    ChangeNotifier.Listener<String> listener = mock(ChangeNotifier.Listener.class);
+    notifier.setListener(listener, false);
+
+    records1.set(ImmutableSet.of());
+    child1.run();
+
+    verify(listener, never()).onChange(any(ChangeNotifier.ChangeNotification.class));
+    assertThat(notifier.current(), containsInAnyOrder("a"));
+  }
+
+  @Test
+  public void shouldKeepEarlierAggregatesUnchanged() {
+    AtomicReference<Set<String>> records = new AtomicReference<>(ImmutableSet.of("a"));
+    ChangeNotifierFactory.RunnableChangeNotifier<String> child = ChangeNotifiers.direct(records);
+    child.run();
+    AggregatingChangeNotifier<String> notifier =
+        new AggregatingChangeNotifier<>(Arrays.asList(child));
+
+    List<Set<String>> aggregates = new ArrayList<>();
+    for (int i = 0; i < AggregatingChangeNotifier.MAX_PENDING_CHANGES * 2; i++) {
+      aggregates.add(notifier.current());
+      records.set(ImmutableSet.of("a", "record" + i));
+      child.run();
+    }
+
+    assertThat(aggregates.get(0), containsInAnyOrder("a"));
+    for (int i = 1; i < aggregates.size(); i++) {
+      assertThat(aggregates.get(i), containsInAnyOrder("a", "record" + (i - 1)));
+    }
+  }
+
+  @Test
+  public void shouldApplyChangesWithoutReadingRecordsOfNotifier() {
+    MyNotifier child = new MyNotifier();
+    child.set(ImmutableSet.of("a", "b"));
+    AggregatingChangeNotifier<String> notifier =
+        new AggregatingChangeNotifier<>(Arrays.asList(child));
+    int reads = child.reads.get();
+
+    child.set(ImmutableSet.of("a", "c"));
+    child.set(ImmutableSet.of("a", "c", "d"));
+
+    assertThat(notifier.current(), containsInAnyOrder("a", "c", "d"));
+    assertThat(child.reads.get(), is(reads));
+  }
+
   private static class MyNotifier extends AbstractChangeNotifier<String> {
+    private final AtomicInteger reads = new AtomicInteger();
     private volatile Set<String> records = ChangeNotifiers.initialEmptyDataInstance();
 
     @Override
@@ -53,11 +160,13 @@ public class AggregatingChangeNotifierTest {
 
     @Override
     public Set<String> current() {
+      reads.incrementAndGet();
       return records;
     }
 
     public void set(Set<String> records) {
-      fireRecordsUpdated(newChangeNotification(records, current()));
+      final Set<String> previous = this.records;
+      fireRecordsUpdated(newDeltaChangeNotification(records, previous));
       this.records = records;
     }
   }
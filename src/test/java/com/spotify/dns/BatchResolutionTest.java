@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.spotify.dns.DnsTestUtil.nodes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class BatchResolutionTest {
+
+  DnsSrvResolver resolver;
+  ErrorHandler errorHandler;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    resolver = mock(DnsSrvResolver.class);
+    errorHandler = mock(ErrorHandler.class);
+  }
+
+  @Test
+  public void shouldResolveAllNamesInOrder() throws Exception {
+    when(resolver.resolveAsync("a")).thenReturn(CompletableFuture.completedFuture(nodes("a1")));
+    when(resolver.resolveAsync("b")).thenReturn(CompletableFuture.completedFuture(nodes()));
+    when(resolver.resolveAsync("c")).thenReturn(CompletableFuture.completedFuture(nodes("c1")));
+
+    Map<String, List<LookupResult>> result = BatchResolution.resolveAll(
+        resolver, ImmutableList.of("c", "a", "b", "a"), 2, errorHandler)
+        .toCompletableFuture().get();
+
+    assertThat(result.keySet(), contains("c", "a", "b"));
+    assertThat(result.get("a"), equalTo(nodes("a1")));
+    assertThat(result.get("b").isEmpty(), is(true));
+    verify(errorHandler, never()).handle(anyString(), any(DnsException.class));
+  }
+
+  @Test
+  public void shouldReportFailuresWithoutFailingTheBatch() throws Exception {
+    DnsException failure = new DnsException("expected");
+    when(resolver.resolveAsync("a")).thenReturn(CompletableFuture.completedFuture(nodes("a1")));
+    when(resolver.resolveAsync("b")).thenReturn(DnsTestUtil.failedFuture(failure));
+    when(resolver.resolveAsync("c")).thenThrow(new DnsException("bad name"));
+
+    Map<String, List<LookupResult>> result = BatchResolution.resolveAll(
+        resolver, ImmutableList.of("a", "b", "c"), 2, errorHandler)
+        .toCompletableFuture().get();
+
+    assertThat(result.keySet(), contains("a"));
+    verify(errorHandler).handle("b", failure);
+    verify(errorHandler).handle(eq("c"), any(DnsException.class));
+  }
+
+  @Test
+  public void shouldLimitLookupsInFlight() throws Exception {
+    CompletableFuture<List<LookupResult>> a = new CompletableFuture<>();
+    CompletableFuture<List<LookupResult>> b = new CompletableFuture<>();
+    when(resolver.resolveAsync("a")).thenReturn(a);
+    when(resolver.resolveAsync("b")).thenReturn(b);
+    when(resolver.resolveAsync("c")).thenReturn(CompletableFuture.completedFuture(nodes("c1")));
+
+    CompletionStage<Map<String, List<LookupResult>>> result =
+        BatchResolution.resolveAll(resolver, ImmutableList.of("a", "b", "c"), 2, errorHandler);
+
+    verify(resolver, never()).resolveAsync("c");
+
+    b.complete(nodes("b1"));
+    verify(resolver).resolveAsync("c");
+    assertThat(result.toCompletableFuture().isDone(), is(false));
+
+    a.complete(nodes("a1"));
+    assertThat(result.toCompletableFuture().get().keySet(), contains("a", "b", "c"));
+  }
+
+  @Test
+  public void shouldCompleteEmptyBatch() throws Exception {
+    assertThat(BatchResolution.resolveAll(resolver, ImmutableList.of(), 1, errorHandler)
+                   .toCompletableFuture().get().isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldRejectNonPositiveConcurrency() {
+    thrown.expect(IllegalArgumentException.class);
+
+    BatchResolution.resolveAll(resolver, ImmutableList.of("a"), 0, errorHandler);
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.spotify.dns.DnsTestUtil.nodes;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.FakeTicker;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CachingDnsSrvResolverTest {
+  private static final String FQDN = "heythere";
+
+  CachingDnsSrvResolver resolver;
+
+  DnsSrvResolver delegate;
+  FakeTicker ticker;
+
+  List<LookupResult> nodes1;
+  List<LookupResult> nodes2;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    delegate = mock(DnsSrvResolver.class);
+    ticker = new FakeTicker();
+
+    resolver = new CachingDnsSrvResolver(delegate, 0, Long.MAX_VALUE, ticker);
+
+    nodes1 = ImmutableList.of(LookupResult.create("noden1", 8080, 1, 2, 30),
+                              LookupResult.create("noden2", 8080, 1, 2, 60));
+    nodes2 = nodes("noden3", "noden5", "somethingelse");
+  }
+
+  @Test
+  public void shouldReturnResultsFromDelegate() throws Exception {
+    when(delegate.resolveAsync(FQDN)).thenReturn(CompletableFuture.completedFuture(nodes1));
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+  }
+
+  @Test
+  public void shouldCacheUntilLowestTtlExpires() throws Exception {
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(29, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(1)).resolveAsync(FQDN);
+
+    ticker.advance(1, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes2));
+    verify(delegate, times(2)).resolveAsync(FQDN);
+  }
+
+  @Test
+  public void shouldCacheSyncResolve() {
+    when(delegate.resolve(FQDN)).thenReturn(nodes1).thenReturn(nodes2);
+
+    resolver.resolve(FQDN);
+
+    assertThat(resolver.resolve(FQDN), equalTo(nodes1));
+    verify(delegate, times(1)).resolve(FQDN);
+  }
+
+  @Test
+  public void shouldClampToMinTtl() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 120_000, Long.MAX_VALUE, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(119, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+  }
+
+  @Test
+  public void shouldClampToMaxTtl() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 0, 10_000, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(10, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes2));
+  }
+
+  @Test
+  public void shouldNotCacheEmptyResults() throws Exception {
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes()))
+        .thenReturn(CompletableFuture.completedFuture(nodes1));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+  }
+
+  @Test
+  public void shouldNotCacheFailures() throws Exception {
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(DnsTestUtil.failedFuture(new DnsException("expected")))
+        .thenReturn(CompletableFuture.completedFuture(nodes1));
+
+    try {
+      resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    } catch (ExecutionException expected) {
+      // expected
+    }
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+  }
+
+  @Test
+  public void shouldThrowIfMaxTtlLessThanMinTtl() {
+    thrown.expect(IllegalArgumentException.class);
+
+    new CachingDnsSrvResolver(delegate, 1000, 999, ticker);
+  }
+
+  @Test
+  public void shouldRefreshHotEntriesAhead() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 0, Long.MAX_VALUE, 0.8, 2, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(24, TimeUnit.SECONDS);
+
+    // this read is past 80% of the 30s TTL, so it triggers a refresh but returns cached data
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(2)).resolveAsync(FQDN);
+
+    ticker.advance(6, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes2));
+    verify(delegate, times(2)).resolveAsync(FQDN);
+  }
+
+  @Test
+  public void shouldNotRefreshRarelyUsedEntriesAhead() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 0, Long.MAX_VALUE, 0.8, 2, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(24, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(1)).resolveAsync(FQDN);
+  }
+
+  @Test
+  public void shouldRefreshAheadOnlyOnceWhileInFlight() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 0, Long.MAX_VALUE, 0.8, 1, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(new CompletableFuture<>());
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(25, TimeUnit.SECONDS);
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    verify(delegate, times(2)).resolveAsync(FQDN);
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsedNamesWhenFull() throws Exception {
+    resolver = new CachingDnsSrvResolver(delegate, 0, Long.MAX_VALUE, 0.0, 1, 2, ticker);
+    when(delegate.resolveAsync(anyString()))
+        .thenReturn(CompletableFuture.completedFuture(nodes1));
+
+    resolver.resolveAsync("a").toCompletableFuture().get();
+    resolver.resolveAsync("b").toCompletableFuture().get();
+    resolver.resolveAsync("c").toCompletableFuture().get();
+    resolver.resolveAsync("c").toCompletableFuture().get();
+    resolver.resolveAsync("a").toCompletableFuture().get();
+
+    verify(delegate, times(2)).resolveAsync("a");
+    verify(delegate, times(1)).resolveAsync("c");
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.dns.statistics.DnsReporter;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+
+public class CircuitBreakingResolverTest {
+
+  Resolver delegate;
+  DnsReporter reporter;
+  CircuitBreakingResolver resolver;
+
+  Message query;
+  Message response;
+
+  @Before
+  public void setUp() {
+    delegate = mock(Resolver.class);
+    reporter = mock(DnsReporter.class);
+    resolver = new CircuitBreakingResolver(delegate, 3, 0.25, reporter);
+
+    query = new Message();
+    response = new Message();
+  }
+
+  @Test
+  public void shouldOpenAfterConsecutiveFailures() throws Exception {
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(), failed(), failed());
+
+    send();
+    send();
+    assertThat(resolver.isOpen(), is(false));
+
+    send();
+    assertThat(resolver.isOpen(), is(true));
+    verify(reporter).reportCircuitOpened(anyString());
+  }
+
+  @Test
+  public void shouldCountServfailAsFailure() throws Exception {
+    Message servfail = new Message();
+    servfail.getHeader().setRcode(Rcode.SERVFAIL);
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+
+    send();
+    send();
+    send();
+
+    assertThat(resolver.isOpen(), is(true));
+  }
+
+  @Test
+  public void shouldNotOpenOnIntermittentFailures() throws Exception {
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(), failed(), CompletableFuture.completedFuture(response), failed());
+
+    send();
+    send();
+    send();
+    send();
+
+    assertThat(resolver.isOpen(), is(false));
+  }
+
+  @Test
+  public void shouldRejectQueriesExceptProbesWhileOpen() throws Exception {
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(), failed(), failed(), failed());
+    for (int i = 0; i < 3; i++) {
+      send();
+    }
+
+    for (int i = 0; i < 8; i++) {
+      send();
+    }
+
+    // 3 queries to trip, then 1 in 4 of the next 8 as probes
+    verify(delegate, times(5)).sendAsync(any(Message.class), any(Executor.class));
+  }
+
+  @Test
+  public void shouldCloseWhenProbeSucceeds() throws Exception {
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(), failed(), failed(), CompletableFuture.completedFuture(response));
+    for (int i = 0; i < 3; i++) {
+      send();
+    }
+
+    for (int i = 0; i < 4; i++) {
+      send();
+    }
+
+    assertThat(resolver.isOpen(), is(false));
+    verify(reporter).reportCircuitClosed(anyString());
+    assertThat(resolver.sendAsync(query).toCompletableFuture().get(), is(sameInstance(response)));
+  }
+
+  @Test
+  public void shouldOnlyProbeOneQueryAtATime() throws Exception {
+    when(delegate.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(), failed(), failed(), new CompletableFuture<>());
+    for (int i = 0; i < 3; i++) {
+      send();
+    }
+
+    for (int i = 0; i < 12; i++) {
+      send();
+    }
+
+    verify(delegate, times(4)).sendAsync(any(Message.class), any(Executor.class));
+    verify(reporter, never()).reportCircuitClosed(anyString());
+  }
+
+  private void send() throws Exception {
+    CompletionStage<Message> result = resolver.sendAsync(query);
+    if (result.toCompletableFuture().isDone()) {
+      try {
+        result.toCompletableFuture().get();
+      } catch (ExecutionException expected) {
+        // expected
+      }
+    }
+  }
+
+  private static CompletableFuture<Message> failed() {
+    CompletableFuture<Message> future = new CompletableFuture<>();
+    future.completeExceptionally(new IOException("expected"));
+    return future;
+  }
+}
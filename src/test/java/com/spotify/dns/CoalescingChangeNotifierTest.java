@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.testing.FakeTicker;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class CoalescingChangeNotifierTest {
+
+  AtomicReference<Set<String>> records;
+  ScheduledExecutorService scheduler;
+  FakeTicker ticker;
+  ChangeNotifier.Listener<String> listener;
+  CoalescingChangeNotifier<String> sut;
+
+  List<Runnable> scheduled;
+  List<Long> delays;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    records = new AtomicReference<>(ImmutableSet.of("a"));
+    scheduler = mock(ScheduledExecutorService.class);
+    ticker = new FakeTicker();
+    listener = mock(ChangeNotifier.Listener.class);
+
+    scheduled = new ArrayList<>();
+    delays = new ArrayList<>();
+    when(scheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+        .thenAnswer(invocation -> {
+          scheduled.add((Runnable) invocation.getArguments()[0]);
+          delays.add((Long) invocation.getArguments()[1]);
+          return mock(ScheduledFuture.class);
+        });
+
+    sut = new CoalescingChangeNotifier<>(ChangeNotifiers.direct(records), 100, 250, scheduler,
+                                         ticker);
+    sut.setListener(listener, false);
+  }
+
+  @Test
+  public void shouldSendFirstRecordsRightAway() {
+    sut.run();
+
+    ChangeNotifier.ChangeNotification<String> notification = lastNotification(1);
+    assertThat(notification.current(), is(ImmutableSet.of("a")));
+    assertThat(sut.current(), is(ImmutableSet.of("a")));
+    verifyZeroInteractions(scheduler);
+  }
+
+  @Test
+  public void shouldCoalesceBurstOfChanges() {
+    sut.run();
+    change("a", "b");
+    change("b");
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+    assertThat(sut.current(), is(ImmutableSet.of("a")));
+
+    last(scheduled).run();
+
+    ChangeNotifier.ChangeNotification<String> notification = lastNotification(2);
+    assertThat(notification.previous(), is(ImmutableSet.of("a")));
+    assertThat(notification.current(), is(ImmutableSet.of("b")));
+    assertThat(notification.added(), is(ImmutableSet.of("b")));
+    assertThat(notification.removed(), is(ImmutableSet.of("a")));
+    assertThat(sut.current(), is(ImmutableSet.of("b")));
+  }
+
+  @Test
+  public void shouldNotSendBurstThatUndoesItself() {
+    sut.run();
+    change("a", "b");
+    change("a");
+
+    last(scheduled).run();
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+  }
+
+  @Test
+  public void shouldWaitForWindowAfterEachChange() {
+    sut.run();
+    change("a", "b");
+    ticker.advance(50, TimeUnit.MILLISECONDS);
+    change("b");
+
+    assertThat(delays, is(ImmutableList.of(TimeUnit.MILLISECONDS.toNanos(100),
+                                           TimeUnit.MILLISECONDS.toNanos(100))));
+  }
+
+  @Test
+  public void shouldNotDelayFirstChangeOfBurstPastMaxDelay() {
+    sut.run();
+    change("a", "b");
+    ticker.advance(200, TimeUnit.MILLISECONDS);
+    change("b");
+    ticker.advance(100, TimeUnit.MILLISECONDS);
+    change("c");
+
+    assertThat(delays, is(ImmutableList.of(TimeUnit.MILLISECONDS.toNanos(100),
+                                           TimeUnit.MILLISECONDS.toNanos(50),
+                                           0L)));
+  }
+
+  @Test
+  public void shouldIgnoreFlushThatWasReplaced() {
+    sut.run();
+    change("a", "b");
+    change("b");
+
+    scheduled.get(0).run();
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+  }
+
+  @Test
+  public void shouldNotSendAfterClose() {
+    sut.run();
+    change("a", "b");
+    sut.close();
+
+    last(scheduled).run();
+    records.set(ImmutableSet.of("c"));
+    sut.run();
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+  }
+
+  @Test
+  public void shouldSendBurstRightAwayWhenFlushIsRejected() {
+    sut.run();
+    when(scheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class)))
+        .thenThrow(new RejectedExecutionException("shut down"));
+
+    change("a", "b");
+    assertThat(lastNotification(2).current(), is(ImmutableSet.of("a", "b")));
+
+    change("b");
+    assertThat(lastNotification(3).current(), is(ImmutableSet.of("b")));
+    assertThat(sut.current(), is(ImmutableSet.of("b")));
+  }
+
+  @Test
+  public void shouldNotBlockChangesWhileListenerIsCalled() throws Exception {
+    sut.run();
+    CountDownLatch entered = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    sut.addListener(notification -> {
+      entered.countDown();
+      Uninterruptibles.awaitUninterruptibly(release);
+    }, false, null);
+    change("a", "b");
+
+    Thread flushing = new Thread(last(scheduled));
+    flushing.start();
+    try {
+      assertThat(entered.await(5, TimeUnit.SECONDS), is(true));
+
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      try {
+        executor.submit(() -> change("b")).get(5, TimeUnit.SECONDS);
+      } finally {
+        executor.shutdown();
+      }
+    } finally {
+      release.countDown();
+      flushing.join();
+    }
+  }
+
+  private void change(String... current) {
+    records.set(ImmutableSet.copyOf(current));
+    sut.run();
+  }
+
+  @SuppressWarnings("unchecked")
+  private ChangeNotifier.ChangeNotification<String> lastNotification(int notifications) {
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener, times(notifications)).onChange(captor.capture());
+    return captor.getValue();
+  }
+
+  private static <T> T last(List<T> list) {
+    return list.get(list.size() - 1);
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.spotify.dns.DnsTestUtil.nodes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class CoalescingDnsSrvResolverTest {
+  private static final String FQDN = "heythere";
+
+  CoalescingDnsSrvResolver resolver;
+
+  DnsSrvResolver delegate;
+  DnsReporter reporter;
+
+  CompletableFuture<List<LookupResult>> pending;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    delegate = mock(DnsSrvResolver.class);
+    reporter = mock(DnsReporter.class);
+
+    resolver = new CoalescingDnsSrvResolver(delegate, reporter);
+
+    pending = new CompletableFuture<>();
+  }
+
+  @Test
+  public void shouldShareInFlightLookup() throws Exception {
+    when(delegate.resolveAsync(FQDN)).thenReturn(pending);
+
+    CompletionStage<List<LookupResult>> first = resolver.resolveAsync(FQDN);
+    CompletionStage<List<LookupResult>> second = resolver.resolveAsync(FQDN);
+    pending.complete(nodes("noden1"));
+
+    assertThat(first.toCompletableFuture().get(), equalTo(nodes("noden1")));
+    assertThat(second.toCompletableFuture().get(), equalTo(nodes("noden1")));
+    verify(delegate, times(1)).resolveAsync(FQDN);
+    verify(reporter, times(1)).reportCoalesced();
+  }
+
+  @Test
+  public void shouldStartNewLookupWhenPreviousCompleted() throws Exception {
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes("noden1")))
+        .thenReturn(CompletableFuture.completedFuture(nodes("noden2")));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes("noden2")));
+    verify(reporter, never()).reportCoalesced();
+  }
+
+  @Test
+  public void shouldShareFailures() throws Exception {
+    DnsException cause = new DnsException("expected");
+    when(delegate.resolveAsync(FQDN)).thenReturn(pending);
+
+    resolver.resolveAsync(FQDN);
+    CompletionStage<List<LookupResult>> second = resolver.resolveAsync(FQDN);
+    pending.completeExceptionally(cause);
+
+    thrown.expect(ExecutionException.class);
+    thrown.expectCause(is(cause));
+
+    second.toCompletableFuture().get();
+  }
+
+  @Test
+  public void shouldNotLetOneCallerCancelAnother() throws Exception {
+    when(delegate.resolveAsync(FQDN)).thenReturn(pending);
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().cancel(true);
+    CompletionStage<List<LookupResult>> second = resolver.resolveAsync(FQDN);
+    pending.complete(nodes("noden1"));
+
+    assertThat(second.toCompletableFuture().get(), equalTo(nodes("noden1")));
+  }
+}
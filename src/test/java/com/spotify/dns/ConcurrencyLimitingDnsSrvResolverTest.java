@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.spotify.dns.ConcurrencyLimitingDnsSrvResolver.INITIAL_LIMIT;
+import static com.spotify.dns.DnsTestUtil.nodes;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.testing.FakeTicker;
+import com.spotify.dns.statistics.DnsReporter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+public class ConcurrencyLimitingDnsSrvResolverTest {
+
+  DnsSrvResolver delegate;
+  DnsReporter reporter;
+  FakeTicker ticker;
+  ConcurrencyLimitingDnsSrvResolver resolver;
+
+  List<CompletableFuture<List<LookupResult>>> pending;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    delegate = mock(DnsSrvResolver.class);
+    reporter = mock(DnsReporter.class);
+    ticker = new FakeTicker();
+    resolver = new ConcurrencyLimitingDnsSrvResolver(delegate, 100, 60_000, 10, reporter, ticker);
+
+    pending = new ArrayList<>();
+    when(delegate.resolveAsync(anyString())).thenAnswer(invocation -> {
+      CompletableFuture<List<LookupResult>> lookup = new CompletableFuture<>();
+      pending.add(lookup);
+      return lookup;
+    });
+  }
+
+  @Test
+  public void shouldQueueLookupsOverLimit() throws Exception {
+    fillLimit();
+
+    CompletionStage<List<LookupResult>> queued = resolver.resolveAsync("queued");
+    verify(delegate, times(INITIAL_LIMIT)).resolveAsync(anyString());
+    assertThat(resolver.queueDepth(), is(1));
+    verify(reporter).reportLookupQueueDepth(1);
+
+    pending.get(0).complete(nodes("node"));
+    verify(delegate).resolveAsync("queued");
+    assertThat(resolver.queueDepth(), is(0));
+
+    pending.get(INITIAL_LIMIT).complete(nodes("queuednode"));
+    assertThat(queued.toCompletableFuture().get(), equalTo(nodes("queuednode")));
+  }
+
+  @Test
+  public void shouldRejectLookupsWhenQueueIsFull() throws Exception {
+    resolver = new ConcurrencyLimitingDnsSrvResolver(delegate, 100, 60_000, 0, reporter, ticker);
+    fillLimit();
+
+    thrown.expect(ExecutionException.class);
+    thrown.expectCause(instanceOf(DnsException.class));
+
+    resolver.resolveAsync("rejected").toCompletableFuture().get();
+  }
+
+  @Test
+  public void shouldRejectLookupsThatWaitTooLong() throws Exception {
+    resolver = new ConcurrencyLimitingDnsSrvResolver(delegate, 100, 10, 10, reporter, ticker);
+    fillLimit();
+
+    thrown.expect(ExecutionException.class);
+    thrown.expectCause(instanceOf(DnsException.class));
+
+    resolver.resolveAsync("rejected").toCompletableFuture().get(5, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void shouldNotCountOrStartLookupsThatTimedOutInQueue() throws Exception {
+    resolver = new ConcurrencyLimitingDnsSrvResolver(delegate, 100, 200, 1, reporter, ticker);
+    fillLimit();
+    CompletableFuture<List<LookupResult>> expired =
+        resolver.resolveAsync("expired").toCompletableFuture();
+    try {
+      expired.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(DnsException.class));
+    }
+    assertThat(resolver.queueDepth(), is(0));
+
+    CompletionStage<List<LookupResult>> queued = resolver.resolveAsync("queued");
+    assertThat(resolver.queueDepth(), is(1));
+    pending.get(0).complete(nodes("node"));
+
+    verify(delegate).resolveAsync("queued");
+    verify(delegate, never()).resolveAsync("expired");
+    assertThat(resolver.queueDepth(), is(0));
+    pending.get(INITIAL_LIMIT).complete(nodes("queuednode"));
+    assertThat(queued.toCompletableFuture().get(), equalTo(nodes("queuednode")));
+  }
+
+  @Test
+  public void shouldDecreaseLimitOnSlowLookups() {
+    fillLimit();
+
+    ticker.advance(101, TimeUnit.MILLISECONDS);
+    pending.get(0).complete(nodes("node"));
+
+    assertThat(resolver.limit(), is(18));
+    verify(reporter).reportConcurrencyLimit(18);
+  }
+
+  @Test
+  public void shouldDecreaseLimitOnFailures() {
+    fillLimit();
+
+    pending.get(0).completeExceptionally(new DnsException("expected"));
+
+    assertThat(resolver.limit(), is(18));
+  }
+
+  @Test
+  public void shouldIncreaseLimitOnFastLookupsUnderLoad() {
+    fillLimit();
+
+    pending.get(INITIAL_LIMIT - 1).complete(nodes("node"));
+
+    assertThat(resolver.limit(), is(INITIAL_LIMIT + 1));
+  }
+
+  @Test
+  public void shouldNotIncreaseLimitWhenIdle() {
+    resolver.resolveAsync("single");
+
+    pending.get(0).complete(nodes("node"));
+
+    assertThat(resolver.limit(), is(INITIAL_LIMIT));
+  }
+
+  @Test
+  public void shouldStartDeepQueueOfSynchronouslyFailingLookups() {
+    resolver =
+        new ConcurrencyLimitingDnsSrvResolver(delegate, 100, 60_000, 10_000, reporter, ticker);
+    CompletableFuture<List<LookupResult>> held = new CompletableFuture<>();
+    when(delegate.resolveAsync(anyString())).thenThrow(new DnsException("expected"));
+    doReturn(held).when(delegate).resolveAsync("held");
+
+    // fail lookups until the limit is down to one, then queue lookups behind one in flight
+    while (resolver.limit() > 1) {
+      resolver.resolveAsync("failing");
+    }
+    resolver.resolveAsync("held");
+    List<CompletableFuture<List<LookupResult>>> queued = new ArrayList<>();
+    for (int i = 0; i < 10_000; i++) {
+      queued.add(resolver.resolveAsync("queued" + i).toCompletableFuture());
+    }
+    assertThat(resolver.queueDepth(), is(10_000));
+
+    held.completeExceptionally(new DnsException("expected"));
+
+    assertThat(resolver.queueDepth(), is(0));
+    for (CompletableFuture<List<LookupResult>> lookup : queued) {
+      assertThat(lookup.isCompletedExceptionally(), is(true));
+    }
+  }
+
+  private void fillLimit() {
+    for (int i = 0; i < INITIAL_LIMIT; i++) {
+      resolver.resolveAsync("name" + i);
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+  private static final int KEYS = 10_000;
+
+  private static final LookupResult A = result("a");
+  private static final LookupResult B = result("b");
+  private static final LookupResult C = result("c");
+  private static final LookupResult D = result("d");
+
+  ConsistentHashRing<LookupResult> ring;
+
+  @Before
+  public void setUp() {
+    ring = ConsistentHashRing.forLookupResults();
+  }
+
+  @Test
+  public void shouldReturnNullWhenEmpty() {
+    assertThat(ring.isEmpty(), is(true));
+    assertThat(ring.get("user"), is(nullValue()));
+  }
+
+  @Test
+  public void shouldSpreadKeysOverMembers() {
+    ring.update(ImmutableSet.of(A, B, C, D));
+
+    Map<LookupResult, Integer> counts = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      counts.merge(ring.get("user" + i), 1, Integer::sum);
+    }
+
+    assertThat(counts.keySet(), containsInAnyOrder(A, B, C, D));
+    for (int count : counts.values()) {
+      assertThat(Math.abs(count - KEYS / 4), lessThan(KEYS / 10));
+    }
+  }
+
+  @Test
+  public void shouldOnlyMoveKeysToAddedMember() {
+    ring.update(ImmutableSet.of(A, B, C));
+    Map<String, LookupResult> before = assignments();
+
+    ring.update(ImmutableSet.of(A, B, C, D));
+    Map<String, LookupResult> after = assignments();
+
+    int moved = 0;
+    for (String key : before.keySet()) {
+      if (!before.get(key).equals(after.get(key))) {
+        assertThat(after.get(key), equalTo(D));
+        moved++;
+      }
+    }
+    assertThat(Math.abs(moved - KEYS / 4), lessThan(KEYS / 10));
+  }
+
+  @Test
+  public void shouldOnlyMoveKeysOfRemovedMember() {
+    ring.update(ImmutableSet.of(A, B, C, D));
+    Map<String, LookupResult> before = assignments();
+
+    ring.update(ImmutableSet.of(A, B, C));
+    Map<String, LookupResult> after = assignments();
+
+    for (String key : before.keySet()) {
+      if (!before.get(key).equals(D)) {
+        assertThat(after.get(key), equalTo(before.get(key)));
+      }
+    }
+    assertThat(ring.members(), containsInAnyOrder(A, B, C));
+  }
+
+  @Test
+  public void shouldNotDependOnOrderOfChanges() {
+    ring.update(ImmutableSet.of(A, B));
+    ring.update(ImmutableSet.of(B, C));
+    ring.update(ImmutableSet.of(B, C, D, A));
+
+    ConsistentHashRing<LookupResult> rebuilt = ConsistentHashRing.forLookupResults();
+    rebuilt.update(ImmutableSet.of(A, B, C, D));
+
+    for (int i = 0; i < KEYS; i++) {
+      assertThat(ring.get("user" + i), equalTo(rebuilt.get("user" + i)));
+    }
+  }
+
+  @Test
+  public void shouldHandPointsToMemberWhoseTtlChanged() {
+    ring.update(ImmutableSet.of(A, B, C));
+    Map<String, LookupResult> before = assignments();
+
+    LookupResult newA = LookupResult.create(A.host(), A.port(), A.priority(), A.weight(), 300);
+    ring.update(ImmutableSet.of(newA, B, C));
+    Map<String, LookupResult> after = assignments();
+
+    for (String key : before.keySet()) {
+      LookupResult expected = before.get(key).equals(A) ? newA : before.get(key);
+      assertThat(after.get(key), equalTo(expected));
+    }
+    assertThat(ring.members(), containsInAnyOrder(newA, B, C));
+  }
+
+  @Test
+  public void shouldFollowChangeNotifier() {
+    AtomicReference<Set<LookupResult>> records =
+        new AtomicReference<>(ImmutableSet.of(A, B));
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> notifier =
+        ChangeNotifiers.direct(records);
+    notifier.setListener(ring, true);
+    notifier.run();
+
+    assertThat(ring.members(), containsInAnyOrder(A, B));
+
+    records.set(ImmutableSet.of(B, C));
+    notifier.run();
+
+    assertThat(ring.members(), containsInAnyOrder(B, C));
+  }
+
+  private Map<String, LookupResult> assignments() {
+    Map<String, LookupResult> assignments = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      assignments.put("user" + i, ring.get("user" + i));
+    }
+    return assignments;
+  }
+
+  private static LookupResult result(String host) {
+    return LookupResult.create(host + ".example.", 8080, 1, 1, 60);
+  }
+}
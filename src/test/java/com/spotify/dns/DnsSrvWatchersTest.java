@@ -3,13 +3,21 @@ package com.spotify.dns;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.is;
-
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionStage;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import org.junit.Test;
@@ -25,6 +33,76 @@ public class DnsSrvWatchersTest {
     }
   }
 
+  @Test
+  public void shouldSendCoalescedChangesOnThreadOfItsOwnWithCustomTrigger() throws Exception {
+    final AtomicReference<ChangeNotifierFactory.RunnableChangeNotifier<LookupResult>> trigger =
+        new AtomicReference<>();
+    final DnsSrvWatcher<LookupResult> watcher = DnsSrvWatchers.newBuilder(changingResolver())
+        .customTrigger(triggeredBy(trigger))
+        .coalescingChanges(10, 10, TimeUnit.MILLISECONDS)
+        .build();
+    final ChangeNotifier<LookupResult> notifier = watcher.watch("horse.sto3.spotify.net");
+
+    final AtomicReference<String> thread = new AtomicReference<>();
+    final CountDownLatch latch = new CountDownLatch(1);
+    notifier.setListener(changeNotification -> {
+      if (changeNotification.current().contains(LookupResult.create("localhost", 2, 0, 0, 0))) {
+        thread.set(Thread.currentThread().getName());
+        latch.countDown();
+      }
+    }, false);
+
+    trigger.get().run();
+    trigger.get().run();
+    latch.await();
+    notifier.close();
+    watcher.close();
+    assertThat(thread.get(), startsWith("dns-coalescing-"));
+  }
+
+  @Test
+  public void shouldSendCoalescedChangesOnGivenExecutorWithCustomTrigger() throws Exception {
+    final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+    final AtomicReference<ChangeNotifierFactory.RunnableChangeNotifier<LookupResult>> trigger =
+        new AtomicReference<>();
+    final DnsSrvWatcher<LookupResult> watcher = DnsSrvWatchers.newBuilder(changingResolver())
+        .customTrigger(triggeredBy(trigger))
+        .usingExecutor(executor)
+        .coalescingChanges(10, 10, TimeUnit.MILLISECONDS)
+        .build();
+    watcher.watch("horse.sto3.spotify.net");
+
+    trigger.get().run();
+    trigger.get().run();
+
+    verify(executor).schedule(any(Runnable.class), anyLong(), any(TimeUnit.class));
+  }
+
+  private static DnsSrvResolver changingResolver() {
+    final DnsSrvResolver srvResolver = mock(DnsSrvResolver.class);
+    when(srvResolver.resolveAsync("horse.sto3.spotify.net")).thenReturn(
+        CompletableFuture.completedFuture(
+            ImmutableList.of(LookupResult.create("localhost", 1, 0, 0, 0))),
+        CompletableFuture.completedFuture(
+            ImmutableList.of(LookupResult.create("localhost", 2, 0, 0, 0))));
+    return srvResolver;
+  }
+
+  private static DnsSrvWatcherFactory<LookupResult> triggeredBy(
+      AtomicReference<ChangeNotifierFactory.RunnableChangeNotifier<LookupResult>> trigger) {
+    return changeNotifierFactory -> new DnsSrvWatcher<LookupResult>() {
+      @Override
+      public ChangeNotifier<LookupResult> watch(String fqdn) {
+        trigger.set(changeNotifierFactory.create(fqdn));
+        return trigger.get();
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+
   private void resolve() throws Exception {
     final DnsSrvResolver srvResolver = new FakeResolver(
         "horse.sto3.spotify.net", LookupResult.create("localhost", 1, 0, 0, 0));
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+  @Test
+  public void shouldEstimateFrequency() {
+    FrequencySketch sketch = new FrequencySketch(64);
+
+    for (int i = 0; i < 5; i++) {
+      sketch.increment("popular");
+    }
+    sketch.increment("rare");
+
+    assertThat(sketch.frequency("popular"), equalTo(5));
+    assertThat(sketch.frequency("rare"), equalTo(1));
+    assertThat(sketch.frequency("unseen"), equalTo(0));
+  }
+
+  @Test
+  public void shouldSaturate() {
+    FrequencySketch sketch = new FrequencySketch(64);
+
+    for (int i = 0; i < 100; i++) {
+      sketch.increment("popular");
+    }
+
+    assertThat(sketch.frequency("popular"), equalTo(15));
+  }
+
+  @Test
+  public void shouldAgeFrequencies() {
+    FrequencySketch sketch = new FrequencySketch(64);
+
+    for (int i = 0; i < 10; i++) {
+      sketch.increment("popular");
+    }
+    for (int i = 0; i < 640; i++) {
+      sketch.increment("other" + i);
+    }
+
+    assertThat(sketch.frequency("popular"), lessThan(10));
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+
+public class HedgingResolverTest {
+
+  Resolver first;
+  Resolver second;
+  Message query;
+  Message response;
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  @Before
+  public void setUp() {
+    first = mock(Resolver.class);
+    second = mock(Resolver.class);
+    query = new Message();
+    response = new Message();
+  }
+
+  @Test
+  public void shouldOnlyQueryFirstServerIfItAnswersInTime() throws Exception {
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 1000, 0);
+
+    assertThat(resolver.sendAsync(query).toCompletableFuture().get(), is(sameInstance(response)));
+    verify(second, never()).sendAsync(any(Message.class), any(Executor.class));
+  }
+
+  @Test
+  public void shouldQueryNextServerIfFirstIsSlow() throws Exception {
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(new CompletableFuture<>());
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 10, 0);
+
+    assertThat(resolver.sendAsync(query).toCompletableFuture().get(1, TimeUnit.SECONDS),
+               is(sameInstance(response)));
+  }
+
+  @Test
+  public void shouldQueryNextServerRightAwayIfFirstFails() throws Exception {
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(new IOException("expected")));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 60_000, 0);
+
+    assertThat(resolver.sendAsync(query).toCompletableFuture().get(1, TimeUnit.SECONDS),
+               is(sameInstance(response)));
+  }
+
+  @Test
+  public void shouldFailIfAllServersFail() throws Exception {
+    IOException failure = new IOException("expected");
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(new IOException("first")));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(failed(failure));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 10, 0);
+
+    thrown.expect(ExecutionException.class);
+    thrown.expectCause(is(failure));
+
+    resolver.sendAsync(query).toCompletableFuture().get(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void shouldQueryNextServerRightAwayIfFirstRespondsWithServerFailure() throws Exception {
+    Message servfail = new Message();
+    servfail.getHeader().setRcode(Rcode.SERVFAIL);
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 60_000, 50);
+
+    for (int i = 0; i < 20; i++) {
+      assertThat(resolver.sendAsync(query).toCompletableFuture().get(1, TimeUnit.SECONDS),
+                 is(sameInstance(response)));
+    }
+    assertThat(resolver.hedgeDelayNanos(0), is(TimeUnit.MILLISECONDS.toNanos(60_000)));
+  }
+
+  @Test
+  public void shouldReturnLastServerFailureIfNoServerAnswers() throws Exception {
+    Message refused = new Message();
+    refused.getHeader().setRcode(Rcode.REFUSED);
+    Message servfail = new Message();
+    servfail.getHeader().setRcode(Rcode.SERVFAIL);
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(refused));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 60_000, 0);
+
+    assertThat(resolver.sendAsync(query).toCompletableFuture().get(1, TimeUnit.SECONDS),
+               is(sameInstance(servfail)));
+  }
+
+  @Test
+  public void shouldUseFixedDelayUntilLatenciesAreKnown() {
+    HedgingResolver resolver = new HedgingResolver(ImmutableList.of(first, second), 25, 95);
+
+    assertThat(resolver.hedgeDelayNanos(0), is(TimeUnit.MILLISECONDS.toNanos(25)));
+  }
+
+  private static CompletableFuture<Message> failed(Exception e) {
+    CompletableFuture<Message> future = new CompletableFuture<>();
+    future.completeExceptionally(e);
+    return future;
+  }
+}
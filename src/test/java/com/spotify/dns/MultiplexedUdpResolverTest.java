@@ -0,0 +1,378 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedResolver;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TSIG;
+import org.xbill.DNS.Type;
+
+public class MultiplexedUdpResolverTest {
+
+  FakeDnsServer server;
+  MultiplexedUdpResolver resolver;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new FakeDnsServer(false);
+    resolver = new MultiplexedUdpResolver(server.address(), 2);
+    resolver.setTimeout(Duration.ofSeconds(5));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    resolver.close();
+    server.close();
+  }
+
+  @Test
+  public void shouldMatchResponsesToQueries() throws Exception {
+    CompletionStage<Message> first = resolver.sendAsync(query("first.example."));
+    CompletionStage<Message> second = resolver.sendAsync(query("second.example."));
+
+    Received received1 = server.nextQuery();
+    Received received2 = server.nextQuery();
+    server.reply(received2, answer(received2.query));
+    server.reply(received1, answer(received1.query));
+
+    assertThat(questionOf(first), equalTo(Name.fromString("first.example.")));
+    assertThat(questionOf(second), equalTo(Name.fromString("second.example.")));
+  }
+
+  @Test
+  public void shouldRestoreIdOfQuery() throws Exception {
+    Message query = query("first.example.");
+    query.getHeader().setID(4711);
+    CompletionStage<Message> response = resolver.sendAsync(query);
+
+    Received received = server.nextQuery();
+    server.reply(received, answer(received.query));
+
+    assertThat(response.toCompletableFuture().get(5, TimeUnit.SECONDS).getHeader().getID(),
+               equalTo(4711));
+  }
+
+  @Test
+  public void shouldIgnoreResponseToAnotherQuestion() throws Exception {
+    CompletionStage<Message> response = resolver.sendAsync(query("first.example."));
+
+    Received received = server.nextQuery();
+    Message spoofed = answer(query("other.example."));
+    spoofed.getHeader().setID(received.query.getHeader().getID());
+    server.reply(received, spoofed);
+    server.reply(received, answer(received.query));
+
+    assertThat(questionOf(response), equalTo(Name.fromString("first.example.")));
+  }
+
+  @Test
+  public void shouldTimeOut() throws Exception {
+    resolver.setTimeout(Duration.ofMillis(50));
+
+    CompletionStage<Message> response = resolver.sendAsync(query("first.example."));
+
+    try {
+      response.toCompletableFuture().get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(SocketTimeoutException.class));
+      return;
+    }
+    throw new AssertionError("expected a timeout");
+  }
+
+  @Test
+  public void shouldFailOutstandingQueriesWhenClosed() throws Exception {
+    CompletionStage<Message> response = resolver.sendAsync(query("first.example."));
+    server.nextQuery();
+
+    resolver.close();
+
+    try {
+      response.toCompletableFuture().get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(IOException.class));
+      return;
+    }
+    throw new AssertionError("expected a failure");
+  }
+
+  @Test
+  public void shouldKeepReceivingAfterFailingToHandleResponse() throws Exception {
+    try (MultiplexedUdpResolver single = new MultiplexedUdpResolver(server.address(), 1)) {
+      Executor throwing = command -> {
+        throw new IllegalStateException("injected");
+      };
+      single.sendAsync(query("first.example."), throwing);
+      Received failing = server.nextQuery();
+      server.reply(failing, answer(failing.query));
+
+      CompletionStage<Message> later = single.sendAsync(query("later.example."));
+      Received received = server.nextQuery();
+      server.reply(received, answer(received.query));
+
+      assertThat(questionOf(later), equalTo(Name.fromString("later.example.")));
+    }
+  }
+
+  @Test
+  public void shouldFailQueryWhenTcpRetryThrows() throws Exception {
+    Resolver tcp = mock(Resolver.class);
+    when(tcp.sendAsync(any(Message.class), any(Executor.class)))
+        .thenThrow(new IllegalStateException("injected"));
+    try (MultiplexedUdpResolver single = new MultiplexedUdpResolver(server.address(), 1, tcp)) {
+      CompletionStage<Message> truncated = single.sendAsync(query("first.example."));
+      Received failing = server.nextQuery();
+      Message response = answer(failing.query);
+      response.getHeader().setFlag(Flags.TC);
+      server.reply(failing, response);
+
+      try {
+        truncated.toCompletableFuture().get(5, TimeUnit.SECONDS);
+        throw new AssertionError("expected a failure");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+      }
+
+      CompletionStage<Message> later = single.sendAsync(query("later.example."));
+      Received received = server.nextQuery();
+      server.reply(received, answer(received.query));
+
+      assertThat(questionOf(later), equalTo(Name.fromString("later.example.")));
+    }
+  }
+
+  @Test
+  public void shouldShareResolverPerServerAndConfiguration() throws Exception {
+    List<String> servers = ImmutableList.of("127.0.0.1");
+
+    Resolver first = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, true, false, Duration.ofSeconds(1)));
+    Resolver second = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, true, false, Duration.ofSeconds(1)));
+    Resolver other = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, true, false, Duration.ofSeconds(2)));
+
+    assertThat(first, not(instanceOf(SimpleResolver.class)));
+    assertThat(second, sameInstance(first));
+    assertThat(other, not(sameInstance(first)));
+    assertThat(other.getTimeout(), equalTo(Duration.ofSeconds(2)));
+  }
+
+  @Test
+  public void shouldOnlyAcceptSettingsOfSharedResolverThatDontChangeIt() throws Exception {
+    Resolver shared = getOnlyElement(ForwardingResolver.resolversFor(
+        ImmutableList.of("127.0.0.1"), true, false, Duration.ofSeconds(3)));
+
+    shared.setTimeout(Duration.ofSeconds(3));
+    shared.setPort(SimpleResolver.DEFAULT_PORT);
+    shared.setTCP(false);
+    shared.setTSIGKey(null);
+
+    try {
+      shared.setTSIGKey(new TSIG(TSIG.HMAC_SHA256, "key.example.", "c2VjcmV0"));
+      throw new AssertionError("expected the TSIG key to be rejected");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    try {
+      shared.setTimeout(Duration.ofSeconds(4));
+      throw new AssertionError("expected the timeout to be rejected");
+    } catch (UnsupportedOperationException e) {
+      // expected
+    }
+    assertThat(shared.getTimeout(), equalTo(Duration.ofSeconds(3)));
+  }
+
+  /**
+   * Compares the throughput and latency of this resolver with dnsjava's default resolver at a
+   * fixed rate of 10k queries per second against a local server. Not run by default, since it
+   * takes a while and its results depend on the machine.
+   */
+  @Ignore
+  @Test
+  public void benchmarkAgainstExtendedResolver() throws Exception {
+    try (FakeDnsServer answering = new FakeDnsServer(true)) {
+      final MultiplexedUdpResolver multiplexed = new MultiplexedUdpResolver(answering.address());
+      final ExtendedResolver extended =
+          new ExtendedResolver(new Resolver[] {new SimpleResolver(answering.address())});
+
+      benchmark("ExtendedResolver", extended, 10_000, 5);
+      benchmark("MultiplexedUdpResolver", multiplexed, 10_000, 5);
+      multiplexed.close();
+    }
+  }
+
+  private static void benchmark(String name, Resolver resolver, int queriesPerSecond,
+                                int seconds) throws Exception {
+    final AtomicInteger succeeded = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicLong totalLatencyNanos = new AtomicLong();
+    final int total = queriesPerSecond * seconds;
+    final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / queriesPerSecond;
+
+    final long start = System.nanoTime();
+    for (int i = 0; i < total; i++) {
+      final long sendAt = start + i * intervalNanos;
+      while (System.nanoTime() < sendAt) {
+        Thread.yield();
+      }
+      resolver.sendAsync(query("host" + i + ".example.")).whenComplete((response, e) -> {
+        if (e == null) {
+          totalLatencyNanos.addAndGet(System.nanoTime() - sendAt);
+          succeeded.incrementAndGet();
+        } else {
+          failed.incrementAndGet();
+        }
+      });
+    }
+    while (succeeded.get() + failed.get() < total
+           && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(seconds + 10)) {
+      Thread.sleep(10);
+    }
+
+    final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%s: %d ok, %d failed, %.0f queries/s, mean latency %.3f ms%n",
+                      name, succeeded.get(), failed.get(), succeeded.get() / elapsedSeconds,
+                      totalLatencyNanos.get() / 1e6 / Math.max(1, succeeded.get()));
+  }
+
+  private static Message query(String name) throws IOException {
+    return Message.newQuery(Record.newRecord(Name.fromString(name), Type.SRV, DClass.IN));
+  }
+
+  private static Message answer(Message query) {
+    final Message response = new Message(query.getHeader().getID());
+    response.getHeader().setFlag(Flags.QR);
+    response.addRecord(query.getQuestion(), Section.QUESTION);
+    return response;
+  }
+
+  private static Name questionOf(CompletionStage<Message> response) throws Exception {
+    return response.toCompletableFuture().get(5, TimeUnit.SECONDS).getQuestion().getName();
+  }
+
+  private static final class Received {
+    private final Message query;
+    private final SocketAddress from;
+
+    Received(Message query, SocketAddress from) {
+      this.query = query;
+      this.from = from;
+    }
+  }
+
+  /**
+   * A DNS server on a local UDP port that either answers every query right away, or hands
+   * queries to the test to answer.
+   */
+  private static final class FakeDnsServer implements AutoCloseable {
+    private final DatagramSocket socket;
+    private final boolean autoAnswer;
+    private final BlockingQueue<Received> queries = new LinkedBlockingQueue<>();
+    private final Thread thread;
+
+    FakeDnsServer(boolean autoAnswer) throws IOException {
+      this.socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+      this.autoAnswer = autoAnswer;
+      this.thread = new Thread(this::serve, "fake-dns-server");
+      this.thread.setDaemon(true);
+      this.thread.start();
+    }
+
+    InetSocketAddress address() {
+      return (InetSocketAddress) socket.getLocalSocketAddress();
+    }
+
+    Received nextQuery() throws InterruptedException {
+      final Received received = queries.poll(5, TimeUnit.SECONDS);
+      if (received == null) {
+        throw new AssertionError("no query received");
+      }
+      return received;
+    }
+
+    void reply(Received received, Message response) throws IOException {
+      final byte[] wire = response.toWire();
+      socket.send(new DatagramPacket(wire, wire.length, received.from));
+    }
+
+    private void serve() {
+      final byte[] buffer = new byte[65535];
+      while (!socket.isClosed()) {
+        try {
+          final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          socket.receive(packet);
+          final byte[] data = new byte[packet.getLength()];
+          System.arraycopy(buffer, 0, data, 0, data.length);
+          final Received received =
+              new Received(new Message(data), packet.getSocketAddress());
+          if (autoAnswer) {
+            reply(received, answer(received.query));
+          } else {
+            queries.add(received);
+          }
+        } catch (IOException e) {
+          // closed, or a malformed query
+        }
+      }
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import com.spotify.dns.statistics.DnsReporter;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Credibility;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Type;
+
+public class NonSrvCacheTest {
+  private static final Name ZONE = Name.fromConstantString("example.com.");
+  private static final Name NAME = Name.fromConstantString("_spotify-noop._http.example.com.");
+
+  DnsReporter reporter;
+  NonSrvCache cache;
+
+  @Before
+  public void setUp() {
+    reporter = mock(DnsReporter.class);
+    cache = new NonSrvCache(60_000, reporter);
+  }
+
+  @Test
+  public void shouldCacheNegativeResponses() {
+    cache.addNegative(NAME, Type.SRV, soa(300), Credibility.NORMAL);
+
+    assertThat(cache.lookupRecords(NAME, Type.SRV, Credibility.NORMAL).isNXRRSET(), is(true));
+    verify(reporter).reportNegativeCacheMiss();
+    verify(reporter).reportNegativeCacheHit();
+  }
+
+  @Test
+  public void shouldNotCacheNegativeResponsesWithZeroTtl() {
+    cache.addNegative(NAME, Type.SRV, soa(0), Credibility.NORMAL);
+
+    assertThat(cache.lookupRecords(NAME, Type.SRV, Credibility.NORMAL).isUnknown(), is(true));
+    verify(reporter, never()).reportNegativeCacheHit();
+  }
+
+  @Test
+  public void shouldNotCachePositiveResponses() throws Exception {
+    RRset rrset = new RRset(new ARecord(NAME, DClass.IN, 300,
+                                        java.net.InetAddress.getByName("127.0.0.1")));
+    cache.addRRset(rrset, Credibility.NORMAL);
+
+    assertThat(cache.lookupRecords(NAME, Type.A, Credibility.NORMAL).isSuccessful(), is(false));
+  }
+
+  @Test
+  public void shouldCachePositiveResponsesOtherThanSrvIfEnabled() throws Exception {
+    cache = new NonSrvCache(60_000, 60_000, reporter);
+    cache.addRRset(new RRset(new ARecord(NAME, DClass.IN, 300,
+                                         java.net.InetAddress.getByName("127.0.0.1"))),
+                   Credibility.NORMAL);
+    cache.addRRset(new RRset(new SRVRecord(NAME, DClass.IN, 300, 1, 1, 8080, ZONE)),
+                   Credibility.NORMAL);
+
+    assertThat(cache.lookupRecords(NAME, Type.A, Credibility.NORMAL).isSuccessful(), is(true));
+    assertThat(cache.lookupRecords(NAME, Type.SRV, Credibility.NORMAL).isSuccessful(), is(false));
+  }
+
+  private static SOARecord soa(long minimum) {
+    return new SOARecord(ZONE, DClass.IN, minimum, ZONE, ZONE, 1, 3600, 600, 86400, minimum);
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.google.common.collect.Iterables.getOnlyElement;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SimpleResolver;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+public class PipelinedTcpResolverTest {
+
+  ServerSocket server;
+  PipelinedTcpResolver resolver;
+
+  @Before
+  public void setUp() throws Exception {
+    server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(5000);
+    resolver = new PipelinedTcpResolver(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+    resolver.setTimeout(Duration.ofSeconds(5));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    resolver.close();
+    server.close();
+  }
+
+  @Test
+  public void shouldPipelineQueriesAndMatchResponsesOutOfOrder() throws Exception {
+    CompletionStage<Message> first = resolver.sendAsync(query("first.example."));
+    CompletionStage<Message> second = resolver.sendAsync(query("second.example."));
+
+    try (Socket connection = server.accept()) {
+      Message query1 = read(connection);
+      Message query2 = read(connection);
+      write(connection, answer(query2));
+      write(connection, answer(query1));
+
+      assertThat(questionOf(first), equalTo(Name.fromString("first.example.")));
+      assertThat(questionOf(second), equalTo(Name.fromString("second.example.")));
+    }
+  }
+
+  @Test
+  public void shouldReuseConnection() throws Exception {
+    CompletionStage<Message> first = resolver.sendAsync(query("first.example."));
+
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+      questionOf(first);
+
+      CompletionStage<Message> second = resolver.sendAsync(query("second.example."));
+      write(connection, answer(read(connection)));
+
+      assertThat(questionOf(second), equalTo(Name.fromString("second.example.")));
+    }
+  }
+
+  @Test
+  public void shouldReconnectAfterServerClosesConnection() throws Exception {
+    CompletionStage<Message> first = resolver.sendAsync(query("first.example."));
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+      questionOf(first);
+    }
+
+    CompletionStage<Message> second = resolver.sendAsync(query("second.example."));
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+    }
+
+    assertThat(questionOf(second), equalTo(Name.fromString("second.example.")));
+  }
+
+  @Test
+  public void shouldResendOutstandingQueriesWhenConnectionIsClosed() throws Exception {
+    CompletionStage<Message> response = resolver.sendAsync(query("first.example."));
+    try (Socket connection = server.accept()) {
+      read(connection);
+    }
+
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+      assertThat(questionOf(response), equalTo(Name.fromString("first.example.")));
+    }
+  }
+
+  @Test
+  public void shouldCloseIdleConnections() throws Exception {
+    resolver.close();
+    resolver = new PipelinedTcpResolver(
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 50);
+
+    CompletionStage<Message> response = resolver.sendAsync(query("first.example."));
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+      questionOf(response);
+
+      connection.setSoTimeout(5000);
+      assertThat(connection.getInputStream().read(), equalTo(-1));
+    }
+  }
+
+  @Test
+  public void shouldNotBlockSendersWhenServerStopsReading() throws Exception {
+    CompletionStage<Message> first = resolver.sendAsync(query("first.example."));
+    try (Socket connection = server.accept()) {
+      write(connection, answer(read(connection)));
+      questionOf(first);
+
+      // enough data to fill the send and receive buffers of the connection many times over
+      final Message large = query("large.example.");
+      large.addRecord(new TXTRecord(Name.fromString("large.example."), DClass.IN, 0,
+                                    Collections.nCopies(230, Strings.repeat("x", 255))),
+                      Section.ADDITIONAL);
+      ExecutorService sender = Executors.newSingleThreadExecutor();
+      try {
+        sender.submit(() -> {
+          for (int i = 0; i < 500; i++) {
+            resolver.sendAsync(large.clone());
+          }
+        }).get(5, TimeUnit.SECONDS);
+      } finally {
+        sender.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void shouldShareResolverPerServerAndConfiguration() throws Exception {
+    List<String> servers = ImmutableList.of("127.0.0.1");
+
+    Resolver first = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, false, true, Duration.ofSeconds(1)));
+    Resolver second = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, false, true, Duration.ofSeconds(1)));
+    Resolver multiplexed = getOnlyElement(
+        ForwardingResolver.resolversFor(servers, true, true, Duration.ofSeconds(1)));
+
+    assertThat(first, not(instanceOf(SimpleResolver.class)));
+    assertThat(second, sameInstance(first));
+    assertThat(multiplexed, not(sameInstance(first)));
+  }
+
+  private static Message query(String name) throws IOException {
+    return Message.newQuery(Record.newRecord(Name.fromString(name), Type.SRV, DClass.IN));
+  }
+
+  private static Message answer(Message query) {
+    final Message response = new Message(query.getHeader().getID());
+    response.getHeader().setFlag(Flags.QR);
+    response.addRecord(query.getQuestion(), Section.QUESTION);
+    return response;
+  }
+
+  private static Message read(Socket connection) throws IOException {
+    final DataInputStream in = new DataInputStream(connection.getInputStream());
+    final byte[] data = new byte[in.readUnsignedShort()];
+    in.readFully(data);
+    return new Message(data);
+  }
+
+  private static void write(Socket connection, Message message) throws IOException {
+    final byte[] data = message.toWire();
+    final DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+    out.writeShort(data.length);
+    out.write(data);
+    out.flush();
+  }
+
+  private static Name questionOf(CompletionStage<Message> response) throws Exception {
+    return response.toCompletableFuture().get(5, TimeUnit.SECONDS).getQuestion().getName();
+  }
+}
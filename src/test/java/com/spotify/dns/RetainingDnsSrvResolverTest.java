@@ -21,11 +21,20 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.equalTo;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.testing.FakeTicker;
+import com.spotify.dns.RetainingDnsSrvResolver.RetainedRecords;
+import com.spotify.dns.statistics.DnsReporter;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Rule;
@@ -265,4 +274,252 @@ public class RetainingDnsSrvResolverTest {
 
     new RetainingDnsSrvResolver(delegate, -4787);
   }
+
+  @Test
+  public void shouldServeFreshDataWithoutLookup() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 1_000, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(CompletableFuture.completedFuture(nodes2));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(1)).resolveAsync(FQDN);
+  }
+
+  @Test
+  public void shouldServeStaleDataWhileRevalidating() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 1_000, ticker);
+    CompletableFuture<List<LookupResult>> refresh = new CompletableFuture<>();
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(refresh);
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(1, TimeUnit.SECONDS);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(2)).resolveAsync(FQDN);
+
+    refresh.complete(nodes2);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes2));
+  }
+
+  @Test
+  public void shouldKeepStaleDataIfRevalidationFails() throws Exception {
+    FakeTicker ticker = new FakeTicker();
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 1_000, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(DnsTestUtil.failedFuture(new DnsException("expected")));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(1, TimeUnit.SECONDS);
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+  }
+
+  @Test
+  public void shouldReportRetentionHitsAndMisses() {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, RetainingDnsSrvResolver.UNBOUNDED,
+                                           reporter);
+    when(delegate.resolve(FQDN))
+        .thenReturn(nodes())
+        .thenReturn(nodes1)
+        .thenThrow(new DnsException("expected"));
+
+    resolver.resolve(FQDN);
+    verify(reporter).reportRetentionMiss();
+
+    resolver.resolve(FQDN);
+    resolver.resolve(FQDN);
+    verify(reporter).reportRetentionHit();
+  }
+
+  @Test
+  public void shouldNotLetOneOffNamesPushOutPopularOnes() {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 4, reporter);
+    when(delegate.resolve("hot1")).thenReturn(nodes1, nodes1).thenThrow(new DnsException("1"));
+    when(delegate.resolve("hot2")).thenReturn(nodes1, nodes1).thenThrow(new DnsException("2"));
+    when(delegate.resolve("cold")).thenReturn(nodes1).thenThrow(new DnsException("expected"));
+
+    resolver.resolve("hot1");
+    resolver.resolve("hot2");
+    resolver.resolve("hot1");
+    resolver.resolve("hot2");
+    resolver.resolve("cold");
+
+    assertThat(resolver.resolve("hot1"), equalTo(nodes1));
+    assertThat(resolver.resolve("hot2"), equalTo(nodes1));
+    verify(reporter, never()).reportRetentionEviction();
+
+    thrown.expect(DnsException.class);
+    thrown.expectMessage("expected");
+
+    resolver.resolve("cold");
+  }
+
+  @Test
+  public void shouldEvictLessPopularNamesForMorePopularOnes() {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 2, reporter);
+    when(delegate.resolve("first")).thenReturn(nodes1).thenThrow(new DnsException("expected"));
+    when(delegate.resolve("second")).thenReturn(nodes1, nodes1).thenThrow(new DnsException("2"));
+
+    resolver.resolve("first");
+    resolver.resolve("second");
+    resolver.resolve("second");
+
+    assertThat(resolver.resolve("second"), equalTo(nodes1));
+    verify(reporter).reportRetentionEviction();
+
+    thrown.expect(DnsException.class);
+    thrown.expectMessage("expected");
+
+    resolver.resolve("first");
+  }
+
+  @Test
+  public void shouldEvictAsManyNamesAsNeededForMorePopularOne() {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 4, reporter);
+    List<LookupResult> big = nodes("node1", "node2", "node3", "node4");
+    when(delegate.resolve("first")).thenReturn(nodes1);
+    when(delegate.resolve("second")).thenReturn(nodes1);
+    when(delegate.resolve("big")).thenReturn(big, big, big).thenThrow(new DnsException("big"));
+
+    resolver.resolve("first");
+    resolver.resolve("second");
+    resolver.resolve("big");
+    resolver.resolve("big");
+
+    assertThat(resolver.export().keySet(), is(ImmutableSet.of("big")));
+    assertThat(resolver.resolve("big"), equalTo(big));
+    verify(reporter, times(2)).reportRetentionEviction();
+  }
+
+  @Test
+  public void shouldAcceptUpdatesForRetainedNamesRegardlessOfPopularity() {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 4, reporter);
+    when(delegate.resolve("hot")).thenReturn(nodes1);
+    when(delegate.resolve("warm")).thenReturn(nodes1, nodes2)
+        .thenThrow(new DnsException("warm"));
+
+    resolver.resolve("hot");
+    resolver.resolve("hot");
+    resolver.resolve("hot");
+    resolver.resolve("warm");
+    resolver.resolve("warm");
+
+    assertThat(resolver.resolve("warm"), equalTo(nodes2));
+    assertThat(resolver.export().keySet(), is(ImmutableSet.of("warm")));
+    verify(reporter).reportRetentionEviction();
+  }
+
+  @Test
+  public void shouldDropRetainedNameWhenUpdateDoesNotFit() {
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 4, null);
+    List<LookupResult> big = nodes("node1", "node2", "node3", "node4", "node5");
+    when(delegate.resolve(FQDN)).thenReturn(nodes1, big)
+        .thenThrow(new DnsException("expected"));
+
+    resolver.resolve(FQDN);
+    resolver.resolve(FQDN);
+
+    assertThat(resolver.export().isEmpty(), is(true));
+
+    thrown.expect(DnsException.class);
+    thrown.expectMessage("expected");
+
+    resolver.resolve(FQDN);
+  }
+
+  @Test
+  public void shouldNotRetainMoreThanMaxRecordsForOneName() {
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 0, 1, null);
+    when(delegate.resolve(FQDN)).thenReturn(nodes1);
+
+    resolver.resolve(FQDN);
+
+    assertThat(resolver.export().isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldNotReportRetentionForBackgroundRefresh() throws Exception {
+    DnsReporter reporter = mock(DnsReporter.class);
+    FakeTicker ticker = new FakeTicker();
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 1_000,
+                                           RetainingDnsSrvResolver.UNBOUNDED, reporter, ticker);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(nodes1))
+        .thenReturn(DnsTestUtil.failedFuture(new DnsException("expected")));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(1, TimeUnit.SECONDS);
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    verify(reporter, times(1)).reportRetentionMiss();
+    verify(reporter, times(1)).reportRetentionHit();
+  }
+
+  @Test
+  public void shouldReportMissOnceWhenLookupFailsWithoutRetainedData() throws Exception {
+    DnsReporter reporter = mock(DnsReporter.class);
+    resolver = new RetainingDnsSrvResolver(delegate, 10_000, 1_000,
+                                           RetainingDnsSrvResolver.UNBOUNDED, reporter);
+    when(delegate.resolveAsync(FQDN))
+        .thenReturn(DnsTestUtil.failedFuture(new DnsException("expected")));
+
+    try {
+      resolver.resolveAsync(FQDN).toCompletableFuture().get();
+      throw new AssertionError("expected a failure");
+    } catch (ExecutionException e) {
+      // expected
+    }
+
+    verify(reporter, times(1)).reportRetentionMiss();
+    verify(reporter, never()).reportRetentionHit();
+  }
+
+  @Test
+  public void shouldThrowIfMaxRetainedRecordsNotPositive() {
+    thrown.expect(IllegalArgumentException.class);
+
+    new RetainingDnsSrvResolver(delegate, 10_000, 0, 0, null);
+  }
+
+  @Test
+  public void shouldServeRestoredDataWhileRevalidating() throws Exception {
+    CompletableFuture<List<LookupResult>> refresh = new CompletableFuture<>();
+    when(delegate.resolveAsync(FQDN)).thenReturn(refresh);
+
+    resolver.restore(ImmutableMap.of(FQDN, new RetainedRecords(nodes1, 0)));
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get(), equalTo(nodes1));
+    verify(delegate, times(1)).resolveAsync(FQDN);
+
+    refresh.complete(nodes2);
+
+    assertThat(resolver.export().get(FQDN).nodes(), equalTo(nodes2));
+  }
+
+  @Test
+  public void shouldNotRestoreOverRetainedData() {
+    when(delegate.resolve(FQDN)).thenReturn(nodes1);
+
+    resolver.resolve(FQDN);
+    resolver.restore(ImmutableMap.of(FQDN, new RetainedRecords(nodes2, 0)));
+
+    assertThat(resolver.export().get(FQDN).nodes(), equalTo(nodes1));
+  }
 }
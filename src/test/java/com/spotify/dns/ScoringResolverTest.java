@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.FakeTicker;
+import com.spotify.dns.statistics.DnsReporter;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Resolver;
+
+public class ScoringResolverTest {
+
+  Resolver first;
+  Resolver second;
+  DnsReporter reporter;
+  FakeTicker ticker;
+  ScoringResolver resolver;
+
+  Message query;
+  Message response;
+
+  @Before
+  public void setUp() {
+    first = mock(Resolver.class);
+    second = mock(Resolver.class);
+    reporter = mock(DnsReporter.class);
+    ticker = new FakeTicker();
+    resolver = new ScoringResolver(ImmutableList.of(first, second), 1000, reporter, ticker);
+
+    query = new Message();
+    response = new Message();
+  }
+
+  @Test
+  public void shouldPreferFasterServer() throws Exception {
+    respondAfter(first, 50);
+    respondAfter(second, 10);
+
+    send();
+    send();
+    send();
+    send();
+
+    verify(first, times(1)).sendAsync(any(Message.class), any(Executor.class));
+    verify(second, times(3)).sendAsync(any(Message.class), any(Executor.class));
+  }
+
+  @Test
+  public void shouldFailOverAndAvoidFailingServer() throws Exception {
+    when(first.sendAsync(any(Message.class), any(Executor.class))).thenAnswer(invocation -> {
+      ticker.advance(1, TimeUnit.MILLISECONDS);
+      CompletableFuture<Message> failed = new CompletableFuture<>();
+      failed.completeExceptionally(new IOException("expected"));
+      return failed;
+    });
+    respondAfter(second, 10);
+
+    assertThat(send(), is(sameInstance(response)));
+    assertThat(resolver.serversByCost(), contains(1, 0));
+    verify(reporter).reportServerFailure(anyString());
+    verify(reporter).reportServerResponse(anyString(), eq(TimeUnit.MILLISECONDS.toNanos(10)));
+  }
+
+  @Test
+  public void shouldGiveTrafficBackToRecoveredServer() throws Exception {
+    respondAfter(first, 100);
+    respondAfter(second, 10);
+
+    send();
+    for (int i = 0; i < 5; i++) {
+      ticker.advance(1, TimeUnit.SECONDS);
+      send();
+    }
+
+    verify(first, times(2)).sendAsync(any(Message.class), any(Executor.class));
+  }
+
+  @Test
+  public void shouldFailOverOnServerFailureResponses() throws Exception {
+    Message servfail = new Message();
+    servfail.getHeader().setRcode(Rcode.SERVFAIL);
+    Message refused = new Message();
+    refused.getHeader().setRcode(Rcode.REFUSED);
+    Resolver third = mock(Resolver.class);
+    resolver = new ScoringResolver(ImmutableList.of(first, second, third), 1000, reporter, ticker);
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(refused));
+    respondAfter(third, 10);
+
+    assertThat(send(), is(sameInstance(response)));
+    verify(reporter, times(2)).reportServerFailure(anyString());
+  }
+
+  @Test
+  public void shouldReturnLastServerFailureResponseIfAllServersFail() throws Exception {
+    Message servfail = new Message();
+    servfail.getHeader().setRcode(Rcode.SERVFAIL);
+    when(first.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+    when(second.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(servfail));
+
+    assertThat(send(), is(sameInstance(servfail)));
+  }
+
+  @Test
+  public void shouldCompareSlowResponseWithDecayedLatency() throws Exception {
+    resolver = new ScoringResolver(ImmutableList.of(first), 1000, reporter, ticker);
+    respondAfter(first, 100);
+    send();
+    ticker.advance(1, TimeUnit.SECONDS);
+
+    // slower than the decayed average of about 37 ms, so a peak rather than averaged in
+    respondAfter(first, 50);
+    send();
+
+    assertThat(resolver.cost(0), is(closeTo(TimeUnit.MILLISECONDS.toNanos(50), 1)));
+  }
+
+  private Message send() throws Exception {
+    return resolver.sendAsync(query).toCompletableFuture().get();
+  }
+
+  private void respondAfter(Resolver server, long latencyMillis) {
+    when(server.sendAsync(any(Message.class), any(Executor.class))).thenAnswer(invocation -> {
+      ticker.advance(latencyMillis, TimeUnit.MILLISECONDS);
+      return CompletableFuture.completedFuture(response);
+    });
+  }
+}
@@ -28,10 +28,12 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import com.google.common.testing.FakeTicker;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import org.junit.Before;
 import org.junit.Test;
@@ -49,6 +51,8 @@ public class ServiceResolvingChangeNotifierTest {
   @Mock
   ErrorHandler errorHandler;
 
+  FakeTicker ticker = new FakeTicker();
+
   @Before
   public void setUp() {
     MockitoAnnotations.initMocks(this);
@@ -243,6 +247,148 @@ public class ServiceResolvingChangeNotifierTest {
     verifyNoMoreInteractions(listener);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldKeepRecordMissingFromSingleLookupWhenDamping() {
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> sut = createDampingNotifier(2, 0);
+    ChangeNotifier.Listener<LookupResult> listener = mock(ChangeNotifier.Listener.class);
+    sut.setListener(listener, false);
+
+    LookupResult result1 = result("host", 1234);
+    LookupResult result2 = result("host", 4321);
+    when(resolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList(result1, result2)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1, result2)));
+
+    sut.run();
+    sut.run();
+    sut.run();
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+    assertThat(sut.current(), containsInAnyOrder(result1, result2));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRemoveRecordMissingFromConsecutiveLookupsWhenDamping() {
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> sut = createDampingNotifier(2, 0);
+    ChangeNotifier.Listener<LookupResult> listener = mock(ChangeNotifier.Listener.class);
+    sut.setListener(listener, false);
+
+    LookupResult result1 = result("host", 1234);
+    LookupResult result2 = result("host", 4321);
+    when(resolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList(result1, result2)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1)));
+
+    sut.run();
+    sut.run();
+    sut.run();
+
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener, times(2)).onChange(captor.capture());
+
+    ChangeNotifier.ChangeNotification<LookupResult> change = captor.getValue();
+    assertThat(change.current(), containsInAnyOrder(result1));
+    assertThat(change.removed(), containsInAnyOrder(result2));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldRemoveRecordMissingForMinimumTimeWhenDamping() {
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> sut =
+        createDampingNotifier(1, 1000);
+    ChangeNotifier.Listener<LookupResult> listener = mock(ChangeNotifier.Listener.class);
+    sut.setListener(listener, false);
+
+    LookupResult result1 = result("host", 1234);
+    LookupResult result2 = result("host", 4321);
+    when(resolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList(result1, result2)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1)));
+
+    sut.run();
+    sut.run();
+    ticker.advance(999, TimeUnit.MILLISECONDS);
+    sut.run();
+
+    verify(listener, times(1)).onChange(any(ChangeNotifier.ChangeNotification.class));
+
+    ticker.advance(1, TimeUnit.MILLISECONDS);
+    sut.run();
+
+    verify(listener, times(2)).onChange(any(ChangeNotifier.ChangeNotification.class));
+    assertThat(sut.current(), containsInAnyOrder(result1));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldAddRecordsRightAwayWhenDamping() {
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> sut = createDampingNotifier(2, 0);
+    ChangeNotifier.Listener<LookupResult> listener = mock(ChangeNotifier.Listener.class);
+    sut.setListener(listener, false);
+
+    LookupResult result1 = result("host", 1234);
+    LookupResult result2 = result("host", 4321);
+    when(resolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList(result1)),
+                    CompletableFuture.completedFuture(Arrays.asList(result2)));
+
+    sut.run();
+    sut.run();
+
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener, times(2)).onChange(captor.capture());
+
+    ChangeNotifier.ChangeNotification<LookupResult> change = captor.getValue();
+    assertThat(change.current(), containsInAnyOrder(result1, result2));
+    assertThat(change.added(), containsInAnyOrder(result2));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void shouldReplaceRecordWhoseTtlChangedWhenDamping() {
+    ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> sut = createDampingNotifier(2, 0);
+    ChangeNotifier.Listener<LookupResult> listener = mock(ChangeNotifier.Listener.class);
+    sut.setListener(listener, false);
+
+    LookupResult result1 = result("host", 1234);
+    LookupResult result2 = result("host", 4321);
+    LookupResult result2WithNewTtl = LookupResult.create("host", 4321, 1, 5000, 60);
+    when(resolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(Arrays.asList(result1, result2)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1, result2WithNewTtl)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1)),
+                    CompletableFuture.completedFuture(Arrays.asList(result1, result2WithNewTtl)));
+
+    sut.run();
+    sut.run();
+
+    ArgumentCaptor<ChangeNotifier.ChangeNotification> captor =
+        ArgumentCaptor.forClass(ChangeNotifier.ChangeNotification.class);
+    verify(listener, times(2)).onChange(captor.capture());
+
+    ChangeNotifier.ChangeNotification<LookupResult> change = captor.getValue();
+    assertThat(change.current(), containsInAnyOrder(result1, result2WithNewTtl));
+    assertThat(change.removed(), containsInAnyOrder(result2));
+
+    // the record with the new TTL is damped like any other
+    sut.run();
+    sut.run();
+
+    verify(listener, times(2)).onChange(any(ChangeNotifier.ChangeNotification.class));
+    assertThat(sut.current(), containsInAnyOrder(result1, result2WithNewTtl));
+  }
+
+  private ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> createDampingNotifier(
+      int removalLookups, long removalDelayMillis) {
+    return new ServiceResolvingChangeNotifier<>(resolver, FQDN, Function.identity(), errorHandler,
+                                                null, removalLookups, removalDelayMillis, ticker);
+  }
+
   private ChangeNotifierFactory.RunnableChangeNotifier<LookupResult> createNotifier() {
     return createTransformingNotifier(Function.identity());
   }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SrvDelegatingDnsRecordResolverTest {
+  private static final String FQDN = "_http._tcp.service.example.";
+
+  SrvDelegatingDnsRecordResolver resolver;
+
+  DnsRecordResolver delegate;
+  DnsSrvResolver srvResolver;
+
+  @Before
+  public void setUp() {
+    delegate = mock(DnsRecordResolver.class);
+    srvResolver = mock(DnsSrvResolver.class);
+
+    resolver = new SrvDelegatingDnsRecordResolver(delegate, srvResolver);
+  }
+
+  @Test
+  public void shouldSendSrvLookupsToSrvResolver() throws Exception {
+    LookupResult result = LookupResult.create("host.example.", 8080, 1, 1, 60);
+    when(srvResolver.resolveAsync(FQDN))
+        .thenReturn(CompletableFuture.completedFuture(ImmutableList.of(result)));
+
+    List<LookupResult> results = resolver.resolveAsync(FQDN, RecordType.SRV)
+        .toCompletableFuture().get();
+
+    assertThat(results, contains(result));
+    verify(delegate, never()).resolveAsync(anyString(), any(RecordType.class));
+  }
+
+  @Test
+  public void shouldSendOtherLookupsToDelegate() throws Exception {
+    when(delegate.resolveAsync(FQDN, RecordType.TXT))
+        .thenReturn(CompletableFuture.completedFuture(ImmutableList.of("text")));
+
+    List<String> results = resolver.resolveAsync(FQDN, RecordType.TXT)
+        .toCompletableFuture().get();
+
+    assertThat(results, contains("text"));
+    verify(srvResolver, never()).resolveAsync(anyString());
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static com.spotify.dns.DnsTestUtil.nodes;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.spotify.dns.RetainingDnsSrvResolver.RetainedRecords;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+public class SrvSnapshotFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  static final Instant NOW = Instant.ofEpochMilli(1_500_000_000_000L);
+
+  Path path;
+  SrvSnapshotFile snapshotFile;
+
+  @Before
+  public void setUp() {
+    path = folder.getRoot().toPath().resolve("srv.snapshot");
+    snapshotFile = new SrvSnapshotFile(path, Clock.fixed(NOW, ZoneOffset.UTC));
+  }
+
+  @Test
+  public void shouldReadWhatWasWritten() throws Exception {
+    Map<String, RetainedRecords> snapshot = ImmutableMap.of(
+        "_spotify-one._http.example.com",
+        new RetainedRecords(
+            ImmutableList.of(LookupResult.create("host1.example.com.", 8080, 1, 2, 300),
+                             LookupResult.create("host2.example.com.", 8081, 3, 4, 600)),
+            0),
+        "_spotify-two._http.example.com", new RetainedRecords(nodes("host3"), 5000));
+
+    snapshotFile.write(snapshot);
+
+    assertThat(snapshotFile.read(), equalTo(snapshot));
+  }
+
+  @Test
+  public void shouldReplacePreviousSnapshot() throws Exception {
+    Map<String, RetainedRecords> snapshot =
+        ImmutableMap.of("second", new RetainedRecords(nodes("host2"), 0));
+
+    snapshotFile.write(ImmutableMap.of("first", new RetainedRecords(nodes("host1"), 0)));
+    snapshotFile.write(snapshot);
+
+    assertThat(snapshotFile.read(), equalTo(snapshot));
+  }
+
+  @Test
+  public void shouldAgeRecordsByTimeSinceSnapshotWasWritten() throws Exception {
+    snapshotFile.write(ImmutableMap.of("first", new RetainedRecords(nodes("host1"), 5000)));
+
+    SrvSnapshotFile later = new SrvSnapshotFile(
+        path, Clock.fixed(NOW.plus(Duration.ofMinutes(1)), ZoneOffset.UTC));
+
+    assertThat(later.read().get("first").ageMillis(), is(65_000L));
+  }
+
+  @Test
+  public void shouldNotRestoreRecordsOlderThanRetentionTime() throws Exception {
+    snapshotFile.write(ImmutableMap.of("old", new RetainedRecords(nodes("host1"), 9000),
+                                       "new", new RetainedRecords(nodes("host2"), 1000)));
+    RetainingDnsSrvResolver resolver =
+        new RetainingDnsSrvResolver(mock(DnsSrvResolver.class), 10_000);
+
+    SrvSnapshotFile later = new SrvSnapshotFile(
+        path, Clock.fixed(NOW.plus(Duration.ofSeconds(2)), ZoneOffset.UTC));
+    resolver.restore(later.read());
+
+    assertThat(resolver.export().keySet(), equalTo(ImmutableSet.of("new")));
+    assertThat(resolver.export().get("new").nodes(), equalTo(nodes("host2")));
+  }
+
+  @Test
+  public void shouldShareOnePersisterPerFile() throws Exception {
+    RetainingDnsSrvResolver first =
+        new RetainingDnsSrvResolver(mock(DnsSrvResolver.class), 10_000);
+    RetainingDnsSrvResolver second =
+        new RetainingDnsSrvResolver(mock(DnsSrvResolver.class), 10_000);
+    first.restore(ImmutableMap.of("first", new RetainedRecords(nodes("host1"), 0)));
+    second.restore(ImmutableMap.of("second", new RetainedRecords(nodes("host2"), 0)));
+
+    SrvSnapshotFile persister = SrvSnapshotFile.restoreAndPersist(path, first, 10);
+    try {
+      assertThat(SrvSnapshotFile.restoreAndPersist(path, second, 10), sameInstance(persister));
+
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+      while (snapshotFile.read().size() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(10);
+      }
+      assertThat(snapshotFile.read().keySet(), equalTo(ImmutableSet.of("first", "second")));
+    } finally {
+      persister.close();
+    }
+
+    RetainingDnsSrvResolver third =
+        new RetainingDnsSrvResolver(mock(DnsSrvResolver.class), 10_000);
+    SrvSnapshotFile next = SrvSnapshotFile.restoreAndPersist(path, third, 10);
+    next.close();
+
+    assertThat(next, not(sameInstance(persister)));
+  }
+
+  @Test
+  public void shouldReadNothingIfThereIsNoSnapshot() throws Exception {
+    assertThat(snapshotFile.read().isEmpty(), is(true));
+  }
+
+  @Test
+  public void shouldRejectOtherFiles() throws Exception {
+    Files.write(path, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+
+    thrown.expect(IOException.class);
+
+    snapshotFile.read();
+  }
+
+  @Test
+  public void shouldRejectTruncatedSnapshots() throws Exception {
+    snapshotFile.write(ImmutableMap.of("first", new RetainedRecords(nodes("host1"), 0)));
+    byte[] bytes = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+
+    thrown.expect(IOException.class);
+
+    snapshotFile.read();
+  }
+}
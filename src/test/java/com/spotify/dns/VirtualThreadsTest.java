@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public class VirtualThreadsTest {
+
+  @Test
+  public void shouldRunTasksOnNamedVirtualThreadsWhenSupported() throws Exception {
+    assumeTrue(VirtualThreads.isSupported());
+
+    ExecutorService executor = VirtualThreads.newExecutor("dns-test-");
+    CompletableFuture<Thread> thread = new CompletableFuture<>();
+    executor.execute(() -> thread.complete(Thread.currentThread()));
+
+    Thread ran = thread.get(5, TimeUnit.SECONDS);
+    assertThat(ran.getName(), startsWith("dns-test-"));
+    assertThat(Thread.class.getMethod("isVirtual").invoke(ran), is((Object) true));
+  }
+
+  @Test
+  public void shouldReturnNoExecutorWhenUnsupported() {
+    assumeFalse(VirtualThreads.isSupported());
+
+    assertThat(VirtualThreads.newExecutor("dns-test-"), is(nullValue()));
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import org.junit.Test;
+
+public class WeightedSelectorTest {
+  private static final int SAMPLES = 100_000;
+
+  private static final LookupResult LIGHT = result("light", 1, 10);
+  private static final LookupResult HEAVY = result("heavy", 1, 30);
+  private static final LookupResult NONE = result("none", 1, 0);
+  private static final LookupResult BACKUP = result("backup", 2, 5);
+
+  @Test
+  public void shouldSelectInProportionToWeight() {
+    WeightedSelector<LookupResult> selector =
+        WeightedSelector.of(ImmutableList.of(LIGHT, HEAVY, NONE, BACKUP));
+
+    Map<LookupResult, Integer> counts = sample(selector, 0);
+
+    assertThat((double) counts.get(LIGHT) / SAMPLES, closeTo(0.25, 0.001));
+    assertThat((double) counts.get(HEAVY) / SAMPLES, closeTo(0.75, 0.001));
+    assertThat(counts.containsKey(NONE), is(false));
+    assertThat(counts.containsKey(BACKUP), is(false));
+  }
+
+  @Test
+  public void shouldSelectUniformlyIfAllWeightsAreZero() {
+    LookupResult other = result("other", 1, 0);
+    WeightedSelector<LookupResult> selector = WeightedSelector.of(ImmutableList.of(NONE, other));
+
+    Map<LookupResult, Integer> counts = sample(selector, 0);
+
+    assertThat((double) counts.get(NONE) / SAMPLES, closeTo(0.5, 0.001));
+    assertThat((double) counts.get(other) / SAMPLES, closeTo(0.5, 0.001));
+  }
+
+  @Test
+  public void shouldSelectFromHigherPriorityValues() {
+    WeightedSelector<LookupResult> selector =
+        WeightedSelector.of(ImmutableList.of(BACKUP, LIGHT, HEAVY));
+
+    assertThat(selector.priorityGroups(), equalTo(2));
+    assertThat(sample(selector, 1).keySet(), contains(BACKUP));
+  }
+
+  @Test
+  public void shouldSelectWithRandomNumbers() {
+    WeightedSelector<LookupResult> selector = WeightedSelector.of(ImmutableList.of(LIGHT, HEAVY));
+
+    for (int i = 0; i < 1000; i++) {
+      LookupResult selected = selector.select();
+      assertThat(selected == LIGHT || selected == HEAVY, is(true));
+    }
+  }
+
+  @Test(expected = NoSuchElementException.class)
+  public void shouldFailToSelectFromNothing() {
+    WeightedSelector<LookupResult> selector = WeightedSelector.of(ImmutableList.of());
+
+    assertThat(selector.isEmpty(), is(true));
+    selector.select();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void shouldRejectNegativeWeights() {
+    WeightedSelector.of(ImmutableList.of("a"), s -> 0, s -> -1);
+  }
+
+  /**
+   * Selects with evenly spaced numbers in [0, 1), so that the counts are close to exactly
+   * proportional to the probabilities.
+   */
+  private static <T> Map<T, Integer> sample(WeightedSelector<T> selector, int group) {
+    Map<T, Integer> counts = new HashMap<>();
+    for (int i = 0; i < SAMPLES; i++) {
+      counts.merge(selector.select(group, (double) i / SAMPLES), 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  private static LookupResult result(String host, int priority, int weight) {
+    return LookupResult.create(host, 8080, priority, weight, 60);
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.testing.FakeTicker;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.lookup.LookupSession;
+import org.xbill.DNS.lookup.NoSuchRRSetException;
+
+public class XBillDnsEndpointResolverTest {
+  private static final String FQDN = "_http._tcp.service.example.";
+  private static final String OTHER_FQDN = "_grpc._tcp.service.example.";
+
+  XBillDnsEndpointResolver resolver;
+
+  Resolver xbillResolver;
+  LookupFactory lookupFactory;
+  LookupSession session;
+  FakeTicker ticker;
+
+  Name target1;
+  Name target2;
+
+  @Before
+  public void setUp() throws Exception {
+    xbillResolver = mock(Resolver.class);
+    lookupFactory = mock(LookupFactory.class);
+    session = mock(LookupSession.class);
+    ticker = new FakeTicker();
+    when(lookupFactory.sessionForName(anyString())).thenReturn(session);
+
+    resolver = new XBillDnsEndpointResolver(xbillResolver, lookupFactory,
+                                            MoreExecutors.directExecutor(), ticker);
+
+    target1 = Name.fromString("host1.example.");
+    target2 = Name.fromString("host2.example.");
+  }
+
+  @Test
+  public void shouldUseAddressesFromAdditionalSection() throws Exception {
+    Message response = srvResponse(FQDN, target1, target2);
+    response.addRecord(a(target1, "10.0.0.1", 60), Section.ADDITIONAL);
+    response.addRecord(aaaa(target1, "2001:db8::1", 60), Section.ADDITIONAL);
+    response.addRecord(a(target2, "10.0.0.2", 60), Section.ADDITIONAL);
+    response.addRecord(aaaa(target2, "2001:db8::2", 60), Section.ADDITIONAL);
+    respond(response);
+
+    List<Endpoint> endpoints = resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(
+        address("host1.example", "10.0.0.1"),
+        address("host1.example", "2001:db8::1"),
+        address("host2.example", "10.0.0.2"),
+        address("host2.example", "2001:db8::2")));
+    verify(session, never()).lookupAsync(any(Name.class), anyInt(), anyInt());
+  }
+
+  @Test
+  public void shouldLookUpAddressFamilyMissingFromAdditionalSection() throws Exception {
+    Message response = srvResponse(FQDN, target1);
+    response.addRecord(a(target1, "10.0.0.1", 60), Section.ADDITIONAL);
+    respond(response);
+    when(session.lookupAsync(target1, Type.A, DClass.IN))
+        .thenReturn(lookupResult(a(target1, "10.0.0.1", 60)));
+    when(session.lookupAsync(target1, Type.AAAA, DClass.IN))
+        .thenReturn(lookupResult(aaaa(target1, "2001:db8::1", 60)));
+
+    List<Endpoint> endpoints = resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(
+        address("host1.example", "10.0.0.1"),
+        address("host1.example", "2001:db8::1")));
+  }
+
+  @Test
+  public void shouldUseIncompleteGlueIfMissingAddressFamilyCantBeResolved() throws Exception {
+    Message response = srvResponse(FQDN, target1);
+    response.addRecord(aaaa(target1, "2001:db8::1", 60), Section.ADDITIONAL);
+    respond(response);
+    when(session.lookupAsync(target1, Type.A, DClass.IN))
+        .thenReturn(failed(new NoSuchRRSetException(target1, Type.A)));
+    when(session.lookupAsync(target1, Type.AAAA, DClass.IN))
+        .thenReturn(failed(new NoSuchRRSetException(target1, Type.AAAA)));
+
+    List<Endpoint> endpoints = resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(address("host1.example", "2001:db8::1")));
+  }
+
+  @Test
+  public void shouldResolveNameWithoutTrailingDot() throws Exception {
+    Message response = srvResponse(FQDN, target1);
+    response.addRecord(a(target1, "10.0.0.1", 60), Section.ADDITIONAL);
+    respond(response);
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+
+    List<Endpoint> endpoints =
+        resolver.resolveAsync("_http._tcp.service.example").toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(address("host1.example", "10.0.0.1")));
+    ArgumentCaptor<Message> query = ArgumentCaptor.forClass(Message.class);
+    verify(xbillResolver).sendAsync(query.capture(), any(Executor.class));
+    assertThat(query.getValue().getQuestion().getName(), equalTo(Name.fromString(FQDN)));
+  }
+
+  @Test
+  public void shouldLookUpAddressesOfTargetsWithoutGlue() throws Exception {
+    respond(srvResponse(FQDN, target1));
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+
+    List<Endpoint> endpoints = resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(address("host1.example", "10.0.0.1")));
+    assertThat(endpoints.get(0).lookupResult().host(), equalTo("host1.example."));
+    assertThat(endpoints.get(0).ttl(), equalTo(30L));
+  }
+
+  @Test
+  public void shouldShareAddressesOfTargetsAcrossNames() throws Exception {
+    when(xbillResolver.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(srvResponse(FQDN, target1)))
+        .thenReturn(CompletableFuture.completedFuture(srvResponse(OTHER_FQDN, target1)));
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    List<Endpoint> endpoints = resolver.resolveAsync(OTHER_FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(address("host1.example", "10.0.0.1")));
+    verify(session, times(1)).lookupAsync(target1, Type.A, DClass.IN);
+    verify(session, times(1)).lookupAsync(target1, Type.AAAA, DClass.IN);
+  }
+
+  @Test
+  public void shouldLookUpAddressesAgainWhenTheyExpire() throws Exception {
+    respond(srvResponse(FQDN, target1));
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    ticker.advance(60, TimeUnit.SECONDS);
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    verify(session, times(2)).lookupAsync(target1, Type.A, DClass.IN);
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsedTargetsWhenFull() throws Exception {
+    resolver = new XBillDnsEndpointResolver(xbillResolver, lookupFactory,
+                                            MoreExecutors.directExecutor(), 1, ticker);
+    when(xbillResolver.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(srvResponse(FQDN, target1)))
+        .thenReturn(CompletableFuture.completedFuture(srvResponse(OTHER_FQDN, target2)))
+        .thenReturn(CompletableFuture.completedFuture(srvResponse(FQDN, target1)));
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+    resolveAddresses(target2, a(target2, "10.0.0.2", 60));
+
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    resolver.resolveAsync(OTHER_FQDN).toCompletableFuture().get();
+    resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    verify(session, times(2)).lookupAsync(target1, Type.A, DClass.IN);
+  }
+
+  @Test
+  public void shouldLeaveOutTargetsThatCantBeResolved() throws Exception {
+    respond(srvResponse(FQDN, target1, target2));
+    resolveAddresses(target1, a(target1, "10.0.0.1", 60));
+    when(session.lookupAsync(eq(target2), anyInt(), anyInt()))
+        .thenReturn(failed(new IOException("timed out")));
+
+    List<Endpoint> endpoints = resolver.resolveAsync(FQDN).toCompletableFuture().get();
+
+    assertThat(addresses(endpoints), contains(address("host1.example", "10.0.0.1")));
+  }
+
+  @Test
+  public void shouldFailIfNoTargetCanBeResolved() throws Exception {
+    respond(srvResponse(FQDN, target1));
+    when(session.lookupAsync(eq(target1), anyInt(), anyInt()))
+        .thenReturn(failed(new IOException("timed out")));
+
+    try {
+      resolver.resolveAsync(FQDN).toCompletableFuture().get();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(DnsException.class));
+      return;
+    }
+    throw new AssertionError("expected a failure");
+  }
+
+  @Test
+  public void shouldReturnEmptyForHostNotFound() throws Exception {
+    Message response = srvResponse(FQDN);
+    response.getHeader().setRcode(Rcode.NXDOMAIN);
+    respond(response);
+
+    assertThat(resolver.resolveAsync(FQDN).toCompletableFuture().get().isEmpty(), is(true));
+  }
+
+  private void respond(Message response) {
+    when(xbillResolver.sendAsync(any(Message.class), any(Executor.class)))
+        .thenReturn(CompletableFuture.completedFuture(response));
+  }
+
+  private void resolveAddresses(Name target, Record... records) {
+    when(session.lookupAsync(target, Type.A, DClass.IN)).thenReturn(lookupResult(records));
+    when(session.lookupAsync(target, Type.AAAA, DClass.IN))
+        .thenReturn(failed(new NoSuchRRSetException(target, Type.AAAA)));
+  }
+
+  private static CompletableFuture<org.xbill.DNS.lookup.LookupResult> lookupResult(
+      Record... records) {
+    return CompletableFuture.completedFuture(
+        new org.xbill.DNS.lookup.LookupResult(ImmutableList.copyOf(records), ImmutableList.of()));
+  }
+
+  private static CompletableFuture<org.xbill.DNS.lookup.LookupResult> failed(Throwable cause) {
+    CompletableFuture<org.xbill.DNS.lookup.LookupResult> future = new CompletableFuture<>();
+    future.completeExceptionally(cause);
+    return future;
+  }
+
+  private static Message srvResponse(String fqdn, Name... targets) throws Exception {
+    Name name = Name.fromString(fqdn);
+    Message response = new Message();
+    response.getHeader().setRcode(Rcode.NOERROR);
+    response.addRecord(Record.newRecord(name, Type.SRV, DClass.IN), Section.QUESTION);
+    for (Name target : targets) {
+      response.addRecord(new SRVRecord(name, DClass.IN, 30, 1, 1, 8080, target), Section.ANSWER);
+    }
+    return response;
+  }
+
+  private static Record a(Name name, String address, long ttl) throws Exception {
+    return new ARecord(name, DClass.IN, ttl, InetAddress.getByName(address));
+  }
+
+  private static Record aaaa(Name name, String address, long ttl) throws Exception {
+    return new AAAARecord(name, DClass.IN, ttl, InetAddress.getByName(address));
+  }
+
+  private static InetSocketAddress address(String host, String address) throws Exception {
+    return new InetSocketAddress(
+        InetAddress.getByAddress(host, InetAddress.getByName(address).getAddress()), 8080);
+  }
+
+  private static List<InetSocketAddress> addresses(List<Endpoint> endpoints) {
+    return endpoints.stream().map(Endpoint::address).collect(Collectors.toList());
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015 Spotify AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.dns;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.Before;
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.CNAMERecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+import org.xbill.DNS.lookup.LookupSession;
+import org.xbill.DNS.lookup.NoSuchDomainException;
+import org.xbill.DNS.lookup.NoSuchRRSetException;
+
+public class XBillDnsRecordResolverTest {
+  private static final String FQDN = "host.example.";
+
+  XBillDnsRecordResolver resolver;
+
+  LookupSession session;
+  Name name;
+
+  @Before
+  public void setUp() throws Exception {
+    LookupFactory lookupFactory = mock(LookupFactory.class);
+    session = mock(LookupSession.class);
+    when(lookupFactory.sessionForName(anyString())).thenReturn(session);
+
+    resolver = new XBillDnsRecordResolver(lookupFactory);
+    name = Name.fromString(FQDN);
+  }
+
+  @Test
+  public void shouldReturnAddresses() throws Exception {
+    Name alias = Name.fromString("alias.example.");
+    respond(Type.A,
+            new CNAMERecord(name, DClass.IN, 60, alias),
+            new ARecord(alias, DClass.IN, 60, InetAddress.getByName("10.0.0.1")),
+            new ARecord(alias, DClass.IN, 60, InetAddress.getByName("10.0.0.2")));
+
+    List<InetAddress> addresses = resolver.resolveAsync(FQDN, RecordType.A)
+        .toCompletableFuture().get();
+
+    assertThat(addresses, contains(InetAddress.getByName("10.0.0.1"),
+                                   InetAddress.getByName("10.0.0.2")));
+  }
+
+  @Test
+  public void shouldReturnText() throws Exception {
+    respond(Type.TXT, new TXTRecord(name, DClass.IN, 60, "v=spf1 -all"));
+
+    assertThat(resolver.resolveAsync(FQDN, RecordType.TXT).toCompletableFuture().get(),
+               contains("v=spf1 -all"));
+  }
+
+  @Test
+  public void shouldReturnCanonicalName() throws Exception {
+    respond(Type.CNAME, new CNAMERecord(name, DClass.IN, 60, Name.fromString("alias.example.")));
+
+    assertThat(resolver.resolveAsync(FQDN, RecordType.CNAME).toCompletableFuture().get(),
+               contains("alias.example."));
+  }
+
+  @Test
+  public void shouldReturnServiceRecords() throws Exception {
+    respond(Type.SRV,
+            new SRVRecord(name, DClass.IN, 60, 1, 2, 8080, Name.fromString("target.example.")));
+
+    assertThat(resolver.resolveAsync(FQDN, RecordType.SRV).toCompletableFuture().get(),
+               contains(LookupResult.create("target.example.", 8080, 1, 2, 60)));
+  }
+
+  @Test
+  public void shouldReturnEmptyForTypeNotFound() throws Exception {
+    fail(Type.TXT, new NoSuchRRSetException(name, Type.TXT));
+
+    assertThat(resolver.resolveAsync(FQDN, RecordType.TXT).toCompletableFuture().get().isEmpty(),
+               is(true));
+  }
+
+  @Test
+  public void shouldReturnEmptyForHostNotFound() throws Exception {
+    fail(Type.A, new NoSuchDomainException(name, Type.A));
+
+    assertThat(resolver.resolveAsync(FQDN, RecordType.A).toCompletableFuture().get().isEmpty(),
+               is(true));
+  }
+
+  @Test
+  public void shouldFailWithDnsExceptionIfLookupFails() throws Exception {
+    fail(Type.AAAA, new IOException("timed out"));
+
+    try {
+      resolver.resolveAsync(FQDN, RecordType.AAAA).toCompletableFuture().get();
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(DnsException.class));
+      return;
+    }
+    throw new AssertionError("expected a failure");
+  }
+
+  private void respond(int type, Record... records) {
+    when(session.lookupAsync(name, type, DClass.IN)).thenReturn(
+        CompletableFuture.completedFuture(
+            new org.xbill.DNS.lookup.LookupResult(ImmutableList.copyOf(records),
+                                                  ImmutableList.of())));
+  }
+
+  private void fail(int type, Throwable cause) {
+    CompletableFuture<org.xbill.DNS.lookup.LookupResult> future = new CompletableFuture<>();
+    future.completeExceptionally(cause);
+    when(session.lookupAsync(name, type, DClass.IN)).thenReturn(future);
+  }
+}